@@ -0,0 +1,80 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.Arrays;
+
+// Writes the encodings which ByteBuffer reads
+final class BinaryWriter {
+	private byte[] bytes = new byte[256];
+	private int writeIndex;
+
+	int getWriteIndex() {
+		return writeIndex;
+	}
+
+	void writeByte(int value) {
+		if (writeIndex == bytes.length) {
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		}
+		bytes[writeIndex++] = (byte) value;
+	}
+
+	void writeInt8Array(byte[] values) {
+		writeInt8Array(values, 0, values.length);
+	}
+
+	void writeInt8Array(byte[] values, int offset, int length) {
+		if (bytes.length < writeIndex + length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, writeIndex + length));
+		}
+		System.arraycopy(values, offset, bytes, writeIndex, length);
+		writeIndex += length;
+	}
+
+	// Writes the length before the bytes as a vector
+	void writeVector(byte[] values) {
+		writeVaruint32(values.length);
+		writeInt8Array(values);
+	}
+
+	void writeVaruint32(int value) {
+		long remaining = value & 0xffffffffL;
+		while (0x80 <= remaining) {
+			writeByte((int) (remaining & 0x7f) | 0x80);
+			remaining >>>= 7;
+		}
+		writeByte((int) remaining);
+	}
+
+	void writeVarsint32(int value) {
+		writeVarsint64(value);
+	}
+
+	void writeVarsint64(long value) {
+		while (true) {
+			int bits = (int) (value & 0x7f);
+			value >>= 7;
+			// The sign bit of the last byte must match the remaining bits
+			if ((value == 0 && (bits & 0x40) == 0) || (value == -1 && (bits & 0x40) != 0)) {
+				writeByte(bits);
+				return;
+			}
+			writeByte(bits | 0x80);
+		}
+	}
+
+	void writeInt32(int value) {
+		writeByte(value);
+		writeByte(value >> 8);
+		writeByte(value >> 16);
+		writeByte(value >> 24);
+	}
+
+	void writeInt64(long value) {
+		writeInt32((int) value);
+		writeInt32((int) (value >>> 32));
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(bytes, writeIndex);
+	}
+}
@@ -0,0 +1,117 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static jp.hisano.wasm.interpreter.Parser.getStackEffect;
+import static jp.hisano.wasm.interpreter.Parser.skipImmediates;
+
+// Finds the memory accesses which are always in bounds, so that the engines can skip their trap checks.
+// The upper bounds of the values on the stack are tracked in straight-line code. A memory never shrinks, so an access whose
+// address, offset and length fit in the initial memory is in bounds.
+final class BoundsCheckAnalyzer {
+	private static final int PAGE_SIZE = 64 * 1024;
+	private static final long UNKNOWN = Long.MAX_VALUE;
+
+	private BoundsCheckAnalyzer() {
+	}
+
+	// Returns the indices of the opcodes of the memory accesses which are in bounds
+	static BitSet analyze(Module module, ByteBuffer byteBuffer) {
+		BitSet result = new BitSet();
+		if (module.getMemoryTypes().isEmpty()) {
+			return result;
+		}
+		long minimumSize = (long) module.getMemoryTypes().get(0).getMinimumPageLength() * PAGE_SIZE;
+
+		// unsigned upper bounds of the values on the top of the stack
+		List<Long> maxValues = new ArrayList<>();
+		while (byteBuffer.canRead()) {
+			int index = byteBuffer.getReadIndex();
+			int opcode = byteBuffer.readUint8AsInt();
+			if (0xfc <= opcode) {
+				// prefixed instructions are not decoded here
+				return result;
+			}
+
+			if (opcode == 0x41) {
+				maxValues.add(byteBuffer.readVarsint32() & 0xffffffffL);
+				continue;
+			}
+			if (opcode == 0x71) {
+				// i32.and is not larger than any of its operands
+				maxValues.add(Math.min(pop(maxValues), pop(maxValues)));
+				continue;
+			}
+			if (0x28 <= opcode && opcode <= 0x3e) {
+				byteBuffer.readVaruint32();
+				long offset = byteBuffer.readVaruint32() & 0xffffffffL;
+				if (opcode <= 0x35) {
+					// loads
+					long maxAddress = pop(maxValues);
+					if (maxAddress != UNKNOWN && maxAddress + offset + getAccessLength(opcode) <= minimumSize) {
+						result.set(index);
+					}
+					maxValues.add(UNKNOWN);
+				} else {
+					// stores
+					pop(maxValues);
+					long maxAddress = pop(maxValues);
+					if (maxAddress != UNKNOWN && maxAddress + offset + getAccessLength(opcode) <= minimumSize) {
+						result.set(index);
+					}
+				}
+				continue;
+			}
+
+			skipImmediates(byteBuffer, opcode);
+			if (!hasKnownStackEffect(opcode)) {
+				// Values are not tracked across control flow and calls
+				maxValues.clear();
+				continue;
+			}
+			// Replacing the top with an unknown value keeps the height in sync even when fewer values are actually popped
+			int stackEffect = getStackEffect(opcode);
+			for (int i = stackEffect <= 0? 1 - stackEffect: 0; 0 < i; i--) {
+				pop(maxValues);
+			}
+			maxValues.add(UNKNOWN);
+		}
+		return result;
+	}
+
+	static int getAccessLength(int opcode) {
+		switch (opcode) {
+			case 0x2c: // i32.load8_s
+			case 0x2d: // i32.load8_u
+			case 0x30: // i64.load8_s
+			case 0x31: // i64.load8_u
+			case 0x3a: // i32.store8
+			case 0x3c: // i64.store8
+				return 1;
+			case 0x2e: // i32.load16_s
+			case 0x2f: // i32.load16_u
+			case 0x32: // i64.load16_s
+			case 0x33: // i64.load16_u
+			case 0x3b: // i32.store16
+			case 0x3d: // i64.store16
+				return 2;
+			case 0x29: // i64.load
+			case 0x2b: // f64.load
+			case 0x37: // i64.store
+			case 0x39: // f64.store
+				return 8;
+			default:
+				return 4;
+		}
+	}
+
+	private static boolean hasKnownStackEffect(int opcode) {
+		return opcode == 0x01 || opcode == 0x1a || opcode == 0x1b || (0x20 <= opcode && opcode <= 0x24) || opcode == 0x3f || opcode == 0x40 || (0x42 <= opcode && opcode <= 0xc4);
+	}
+
+	private static long pop(List<Long> maxValues) {
+		return maxValues.isEmpty()? UNKNOWN: maxValues.remove(maxValues.size() - 1);
+	}
+}
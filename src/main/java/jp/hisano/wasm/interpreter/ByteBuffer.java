@@ -2,18 +2,44 @@ package jp.hisano.wasm.interpreter;
 
 import static java.lang.Double.*;
 import static java.lang.Float.*;
+import static jp.hisano.wasm.interpreter.InterpreterException.Type.*;
 import static jp.hisano.wasm.interpreter.Leb128.*;
 
 final class ByteBuffer {
+	// The fast paths of LEB128 are used when the longest encodings can be read without checking the end
+	private static final int MAX_VARINT32_LENGTH = 5;
+	private static final int MAX_VARINT64_LENGTH = 10;
+
 	private final byte[] bytes;
+	// A view of bytes[offset, offset + length), so that function bodies and data segments are not copied from the module binary
+	private final int offset;
+	private final int length;
 	private int readIndex;
 
 	ByteBuffer(byte[] bytes) {
+		this(bytes, 0, bytes.length);
+	}
+
+	ByteBuffer(byte[] bytes, int offset, int length) {
 		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	int getOffset() {
+		return offset;
+	}
+
+	int getLength() {
+		return length;
 	}
 
 	boolean canRead() {
-		return readIndex < bytes.length;
+		return readIndex < length;
 	}
 
 	void skipBytes(int count) {
@@ -33,12 +59,27 @@ final class ByteBuffer {
 	}
 
 	byte[] readInt8Array(int length) {
+		checkReadable(length);
 		byte[] result = new byte[length];
-		System.arraycopy(bytes, readIndex, result, 0, length);
+		System.arraycopy(bytes, offset + readIndex, result, 0, length);
+		readIndex += length;
+		return result;
+	}
+
+	// Returns a view of the next bytes without copying them
+	ByteBuffer readSlice(int length) {
+		checkReadable(length);
+		ByteBuffer result = new ByteBuffer(bytes, offset + readIndex, length);
 		readIndex += length;
 		return result;
 	}
 
+	private void checkReadable(int length) {
+		if (length < 0 || this.length - readIndex < length) {
+			throw new ArrayIndexOutOfBoundsException(readIndex + length);
+		}
+	}
+
 	byte readUint1() {
 		return readByte();
 	}
@@ -52,11 +93,44 @@ final class ByteBuffer {
 	}
 
 	int readVarsint32() {
+		if (length - readIndex < MAX_VARINT32_LENGTH) {
+			return readSignedLeb128(this);
+		}
+		// Most immediates fit in one or two bytes, which are read without checking the bounds of each byte
+		int index = offset + readIndex;
+		int value = bytes[index];
+		if (0 <= value) {
+			readIndex++;
+			return (value << 25) >> 25;
+		}
+		int result = (value & 0x7f) | (bytes[index + 1] << 7);
+		if (0 <= bytes[index + 1]) {
+			readIndex += 2;
+			return (result << 18) >> 18;
+		}
 		return readSignedLeb128(this);
 	}
 
 	int readVaruint32() {
-		return readUnsignedLeb128(this);
+		if (length - readIndex < MAX_VARINT32_LENGTH) {
+			return readUnsignedLeb128(this);
+		}
+		int index = offset + readIndex;
+		int value = bytes[index];
+		if (0 <= value) {
+			readIndex++;
+			return value;
+		}
+		int result = value & 0x7f;
+		for (int shift = 7; shift < 35; shift += 7) {
+			value = bytes[++index];
+			result |= (value & 0x7f) << shift;
+			if (0 <= value) {
+				readIndex = index + 1 - offset;
+				return result;
+			}
+		}
+		throw new InterpreterException(ILLEGAL_BINARY);
 	}
 
 	int[] readVaruint32Array() {
@@ -69,7 +143,22 @@ final class ByteBuffer {
 	}
 
 	long readVarsint64() {
-		return readSignedLongLeb128(this);
+		if (length - readIndex < MAX_VARINT64_LENGTH) {
+			return readSignedLongLeb128(this);
+		}
+		int index = offset + readIndex;
+		long result = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			int value = bytes[index++];
+			result |= (value & 0x7fL) << shift;
+			if (0 <= value) {
+				readIndex = index - offset;
+				// Sign extends from the last bit read
+				int unusedBitLength = 64 - (shift + 7);
+				return unusedBitLength <= 0? result: (result << unusedBitLength) >> unusedBitLength;
+			}
+		}
+		throw new InterpreterException(ILLEGAL_BINARY);
 	}
 
 	float readFloat32() {
@@ -100,7 +189,11 @@ final class ByteBuffer {
 		return readByte() & 0xff;
 	}
 
+	// Reading beyond the view fails as reading beyond a copied array did
 	byte readByte() {
-		return bytes[readIndex++];
+		if (length <= readIndex) {
+			throw new ArrayIndexOutOfBoundsException(readIndex);
+		}
+		return bytes[offset + readIndex++];
 	}
 }
@@ -0,0 +1,43 @@
+package jp.hisano.wasm.interpreter;
+
+import jp.hisano.wasm.interpreter.Module.Function;
+import jp.hisano.wasm.interpreter.Module.FunctionType;
+
+// Inline cache of a call_indirect site. The last target which passed the signature check is remembered, so that calling
+// it again only compares the element with it. The targets are the functions of the module, so the instances of the same
+// module hit the same entry, and table writes need no invalidation because the element is read on every call.
+// A site shared by threads sees either an old or a new target, both of which have the type of the site.
+final class CallIndirectCache {
+	private final int typeIndex;
+	private final FunctionType functionType;
+
+	private Function target;
+	private int missCount;
+
+	CallIndirectCache(Module module, int typeIndex) {
+		this.typeIndex = typeIndex;
+		functionType = module.getFunctionType(typeIndex);
+	}
+
+	int getTypeIndex() {
+		return typeIndex;
+	}
+
+	Function getFunction(Table table, int elementIndex) {
+		Function function = table.getElement(elementIndex);
+		if (function == target) {
+			return function;
+		}
+
+		if (!function.hasType(functionType)) {
+			throw new TrapException("indirect call type mismatch");
+		}
+		target = function;
+		missCount++;
+		return function;
+	}
+
+	int getMissCount() {
+		return missCount;
+	}
+}
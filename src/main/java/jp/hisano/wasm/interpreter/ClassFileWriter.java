@@ -0,0 +1,359 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes a minimal class file. The version is 49 so that methods can be verified without StackMapTable attributes.
+final class ClassFileWriter {
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+	private final DataOutputStream constantPoolOutput = new DataOutputStream(constantPool);
+	private final Map<String, Integer> constantIndices = new HashMap<>();
+	private int constantCount = 1;
+
+	private final List<byte[]> fields = new ArrayList<>();
+	private final List<byte[]> methods = new ArrayList<>();
+
+	int addUtf8(String value) {
+		return addConstant("Utf8 " + value, 1, output -> {
+			output.writeByte(1);
+			output.writeUTF(value);
+		});
+	}
+
+	int addClass(String internalName) {
+		int nameIndex = addUtf8(internalName);
+		return addConstant("Class " + internalName, 1, output -> {
+			output.writeByte(7);
+			output.writeShort(nameIndex);
+		});
+	}
+
+	int addFieldReference(String owner, String name, String descriptor) {
+		return addMemberReference(9, owner, name, descriptor);
+	}
+
+	int addMethodReference(String owner, String name, String descriptor) {
+		return addMemberReference(10, owner, name, descriptor);
+	}
+
+	private int addMemberReference(int tag, String owner, String name, String descriptor) {
+		int classIndex = addClass(owner);
+		int nameIndex = addUtf8(name);
+		int descriptorIndex = addUtf8(descriptor);
+		int nameAndTypeIndex = addConstant("NameAndType " + name + " " + descriptor, 1, output -> {
+			output.writeByte(12);
+			output.writeShort(nameIndex);
+			output.writeShort(descriptorIndex);
+		});
+		return addConstant(tag + " " + owner + "." + name + descriptor, 1, output -> {
+			output.writeByte(tag);
+			output.writeShort(classIndex);
+			output.writeShort(nameAndTypeIndex);
+		});
+	}
+
+	int addInteger(int value) {
+		return addConstant("Integer " + value, 1, output -> {
+			output.writeByte(3);
+			output.writeInt(value);
+		});
+	}
+
+	int addFloat(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		return addConstant("Float " + bits, 1, output -> {
+			output.writeByte(4);
+			output.writeInt(bits);
+		});
+	}
+
+	int addLong(long value) {
+		return addConstant("Long " + value, 2, output -> {
+			output.writeByte(5);
+			output.writeLong(value);
+		});
+	}
+
+	int addDouble(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		return addConstant("Double " + bits, 2, output -> {
+			output.writeByte(6);
+			output.writeLong(bits);
+		});
+	}
+
+	private int addConstant(String key, int slotLength, ConstantWriter writer) {
+		Integer index = constantIndices.get(key);
+		if (index != null) {
+			return index;
+		}
+		try {
+			writer.write(constantPoolOutput);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		index = constantCount;
+		constantCount += slotLength;
+		if (constantCount > 0xffff) {
+			throw new UnsupportedOperationException("too many constants");
+		}
+		constantIndices.put(key, index);
+		return index;
+	}
+
+	int getConstantCount() {
+		return constantCount;
+	}
+
+	void addField(int accessFlags, String name, String descriptor) {
+		fields.add(toBytes(output -> {
+			output.writeShort(accessFlags);
+			output.writeShort(addUtf8(name));
+			output.writeShort(addUtf8(descriptor));
+			output.writeShort(0);
+		}));
+	}
+
+	void addMethod(int accessFlags, String name, String descriptor, MethodWriter methodWriter) {
+		byte[] code = methodWriter.toByteArray();
+		int codeIndex = addUtf8("Code");
+		methods.add(toBytes(output -> {
+			output.writeShort(accessFlags);
+			output.writeShort(addUtf8(name));
+			output.writeShort(addUtf8(descriptor));
+			output.writeShort(1);
+			output.writeShort(codeIndex);
+			output.writeInt(12 + code.length);
+			output.writeShort(methodWriter.getMaxStack());
+			output.writeShort(methodWriter.getMaxLocals());
+			output.writeInt(code.length);
+			output.write(code);
+			output.writeShort(0);
+			output.writeShort(0);
+		}));
+	}
+
+	byte[] toByteArray(int accessFlags, String name, String superName, String... interfaceNames) {
+		int thisIndex = addClass(name);
+		int superIndex = addClass(superName);
+		int[] interfaceIndices = new int[interfaceNames.length];
+		for (int i = 0; i < interfaceNames.length; i++) {
+			interfaceIndices[i] = addClass(interfaceNames[i]);
+		}
+		return toBytes(output -> {
+			output.writeInt(0xcafebabe);
+			output.writeShort(0);
+			output.writeShort(49);
+			output.writeShort(constantCount);
+			constantPool.writeTo(output);
+			output.writeShort(accessFlags);
+			output.writeShort(thisIndex);
+			output.writeShort(superIndex);
+			output.writeShort(interfaceIndices.length);
+			for (int interfaceIndex : interfaceIndices) {
+				output.writeShort(interfaceIndex);
+			}
+			output.writeShort(fields.size());
+			for (byte[] field : fields) {
+				output.write(field);
+			}
+			output.writeShort(methods.size());
+			for (byte[] method : methods) {
+				output.write(method);
+			}
+			output.writeShort(0);
+		});
+	}
+
+	private static byte[] toBytes(ConstantWriter writer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			writer.write(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private interface ConstantWriter {
+		void write(DataOutputStream output) throws IOException;
+	}
+
+	// Writes the bytecode of a method. Jumps are written with 16 bit offsets and patched when the code is finished.
+	static final class MethodWriter {
+		private byte[] code = new byte[256];
+		private int codeLength;
+
+		// address of the instruction, position of the offset and width of the offset for each jump
+		private final List<int[]> jumps = new ArrayList<>();
+		private final List<Label> jumpLabels = new ArrayList<>();
+
+		private int maxStack;
+		private int maxLocals;
+
+		int getMaxStack() {
+			return maxStack;
+		}
+
+		void setMaxStack(int maxStack) {
+			this.maxStack = maxStack;
+		}
+
+		int getMaxLocals() {
+			return maxLocals;
+		}
+
+		void setMaxLocals(int maxLocals) {
+			this.maxLocals = maxLocals;
+		}
+
+		Label createLabel() {
+			return new Label();
+		}
+
+		void bind(Label label) {
+			label.address = codeLength;
+		}
+
+		void emit(int opcode) {
+			writeByte(opcode);
+		}
+
+		void emit(int opcode, int operand) {
+			writeByte(opcode);
+			writeByte(operand);
+		}
+
+		void emitWithShort(int opcode, int operand) {
+			writeByte(opcode);
+			writeShort(operand);
+		}
+
+		void emitLocal(int opcode, int index) {
+			if (index < 0x100) {
+				emit(opcode, index);
+			} else {
+				// wide
+				writeByte(0xc4);
+				writeByte(opcode);
+				writeShort(index);
+			}
+		}
+
+		void emitInt(int value, ClassFileWriter classFile) {
+			if (-1 <= value && value <= 5) {
+				// iconst_<n>
+				emit(0x03 + value);
+			} else if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+				// bipush
+				emit(0x10, value & 0xff);
+			} else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+				// sipush
+				emitWithShort(0x11, value & 0xffff);
+			} else {
+				emitConstant(classFile.addInteger(value));
+			}
+		}
+
+		void emitConstant(int constantIndex) {
+			if (constantIndex < 0x100) {
+				// ldc
+				emit(0x12, constantIndex);
+			} else {
+				// ldc_w
+				emitWithShort(0x13, constantIndex);
+			}
+		}
+
+		void emitJump(int opcode, Label label) {
+			jumps.add(new int[] {codeLength, codeLength + 1, 2});
+			jumpLabels.add(label);
+			writeByte(opcode);
+			writeShort(0);
+		}
+
+		void emitTableSwitch(Label defaultLabel, Label[] labels) {
+			int address = codeLength;
+			// tableswitch
+			writeByte(0xaa);
+			while (codeLength % 4 != 0) {
+				writeByte(0);
+			}
+			emitSwitchOffset(address, defaultLabel);
+			writeInt(0);
+			writeInt(labels.length - 1);
+			for (Label label : labels) {
+				emitSwitchOffset(address, label);
+			}
+		}
+
+		private void emitSwitchOffset(int address, Label label) {
+			jumps.add(new int[] {address, codeLength, 4});
+			jumpLabels.add(label);
+			writeInt(0);
+		}
+
+		byte[] toByteArray() {
+			for (int i = 0; i < jumps.size(); i++) {
+				int[] jump = jumps.get(i);
+				Label label = jumpLabels.get(i);
+				if (label.address < 0) {
+					throw new IllegalStateException("unbound label");
+				}
+				int offset = label.address - jump[0];
+				if (jump[2] == 2) {
+					if (offset < Short.MIN_VALUE || Short.MAX_VALUE < offset) {
+						throw new UnsupportedOperationException("too long jump");
+					}
+					code[jump[1]] = (byte) (offset >> 8);
+					code[jump[1] + 1] = (byte) offset;
+				} else {
+					code[jump[1]] = (byte) (offset >> 24);
+					code[jump[1] + 1] = (byte) (offset >> 16);
+					code[jump[1] + 2] = (byte) (offset >> 8);
+					code[jump[1] + 3] = (byte) offset;
+				}
+			}
+			if (0xffff <= codeLength) {
+				throw new UnsupportedOperationException("too large method");
+			}
+			byte[] result = new byte[codeLength];
+			System.arraycopy(code, 0, result, 0, codeLength);
+			return result;
+		}
+
+		private void writeShort(int value) {
+			writeByte(value >> 8);
+			writeByte(value);
+		}
+
+		private void writeInt(int value) {
+			writeShort(value >> 16);
+			writeShort(value);
+		}
+
+		private void writeByte(int value) {
+			if (codeLength == code.length) {
+				byte[] newCode = new byte[code.length * 2];
+				System.arraycopy(code, 0, newCode, 0, codeLength);
+				code = newCode;
+			}
+			code[codeLength++] = (byte) value;
+		}
+
+		static final class Label {
+			private int address = -1;
+		}
+	}
+}
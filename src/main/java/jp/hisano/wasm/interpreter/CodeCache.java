@@ -0,0 +1,384 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+import jp.hisano.wasm.interpreter.JvmCompiler.GeneratedClass;
+import jp.hisano.wasm.interpreter.Module.Code;
+import jp.hisano.wasm.interpreter.Module.Function;
+
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.attribute.PosixFilePermission.*;
+import static java.nio.file.StandardOpenOption.*;
+
+// Stores the code of all functions compiled by the FLAT or JVM engine in a file named by the SHA-256 of the module, the engine
+// and the engine version. A module loaded again reads the memory-mapped file instead of decoding its function bodies.
+// The classes in the files are defined in this JVM, so the directory must be trusted: it is not used unless it is owned by the
+// current user and no other user can write it. Each file ends with an HMAC of its name and contents by a key which only the
+// owner can read, and the HMAC is checked before anything in the file is used.
+final class CodeCache {
+	// Incremented when the file format or the compiled code is changed
+	private static final int ENGINE_VERSION = 6;
+	private static final int MAGIC = 0x7761636d; // = "wacm"
+
+	private static final String KEY_FILE_NAME = "cache.key";
+	private static final int KEY_LENGTH = 32;
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final int MAC_LENGTH = 32;
+
+	private static final int NONE = 0;
+	private static final int FLAT = 1;
+	private static final int JVM = 2;
+
+	private final Path directory;
+	private final Engine engine;
+
+	CodeCache(Path directory, Engine engine) {
+		this.directory = directory;
+		this.engine = engine;
+	}
+
+	// The objects built by TREE cannot be stored
+	static boolean isCacheable(Engine engine) {
+		return engine == Engine.FLAT || engine == Engine.JVM;
+	}
+
+	void loadOrStore(Module module, byte[] wasmFileContent) {
+		String key = toKey(wasmFileContent);
+		Path file = directory.resolve(key + ".cache");
+		Mac mac;
+		try {
+			mac = createMac(key);
+		} catch (IOException e) {
+			// The module can be used without the cache, which is not used when the directory is not trusted
+			compile(module);
+			return;
+		}
+		if (Files.exists(file) && load(module, file, mac)) {
+			return;
+		}
+
+		Object[] compiledCodes = compile(module);
+		try {
+			store(file, module, compiledCodes, mac);
+		} catch (IOException e) {
+			// The module can be used without the cache
+		}
+	}
+
+	// The MAC covers the name of the file too, so that a file stored for another module or engine version is not accepted
+	private Mac createMac(String key) throws IOException {
+		Files.createDirectories(directory);
+		checkOwnerOnly(directory, GROUP_WRITE, OTHERS_WRITE);
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(readOrCreateSecretKey(), MAC_ALGORITHM));
+			mac.update(key.getBytes(StandardCharsets.UTF_8));
+			return mac;
+		} catch (GeneralSecurityException e) {
+			// Every Java platform supports HmacSHA256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] readOrCreateSecretKey() throws IOException {
+		Path keyFile = directory.resolve(KEY_FILE_NAME);
+		if (!Files.exists(keyFile)) {
+			byte[] secretKey = new byte[KEY_LENGTH];
+			new SecureRandom().nextBytes(secretKey);
+			Path temporaryFile = isPosix(directory)? Files.createTempFile(directory, KEY_FILE_NAME, ".tmp", PosixFilePermissions.asFileAttribute(EnumSet.of(OWNER_READ, OWNER_WRITE))): Files.createTempFile(directory, KEY_FILE_NAME, ".tmp");
+			try {
+				Files.write(temporaryFile, secretKey);
+				Files.move(temporaryFile, keyFile, ATOMIC_MOVE);
+			} catch (IOException e) {
+				// The key created by another process at the same time is used instead
+				if (!Files.exists(keyFile)) {
+					throw e;
+				}
+			} finally {
+				Files.deleteIfExists(temporaryFile);
+			}
+		}
+		checkOwnerOnly(keyFile, GROUP_READ, GROUP_WRITE, OTHERS_READ, OTHERS_WRITE);
+		byte[] secretKey = Files.readAllBytes(keyFile);
+		if (secretKey.length != KEY_LENGTH) {
+			throw new IOException("broken cache key: " + keyFile);
+		}
+		return secretKey;
+	}
+
+	// The permissions are checked only on the file systems which support POSIX attributes
+	private static void checkOwnerOnly(Path path, PosixFilePermission... deniedPermissions) throws IOException {
+		if (!isPosix(path)) {
+			return;
+		}
+		if (!Files.getOwner(path).getName().equals(System.getProperty("user.name"))) {
+			throw new IOException("cache is not owned by the current user: " + path);
+		}
+		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+		for (PosixFilePermission deniedPermission : deniedPermissions) {
+			if (permissions.contains(deniedPermission)) {
+				throw new IOException("cache is accessible by other users: " + path);
+			}
+		}
+	}
+
+	private static boolean isPosix(Path path) throws IOException {
+		return Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class);
+	}
+
+	private String toKey(byte[] wasmFileContent) {
+		return toSha256(wasmFileContent) + "-" + engine.name().toLowerCase() + "-" + ENGINE_VERSION;
+	}
+
+	static String toSha256(byte[] wasmFileContent) {
+		try {
+			StringBuilder result = new StringBuilder();
+			for (byte value : MessageDigest.getInstance("SHA-256").digest(wasmFileContent)) {
+				result.append(String.format("%02x", value & 0xff));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Returns FlatCode, GeneratedClass or null for each function. The functions compiled into the same class share it.
+	private Object[] compile(Module module) {
+		List<Function> functions = module.getFunctions();
+		Object[] result = new Object[functions.size()];
+		if (engine == Engine.JVM) {
+			for (GeneratedClass generatedClass : JvmCompiler.generate(module, functions)) {
+				module.setCodes(generatedClass);
+				for (int index : generatedClass.getFunctionIndices()) {
+					result[index] = generatedClass;
+				}
+			}
+		}
+		// The functions which cannot be compiled by JvmCompiler fall back to FLAT
+		IntStream indices = IntStream.range(0, result.length).filter(index -> result[index] == null);
+		(module.getConfiguration().isParallelDecoding()? indices.parallel(): indices).forEach(index -> {
+			result[index] = compile(module, functions.get(index));
+		});
+		return result;
+	}
+
+	private FlatCode compile(Module module, Function function) {
+		if (!function.hasBody()) {
+			return null;
+		}
+		try {
+			FlatCode flatCode = new FlatCodeCompiler(module, function).compile();
+			function.setCode(engine, flatCode);
+			return flatCode;
+		} catch (UnsupportedOperationException | InterpreterException e) {
+			// Left undecoded so that the error is reported by each call
+			return null;
+		}
+	}
+
+	// Written into a temporary file first, so that another process never reads a partially written file
+	private void store(Path file, Module module, Object[] compiledCodes, Mac mac) throws IOException {
+		Map<Function, Integer> functionIndices = new IdentityHashMap<>();
+		for (Function function : module.getFunctions()) {
+			functionIndices.put(function, functionIndices.size());
+		}
+
+		Path temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(ENGINE_VERSION);
+				output.writeInt(compiledCodes.length);
+
+				List<GeneratedClass> generatedClasses = Arrays.stream(compiledCodes).filter(GeneratedClass.class::isInstance).map(GeneratedClass.class::cast).distinct().collect(Collectors.toList());
+				output.writeInt(generatedClasses.size());
+				for (GeneratedClass generatedClass : generatedClasses) {
+					output.writeUTF(generatedClass.getName());
+					output.writeInt(generatedClass.getBytes().length);
+					output.write(generatedClass.getBytes());
+					writeFunctions(output, generatedClass.getFunctions(), functionIndices);
+					writeCaches(output, generatedClass.getCaches());
+					output.writeInt(generatedClass.getFunctionIndices().length);
+					for (int functionIndex : generatedClass.getFunctionIndices()) {
+						output.writeInt(functionIndex);
+					}
+				}
+
+				for (Object compiledCode : compiledCodes) {
+					if (compiledCode instanceof FlatCode) {
+						FlatCode flatCode = (FlatCode) compiledCode;
+						output.writeByte(FLAT);
+						output.writeInt(flatCode.getMaxStackHeight());
+						output.writeInt(flatCode.getCode().length);
+						for (int value : flatCode.getCode()) {
+							output.writeInt(value);
+						}
+						writeFunctions(output, flatCode.getFunctions(), functionIndices);
+						writeCaches(output, flatCode.getCaches());
+					} else if (compiledCode instanceof GeneratedClass) {
+						// The code is defined with the class
+						output.writeByte(JVM);
+					} else {
+						output.writeByte(NONE);
+					}
+				}
+			}
+			Files.write(temporaryFile, mac.doFinal(Files.readAllBytes(temporaryFile)), APPEND);
+			try {
+				Files.move(temporaryFile, file, ATOMIC_MOVE);
+			} catch (IOException e) {
+				Files.move(temporaryFile, file, REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	private static void writeFunctions(DataOutputStream output, Function[] functions, Map<Function, Integer> functionIndices) throws IOException {
+		output.writeInt(functions.length);
+		for (Function function : functions) {
+			output.writeInt(functionIndices.get(function));
+		}
+	}
+
+	// The caches are created empty again from their type indices
+	private static void writeCaches(DataOutputStream output, CallIndirectCache[] caches) throws IOException {
+		output.writeInt(caches.length);
+		for (CallIndirectCache cache : caches) {
+			output.writeInt(cache.getTypeIndex());
+		}
+	}
+
+	// Returns false when the file cannot be used, in which case the functions are compiled again
+	private boolean load(Module module, Path file, Mac mac) {
+		List<Function> functions = module.getFunctions();
+		Code[] codes = new Code[functions.size()];
+		try (FileChannel channel = FileChannel.open(file, READ)) {
+			java.nio.ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (!verifyMac(buffer, mac)) {
+				return false;
+			}
+			if (buffer.getInt() != MAGIC || buffer.getInt() != ENGINE_VERSION || buffer.getInt() != codes.length) {
+				return false;
+			}
+
+			int generatedClassLength = buffer.getInt();
+			for (int i = 0; i < generatedClassLength; i++) {
+				String name = readUtf(buffer);
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				Function[] classFunctions = readFunctions(buffer, module);
+				CallIndirectCache[] caches = readCaches(buffer, module);
+				int[] functionIndices = new int[buffer.getInt()];
+				for (int j = 0; j < functionIndices.length; j++) {
+					functionIndices[j] = buffer.getInt();
+				}
+				Code[] classCodes = new GeneratedClass(name, bytes, classFunctions, caches, functionIndices).rename().define();
+				for (int j = 0; j < functionIndices.length; j++) {
+					codes[functionIndices[j]] = classCodes[j];
+				}
+			}
+
+			for (int i = 0; i < codes.length; i++) {
+				switch (buffer.get()) {
+					case NONE:
+						break;
+					case FLAT: {
+						int maxStackHeight = buffer.getInt();
+						int[] code = new int[buffer.getInt()];
+						buffer.asIntBuffer().get(code);
+						// Buffer methods are called through Buffer because ByteBuffer overrides them only since Java 9
+						((Buffer) buffer).position(buffer.position() + code.length * 4);
+						codes[i] = new FlatCode(code, readFunctions(buffer, module), readCaches(buffer, module), maxStackHeight);
+						break;
+					}
+					case JVM:
+						if (codes[i] == null) {
+							return false;
+						}
+						break;
+					default:
+						return false;
+				}
+			}
+		} catch (IOException | RuntimeException | VerifyError e) {
+			// A broken or truncated file is treated as a miss
+			return false;
+		}
+
+		for (int i = 0; i < codes.length; i++) {
+			if (codes[i] != null) {
+				functions.get(i).setCode(engine, codes[i]);
+			}
+		}
+		return true;
+	}
+
+	// The MAC at the end is excluded from the buffer after it is checked
+	private static boolean verifyMac(java.nio.ByteBuffer buffer, Mac mac) {
+		int contentsLength = buffer.remaining() - MAC_LENGTH;
+		if (contentsLength < 0) {
+			return false;
+		}
+		java.nio.ByteBuffer contents = buffer.duplicate();
+		// Buffer methods are called through Buffer because ByteBuffer overrides them only since Java 9
+		((Buffer) contents).limit(contentsLength);
+		mac.update(contents);
+		byte[] storedMac = new byte[MAC_LENGTH];
+		((Buffer) buffer).position(contentsLength);
+		buffer.get(storedMac);
+		((Buffer) buffer).position(0).limit(contentsLength);
+		return MessageDigest.isEqual(mac.doFinal(), storedMac);
+	}
+
+	private static String readUtf(java.nio.ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		// Class names are ASCII, where modified UTF-8 of DataOutput is the same as UTF-8
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static Function[] readFunctions(java.nio.ByteBuffer buffer, Module module) {
+		Function[] result = new Function[buffer.getInt()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = module.getFunction(buffer.getInt());
+		}
+		return result;
+	}
+
+	private static CallIndirectCache[] readCaches(java.nio.ByteBuffer buffer, Module module) {
+		CallIndirectCache[] result = new CallIndirectCache[buffer.getInt()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new CallIndirectCache(module, buffer.getInt());
+		}
+		return result;
+	}
+}
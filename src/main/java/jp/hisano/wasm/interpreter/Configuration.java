@@ -0,0 +1,230 @@
+package jp.hisano.wasm.interpreter;
+
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+
+public final class Configuration {
+	// Bounds of the Java stack which a nested call and a slot of the value stack take in any engine, used to size the
+	// threads of the calls so that the call depth and the value stack are exhausted before the Java stack
+	static final long STACK_SIZE_PER_CALL = 4 * 1024;
+	static final long STACK_SIZE_PER_SLOT = 16;
+
+	private Engine engine = Engine.TREE;
+
+	private Engine tieredEngine = Engine.JVM;
+	private int tierUpThreshold = 1000;
+	private TierListener tierListener;
+
+	private boolean isParallelDecoding;
+
+	private boolean isFusingInstructions = true;
+	private SequenceProfiler sequenceProfiler;
+
+	private Path cacheDirectory;
+
+	private int maxCallDepth = 10000;
+	private int maxValueStackSize = 1 << 20;
+	// Negative while the size is derived from maxCallDepth and maxValueStackSize
+	private long threadStackSize = -1;
+
+	private boolean isDirectMemory;
+
+	private Path memoryImage;
+	private MapMode memoryImageMapMode;
+
+	public Configuration() {
+	}
+
+	// Modules keep a copy, so that a configuration can be changed and reused for other modules
+	Configuration(Configuration configuration) {
+		engine = configuration.engine;
+		tieredEngine = configuration.tieredEngine;
+		tierUpThreshold = configuration.tierUpThreshold;
+		tierListener = configuration.tierListener;
+		isParallelDecoding = configuration.isParallelDecoding;
+		isFusingInstructions = configuration.isFusingInstructions;
+		sequenceProfiler = configuration.sequenceProfiler;
+		cacheDirectory = configuration.cacheDirectory;
+		maxCallDepth = configuration.maxCallDepth;
+		maxValueStackSize = configuration.maxValueStackSize;
+		threadStackSize = configuration.threadStackSize;
+		isDirectMemory = configuration.isDirectMemory;
+		memoryImage = configuration.memoryImage;
+		memoryImageMapMode = configuration.memoryImageMapMode;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public Configuration setEngine(Engine engine) {
+		this.engine = engine;
+		return this;
+	}
+
+	public Engine getTieredEngine() {
+		return tieredEngine;
+	}
+
+	// The engine which hot functions are promoted to when the engine is TIERED
+	public Configuration setTieredEngine(Engine tieredEngine) {
+		if (tieredEngine == Engine.TREE || tieredEngine == Engine.TIERED) {
+			throw new IllegalArgumentException("tiered engine must be FLAT, REGISTER or JVM: " + tieredEngine);
+		}
+		this.tieredEngine = tieredEngine;
+		return this;
+	}
+
+	public int getTierUpThreshold() {
+		return tierUpThreshold;
+	}
+
+	// Calls and loop back-edges which a function is interpreted for before it is promoted
+	public Configuration setTierUpThreshold(int tierUpThreshold) {
+		if (tierUpThreshold < 0) {
+			throw new IllegalArgumentException("tier up threshold must not be negative: " + tierUpThreshold);
+		}
+		this.tierUpThreshold = tierUpThreshold;
+		return this;
+	}
+
+	public TierListener getTierListener() {
+		return tierListener;
+	}
+
+	public Configuration setTierListener(TierListener tierListener) {
+		this.tierListener = tierListener;
+		return this;
+	}
+
+	public boolean isParallelDecoding() {
+		return isParallelDecoding;
+	}
+
+	// Decodes the function bodies on the common ForkJoinPool instead of one by one on the thread loading the module
+	public Configuration setParallelDecoding(boolean isParallelDecoding) {
+		this.isParallelDecoding = isParallelDecoding;
+		return this;
+	}
+
+	public boolean isFusingInstructions() {
+		return isFusingInstructions;
+	}
+
+	// Fuses common instruction sequences into superinstructions in the TREE engine
+	public Configuration setFusingInstructions(boolean isFusingInstructions) {
+		this.isFusingInstructions = isFusingInstructions;
+		return this;
+	}
+
+	public SequenceProfiler getSequenceProfiler() {
+		return sequenceProfiler;
+	}
+
+	// Counts the instruction sequences executed by the TREE engine. Instructions are not fused while profiling.
+	public Configuration setSequenceProfiler(SequenceProfiler sequenceProfiler) {
+		this.sequenceProfiler = sequenceProfiler;
+		return this;
+	}
+
+	public int getMaxCallDepth() {
+		return maxCallDepth;
+	}
+
+	// Calls which may be nested in an invocation of an exported function before it traps with "call stack exhausted"
+	public Configuration setMaxCallDepth(int maxCallDepth) {
+		if (maxCallDepth < 1) {
+			throw new IllegalArgumentException("max call depth must be positive: " + maxCallDepth);
+		}
+		this.maxCallDepth = maxCallDepth;
+		return this;
+	}
+
+	public int getMaxValueStackSize() {
+		return maxValueStackSize;
+	}
+
+	// Slots for the locals and the operand stacks of the nested calls before they trap with "call stack exhausted"
+	public Configuration setMaxValueStackSize(int maxValueStackSize) {
+		if (maxValueStackSize < 1) {
+			throw new IllegalArgumentException("max value stack size must be positive: " + maxValueStackSize);
+		}
+		this.maxValueStackSize = maxValueStackSize;
+		return this;
+	}
+
+	public long getThreadStackSize() {
+		if (threadStackSize < 0) {
+			return maxCallDepth * STACK_SIZE_PER_CALL + maxValueStackSize * STACK_SIZE_PER_SLOT;
+		}
+		return threadStackSize;
+	}
+
+	// Runs the exported functions on threads with the stack size in bytes instead of the calling thread, so that deep calls
+	// within the max call depth do not overflow the Java stack. By default the size fits the max call depth and the max
+	// value stack size. 0 runs them on the calling thread, whose stack must then be large enough for the max call depth.
+	public Configuration setThreadStackSize(long threadStackSize) {
+		if (threadStackSize < 0) {
+			throw new IllegalArgumentException("thread stack size must not be negative: " + threadStackSize);
+		}
+		this.threadStackSize = threadStackSize;
+		return this;
+	}
+
+	public Path getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	// Stores the code compiled by the FLAT and JVM engines in the directory and reuses it when the same module is loaded again.
+	// The directory must be trusted, because the classes in it are defined in this JVM. It is not used unless it is owned by the
+	// current user and not writable by the others, and the files are checked by an HMAC with a key kept in the directory.
+	public Configuration setCacheDirectory(Path cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+		return this;
+	}
+
+	public boolean isDirectMemory() {
+		return isDirectMemory;
+	}
+
+	// Allocates linear memories outside the Java heap
+	public Configuration setDirectMemory(boolean isDirectMemory) {
+		this.isDirectMemory = isDirectMemory;
+		return this;
+	}
+
+	public Path getMemoryImage() {
+		return memoryImage;
+	}
+
+	public MapMode getMemoryImageMapMode() {
+		return memoryImageMapMode;
+	}
+
+	// Maps the file as the linear memory instead of allocating it and writing the data segments.
+	// READ_ONLY and PRIVATE (copy-on-write) leave the file unchanged and READ_WRITE persists the writes.
+	// READ_ONLY is mapped copy-on-write too, so that the guest code can still store into the memory.
+	public Configuration setMemoryImage(Path memoryImage, MapMode mapMode) {
+		this.memoryImage = memoryImage;
+		this.memoryImageMapMode = mapMode;
+		return this;
+	}
+
+	public enum Engine {
+		// Executes the parsed Module.Instruction objects one by one
+		TREE,
+		// Executes function bodies lowered into int[] code by a single switch
+		FLAT,
+		// Executes function bodies lowered into register code, whose instructions read and write locals and stack slots
+		// directly, falling back to FLAT for functions which cannot be lowered
+		REGISTER,
+		// Compiles function bodies into JVM bytecode, falling back to FLAT for functions which cannot be compiled
+		JVM,
+		// Starts with TREE and promotes hot functions to the tiered engine
+		TIERED,
+	}
+
+	public interface TierListener {
+		void onTierUp(int functionIndex, Engine fromEngine, Engine toEngine);
+	}
+}
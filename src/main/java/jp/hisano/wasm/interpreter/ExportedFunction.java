@@ -1,7 +1,13 @@
 package jp.hisano.wasm.interpreter;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import jp.hisano.wasm.interpreter.Module.Function;
 
+import static java.lang.Double.*;
+import static java.lang.Float.*;
+
 final class ExportedFunction {
 	private final Function function;
 
@@ -9,7 +15,34 @@ final class ExportedFunction {
 		this.function = function;
 	}
 
+	Function getFunction() {
+		return function;
+	}
+
 	<T> T invoke(Instance instance, Object... parameters) {
+		if (function.getConfiguration().getThreadStackSize() == 0 || function.isExecutorThread()) {
+			return invokeOnCurrentThread(instance, parameters);
+		}
+
+		Future<T> future = function.getExecutor().submit(() -> invokeOnCurrentThread(instance, parameters));
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for the call", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private <T> T invokeOnCurrentThread(Instance instance, Object... parameters) {
 		Frame frame = new Frame(instance, function);
 		for (int i = 0; i < parameters.length; i++) {
 			Object parameter = parameters[i];
@@ -17,39 +50,44 @@ final class ExportedFunction {
 				Number number = (Number) parameter;
 				switch (function.parameterTypes[i]) {
 					case I32:
-						frame.getLocalVariable(i).getValue().setI32(number.intValue());
+						frame.setLocalVariable(i, number.intValue());
 						break;
 					case I64:
-						frame.getLocalVariable(i).getValue().setI64(number.longValue());
+						frame.setLocalVariable(i, number.longValue());
 						break;
 					case F32:
-						frame.getLocalVariable(i).getValue().setF32(number.floatValue());
+						frame.setLocalVariable(i, floatToRawIntBits(number.floatValue()));
 						break;
 					case F64:
-						frame.getLocalVariable(i).getValue().setF64(number.doubleValue());
+						frame.setLocalVariable(i, doubleToRawLongBits(number.doubleValue()));
 						break;
 				}
 			}
 		}
 
-		function.invoke(frame);
-
-		if (function.returnTypes.length == 0) {
-			return null;
-		}
+		try {
+			function.invoke(frame);
 
-		switch (function.returnTypes[0]) {
-			case I32:
-				return (T) (Integer)frame.pop().getI32();
-			case I64:
-				return (T) (Long)frame.pop().getI64();
-			case F32:
-				return (T) (Float)frame.pop().getF32();
-			case F64:
-				return (T) (Double)frame.pop().getF64();
-
-			default:
+			if (function.returnTypes.length == 0) {
 				return null;
+			}
+
+			switch (function.returnTypes[0]) {
+				case I32:
+					return (T) (Integer) frame.popI32();
+				case I64:
+					return (T) (Long) frame.popI64();
+				case F32:
+					return (T) (Float) frame.popF32();
+				case F64:
+					return (T) (Double) frame.popF64();
+
+				default:
+					return null;
+			}
+		} finally {
+			// Also releases the frames of the calls which a trap has unwound
+			frame.exit();
 		}
 	}
 }
@@ -0,0 +1,945 @@
+package jp.hisano.wasm.interpreter;
+
+import jp.hisano.wasm.interpreter.Module.Code;
+import jp.hisano.wasm.interpreter.Module.F32Trunc;
+import jp.hisano.wasm.interpreter.Module.F64ConvertI64U;
+import jp.hisano.wasm.interpreter.Module.F64Trunc;
+import jp.hisano.wasm.interpreter.Module.Function;
+import jp.hisano.wasm.interpreter.Module.I64DivS;
+import jp.hisano.wasm.interpreter.Module.I64DivU;
+import jp.hisano.wasm.interpreter.Module.I64RemS;
+import jp.hisano.wasm.interpreter.Module.I64RemU;
+
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+import static java.lang.Float.floatToRawIntBits;
+import static java.lang.Float.intBitsToFloat;
+import static java.lang.Integer.bitCount;
+import static java.lang.Integer.compareUnsigned;
+import static java.lang.Integer.divideUnsigned;
+import static java.lang.Integer.numberOfLeadingZeros;
+import static java.lang.Integer.numberOfTrailingZeros;
+import static java.lang.Integer.remainderUnsigned;
+import static java.lang.Integer.rotateLeft;
+import static java.lang.Integer.rotateRight;
+import static java.lang.Integer.toHexString;
+import static java.lang.Long.bitCount;
+import static java.lang.Long.compareUnsigned;
+import static java.lang.Long.numberOfLeadingZeros;
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.lang.Long.rotateLeft;
+import static java.lang.Long.rotateRight;
+import static java.lang.Math.*;
+import static jp.hisano.wasm.interpreter.BoundsCheckAnalyzer.getAccessLength;
+import static jp.hisano.wasm.interpreter.InterpreterException.Type.*;
+
+// Function body lowered by FlatCodeCompiler: wasm opcodes followed by their immediates
+final class FlatCode implements Code {
+	// Added to the opcodes of the memory accesses which BoundsCheckAnalyzer proves to be in bounds
+	static final int IN_BOUNDS = 0x100;
+
+	private final int[] code;
+	private final Function[] functions;
+	private final CallIndirectCache[] caches;
+	private final int maxStackHeight;
+
+	FlatCode(int[] code, Function[] functions, CallIndirectCache[] caches, int maxStackHeight) {
+		this.code = code;
+		this.functions = functions;
+		this.caches = caches;
+		this.maxStackHeight = maxStackHeight;
+	}
+
+	int[] getCode() {
+		return code;
+	}
+
+	Function[] getFunctions() {
+		return functions;
+	}
+
+	CallIndirectCache[] getCaches() {
+		return caches;
+	}
+
+	@Override
+	public int getMaxStackHeight() {
+		return maxStackHeight;
+	}
+
+	@Override
+	public void execute(Frame frame) {
+		int[] code = this.code;
+		long[] stack = frame.getStack();
+		int localBase = frame.getLocalBase();
+		int stackPointer = frame.getStackPointer();
+		int index = 0;
+		while (index < code.length) {
+			int opcode = code[index++];
+			switch (opcode) {
+				case 0x00: // unreachable
+					throw new InterpreterException(UNREACHABLE);
+				case 0x01: // nop
+					break;
+
+				case 0x04: // if
+					if ((int) stack[--stackPointer] == 0) {
+						index = code[index];
+					} else {
+						index++;
+					}
+					break;
+				case 0x05: // else
+					index = code[index];
+					break;
+
+				case 0x0c: // br and return
+					stackPointer = branch(stack, stackPointer, code, index);
+					index = code[index];
+					break;
+				case 0x0d: // br_if
+					if ((int) stack[--stackPointer] == 0) {
+						index += 3;
+					} else {
+						stackPointer = branch(stack, stackPointer, code, index);
+						index = code[index];
+					}
+					break;
+				case 0x0e: { // br_table
+					int tableIndex = (int) stack[--stackPointer];
+					int length = code[index];
+					index += 1 + 3 * (compareUnsigned(tableIndex, length) < 0? tableIndex: length);
+					stackPointer = branch(stack, stackPointer, code, index);
+					index = code[index];
+					break;
+				}
+
+				case 0x10: { // call
+					frame.setStackPointer(stackPointer);
+					functions[code[index++]].executeWithNewFrame(frame);
+					stack = frame.getStack();
+					stackPointer = frame.getStackPointer();
+					break;
+				}
+				case 0x11: { // call_indirect
+					int functionIndex = (int) stack[--stackPointer];
+					frame.setStackPointer(stackPointer);
+					caches[code[index + 1]].getFunction(frame.getInstance().getTable(code[index]), functionIndex).executeWithNewFrame(frame);
+					index += 2;
+					stack = frame.getStack();
+					stackPointer = frame.getStackPointer();
+					break;
+				}
+
+				case 0x12: // return_call
+					frame.setStackPointer(stackPointer);
+					frame.returnCall(functions[code[index]]);
+					return;
+				case 0x13: { // return_call_indirect
+					int functionIndex = (int) stack[--stackPointer];
+					frame.setStackPointer(stackPointer);
+					frame.returnCall(caches[code[index + 1]].getFunction(frame.getInstance().getTable(code[index]), functionIndex));
+					return;
+				}
+
+				case 0x1a: // drop
+					stackPointer--;
+					break;
+
+				case 0x20: // local.get
+					stack[stackPointer++] = stack[localBase + code[index++]];
+					break;
+				case 0x21: // local.set
+					stack[localBase + code[index++]] = stack[--stackPointer];
+					break;
+				case 0x23: // global.get
+					stack[stackPointer++] = frame.getInstance().getGlobalVariable(code[index++]).getValue();
+					break;
+				case 0x24: // global.set
+					frame.getInstance().getGlobalVariable(code[index++]).setValue(stack[--stackPointer]);
+					break;
+
+				case 0x28: { // i32.load
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) stack[stackPointer - 1], code[index++], 4);
+					stack[stackPointer - 1] = memory.readInt32(address);
+					break;
+				}
+				case IN_BOUNDS | 0x28: {
+					int address = code[index++] + (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = frame.getInstance().getMemory().readInt32(address);
+					break;
+				}
+				case 0x2c: { // i32.load8_s
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) stack[stackPointer - 1], code[index++], 1);
+					stack[stackPointer - 1] = memory.readInt8(address);
+					break;
+				}
+				case IN_BOUNDS | 0x2c: {
+					int address = code[index++] + (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = frame.getInstance().getMemory().readInt8(address);
+					break;
+				}
+				case 0x2d: { // i32.load8_u
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) stack[stackPointer - 1], code[index++], 1);
+					stack[stackPointer - 1] = memory.readUint8AsInt(address);
+					break;
+				}
+				case IN_BOUNDS | 0x2d: {
+					int address = code[index++] + (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = frame.getInstance().getMemory().readUint8AsInt(address);
+					break;
+				}
+				case 0x2e: { // i32.load16_s
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) stack[stackPointer - 1], code[index++], 2);
+					stack[stackPointer - 1] = memory.readInt16AsInt(address);
+					break;
+				}
+				case IN_BOUNDS | 0x2e: {
+					int address = code[index++] + (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = frame.getInstance().getMemory().readInt16AsInt(address);
+					break;
+				}
+				case 0x2f: { // i32.load16_u
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) stack[stackPointer - 1], code[index++], 2);
+					stack[stackPointer - 1] = memory.readUint16AsInt(address);
+					break;
+				}
+				case IN_BOUNDS | 0x2f: {
+					int address = code[index++] + (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = frame.getInstance().getMemory().readUint16AsInt(address);
+					break;
+				}
+
+				case 0x36: // i32.store
+				case 0x37: // i64.store
+				case 0x38: // f32.store
+				case 0x39: // f64.store
+				case 0x3a: // i32.store8
+				case 0x3b: // i32.store16
+				case 0x3c: // i64.store8
+				case 0x3d: // i64.store16
+				case 0x3e: { // i64.store32
+					Memory memory = frame.getInstance().getMemory();
+					stackPointer -= 2;
+					int address = memory.toEffectiveAddress((int) stack[stackPointer], code[index++], getAccessLength(opcode));
+					store(memory, opcode, address, stack[stackPointer + 1]);
+					break;
+				}
+				case IN_BOUNDS | 0x36:
+				case IN_BOUNDS | 0x37:
+				case IN_BOUNDS | 0x38:
+				case IN_BOUNDS | 0x39:
+				case IN_BOUNDS | 0x3a:
+				case IN_BOUNDS | 0x3b:
+				case IN_BOUNDS | 0x3c:
+				case IN_BOUNDS | 0x3d:
+				case IN_BOUNDS | 0x3e: {
+					stackPointer -= 2;
+					store(frame.getInstance().getMemory(), opcode & ~IN_BOUNDS, code[index++] + (int) stack[stackPointer], stack[stackPointer + 1]);
+					break;
+				}
+
+				case 0x3f: // memory.size
+					stack[stackPointer++] = frame.getInstance().getMemory().getPageLength();
+					break;
+				case 0x40: // memory.grow
+					stack[stackPointer - 1] = frame.getInstance().getMemory().grow((int) stack[stackPointer - 1]);
+					break;
+
+				case 0x41: // i32.const
+				case 0x43: // f32.const
+					stack[stackPointer++] = code[index++];
+					break;
+				case 0x42: // i64.const
+				case 0x44: // f64.const
+					stack[stackPointer++] = (code[index] & 0xffffffffL) | ((long) code[index + 1] << 32);
+					index += 2;
+					break;
+
+				case 0x45: { // i32.eqz
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a == 0? 1: 0;
+					break;
+				}
+				case 0x46: { // i32.eq
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a == b? 1: 0;
+					break;
+				}
+				case 0x47: { // i32.ne
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a != b? 1: 0;
+					break;
+				}
+				case 0x48: { // i32.lt_s
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a < b? 1: 0;
+					break;
+				}
+				case 0x49: { // i32.lt_u
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = compareUnsigned(a, b) < 0? 1: 0;
+					break;
+				}
+				case 0x4a: { // i32.gt_s
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a > b? 1: 0;
+					break;
+				}
+				case 0x4b: { // i32.gt_u
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = compareUnsigned(a, b) > 0? 1: 0;
+					break;
+				}
+				case 0x4c: { // i32.le_s
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a <= b? 1: 0;
+					break;
+				}
+				case 0x4d: { // i32.le_u
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = compareUnsigned(a, b) <= 0? 1: 0;
+					break;
+				}
+				case 0x4e: { // i32.ge_s
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a >= b? 1: 0;
+					break;
+				}
+				case 0x4f: { // i32.ge_u
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = compareUnsigned(a, b) >= 0? 1: 0;
+					break;
+				}
+				case 0x50: { // i64.eqz
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a == 0? 1: 0;
+					break;
+				}
+				case 0x51: { // i64.eq
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a == b? 1: 0;
+					break;
+				}
+				case 0x52: { // i64.ne
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a != b? 1: 0;
+					break;
+				}
+				case 0x53: { // i64.lt_s
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a < b? 1: 0;
+					break;
+				}
+				case 0x54: { // i64.lt_u
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = compareUnsigned(a, b) < 0? 1: 0;
+					break;
+				}
+				case 0x55: { // i64.gt_s
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a > b? 1: 0;
+					break;
+				}
+				case 0x56: { // i64.gt_u
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = compareUnsigned(a, b) > 0? 1: 0;
+					break;
+				}
+				case 0x57: { // i64.le_s
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a <= b? 1: 0;
+					break;
+				}
+				case 0x58: { // i64.le_u
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = compareUnsigned(a, b) <= 0? 1: 0;
+					break;
+				}
+				case 0x59: { // i64.ge_s
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a >= b? 1: 0;
+					break;
+				}
+				case 0x5a: { // i64.ge_u
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = compareUnsigned(a, b) >= 0? 1: 0;
+					break;
+				}
+				case 0x5b: { // f32.eq
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a == b? 1: 0;
+					break;
+				}
+				case 0x5c: { // f32.ne
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a != b? 1: 0;
+					break;
+				}
+				case 0x5d: { // f32.lt
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a < b? 1: 0;
+					break;
+				}
+				case 0x5e: { // f32.gt
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a > b? 1: 0;
+					break;
+				}
+				case 0x5f: { // f32.le
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a <= b? 1: 0;
+					break;
+				}
+				case 0x60: { // f32.ge
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a >= b? 1: 0;
+					break;
+				}
+				case 0x61: { // f64.eq
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a == b? 1: 0;
+					break;
+				}
+				case 0x62: { // f64.ne
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a != b? 1: 0;
+					break;
+				}
+				case 0x63: { // f64.lt
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a < b? 1: 0;
+					break;
+				}
+				case 0x64: { // f64.gt
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a > b? 1: 0;
+					break;
+				}
+				case 0x65: { // f64.le
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a <= b? 1: 0;
+					break;
+				}
+				case 0x66: { // f64.ge
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = a >= b? 1: 0;
+					break;
+				}
+				case 0x67: { // i32.clz
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = numberOfLeadingZeros(a);
+					break;
+				}
+				case 0x68: { // i32.ctz
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = numberOfTrailingZeros(a);
+					break;
+				}
+				case 0x69: { // i32.popcnt
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = bitCount(a);
+					break;
+				}
+				case 0x6a: { // i32.add
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a + b;
+					break;
+				}
+				case 0x6b: { // i32.sub
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a - b;
+					break;
+				}
+				case 0x6c: { // i32.mul
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a * b;
+					break;
+				}
+				case 0x6d: { // i32.div_s
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a / b;
+					break;
+				}
+				case 0x6e: { // i32.div_u
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = divideUnsigned(a, b);
+					break;
+				}
+				case 0x6f: { // i32.rem_s
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a % b;
+					break;
+				}
+				case 0x70: { // i32.rem_u
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = remainderUnsigned(a, b);
+					break;
+				}
+				case 0x71: { // i32.and
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a & b;
+					break;
+				}
+				case 0x72: { // i32.or
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a | b;
+					break;
+				}
+				case 0x73: { // i32.xor
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a ^ b;
+					break;
+				}
+				case 0x74: { // i32.shl
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a << b;
+					break;
+				}
+				case 0x75: { // i32.shr_s
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a >> b;
+					break;
+				}
+				case 0x76: { // i32.shr_u
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a >>> b;
+					break;
+				}
+				case 0x77: { // i32.rotl
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = rotateLeft(a, b);
+					break;
+				}
+				case 0x78: { // i32.rotr
+					int b = (int) stack[--stackPointer];
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = rotateRight(a, b);
+					break;
+				}
+				case 0x79: { // i64.clz
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = numberOfLeadingZeros(a);
+					break;
+				}
+				case 0x7a: { // i64.ctz
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = numberOfTrailingZeros(a);
+					break;
+				}
+				case 0x7b: { // i64.popcnt
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = bitCount(a);
+					break;
+				}
+				case 0x7c: { // i64.add
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a + b;
+					break;
+				}
+				case 0x7d: { // i64.sub
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a - b;
+					break;
+				}
+				case 0x7e: { // i64.mul
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a * b;
+					break;
+				}
+				case 0x7f: { // i64.div_s
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = I64DivS.divide(a, b);
+					break;
+				}
+				case 0x80: { // i64.div_u
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = I64DivU.divide(a, b);
+					break;
+				}
+				case 0x81: { // i64.rem_s
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = I64RemS.remainder(a, b);
+					break;
+				}
+				case 0x82: { // i64.rem_u
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = I64RemU.remainder(a, b);
+					break;
+				}
+				case 0x83: { // i64.and
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a & b;
+					break;
+				}
+				case 0x84: { // i64.or
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a | b;
+					break;
+				}
+				case 0x85: { // i64.xor
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a ^ b;
+					break;
+				}
+				case 0x86: { // i64.shl
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a << b;
+					break;
+				}
+				case 0x87: { // i64.shr_s
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a >> b;
+					break;
+				}
+				case 0x88: { // i64.shr_u
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = a >>> b;
+					break;
+				}
+				case 0x89: { // i64.rotl
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = rotateLeft(a, (int) b);
+					break;
+				}
+				case 0x8a: { // i64.rotr
+					long b = stack[--stackPointer];
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = rotateRight(a, (int) b);
+					break;
+				}
+				case 0x8b: { // f32.abs
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(abs(a));
+					break;
+				}
+				case 0x8c: { // f32.neg
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(-a);
+					break;
+				}
+				case 0x8d: { // f32.ceil
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits((float) ceil(a));
+					break;
+				}
+				case 0x8e: { // f32.floor
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits((float) floor(a));
+					break;
+				}
+				case 0x8f: { // f32.trunc
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(F32Trunc.truncate(a));
+					break;
+				}
+				case 0x90: { // f32.nearest
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits((float) rint(a));
+					break;
+				}
+				case 0x91: { // f32.sqrt
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits((float) sqrt(a));
+					break;
+				}
+				case 0x92: { // f32.add
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(a + b);
+					break;
+				}
+				case 0x93: { // f32.sub
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(a - b);
+					break;
+				}
+				case 0x94: { // f32.mul
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(a * b);
+					break;
+				}
+				case 0x95: { // f32.div
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(a / b);
+					break;
+				}
+				case 0x96: { // f32.min
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(Math.min(a, b));
+					break;
+				}
+				case 0x97: { // f32.max
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(Math.max(a, b));
+					break;
+				}
+				case 0x98: { // f32.copysign
+					float b = intBitsToFloat((int) stack[--stackPointer]);
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = floatToRawIntBits(copySign(a, b));
+					break;
+				}
+				case 0x99: { // f64.abs
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(abs(a));
+					break;
+				}
+				case 0x9a: { // f64.neg
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(-a);
+					break;
+				}
+				case 0x9b: { // f64.ceil
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(ceil(a));
+					break;
+				}
+				case 0x9c: { // f64.floor
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(floor(a));
+					break;
+				}
+				case 0x9d: { // f64.trunc
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(F64Trunc.truncate(a));
+					break;
+				}
+				case 0x9e: { // f64.nearest
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(rint(a));
+					break;
+				}
+				case 0x9f: { // f64.sqrt
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(sqrt(a));
+					break;
+				}
+				case 0xa0: { // f64.add
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(a + b);
+					break;
+				}
+				case 0xa1: { // f64.sub
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(a - b);
+					break;
+				}
+				case 0xa2: { // f64.mul
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(a * b);
+					break;
+				}
+				case 0xa3: { // f64.div
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(a / b);
+					break;
+				}
+				case 0xa4: { // f64.min
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(Math.min(a, b));
+					break;
+				}
+				case 0xa5: { // f64.max
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(Math.max(a, b));
+					break;
+				}
+				case 0xa6: { // f64.copysign
+					double b = longBitsToDouble(stack[--stackPointer]);
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits(copySign(a, b));
+					break;
+				}
+				case 0xa7: { // i32.wrap_i64
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = (int) a;
+					break;
+				}
+				case 0xa8: { // i32.trunc_f32_s
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = (int) a;
+					break;
+				}
+				case 0xa9: { // i32.trunc_f32_u
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = (int) a;
+					break;
+				}
+				case 0xaa: { // i32.trunc_f64_s
+					double a = longBitsToDouble(stack[stackPointer - 1]);
+					stack[stackPointer - 1] = (int) a;
+					break;
+				}
+				case 0xac: { // i64.extend_i32_s
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = (long) a;
+					break;
+				}
+				case 0xad: { // i64.extend_i32_u
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = a & 0xffffffffL;
+					break;
+				}
+				case 0xb7: { // f64.convert_i32_s
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = doubleToRawLongBits((double) a);
+					break;
+				}
+				case 0xb8: { // f64.convert_i32_u
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = doubleToRawLongBits((double) (a & 0xffffffffL));
+					break;
+				}
+				case 0xba: { // f64.convert_i64_u
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = doubleToRawLongBits(F64ConvertI64U.fromUint64ToF64(a));
+					break;
+				}
+				case 0xbb: { // f64.promote_f32
+					float a = intBitsToFloat((int) stack[stackPointer - 1]);
+					stack[stackPointer - 1] = doubleToRawLongBits((double) a);
+					break;
+				}
+				case 0xc0: { // i32.extend8_s
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = (byte) a;
+					break;
+				}
+				case 0xc1: { // i32.extend16_s
+					int a = (int) stack[stackPointer - 1];
+					stack[stackPointer - 1] = (short) a;
+					break;
+				}
+				case 0xc2: { // i64.extend8_s
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = (byte) a;
+					break;
+				}
+				case 0xc3: { // i64.extend16_s
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = (short) a;
+					break;
+				}
+				case 0xc4: { // i64.extend32_s
+					long a = stack[stackPointer - 1];
+					stack[stackPointer - 1] = (int) a;
+					break;
+				}
+
+				default:
+					throw new UnsupportedOperationException("not implemented instruction: instruction = 0x" + toHexString(opcode));
+			}
+		}
+		frame.setStackPointer(stackPointer);
+	}
+
+	// Moves the kept values of a branch target (index, keep length, drop length) over the dropped ones and returns the new stack
+	// pointer
+	private static int branch(long[] stack, int stackPointer, int[] code, int index) {
+		int keepLength = code[index + 1];
+		int dropLength = code[index + 2];
+		if (dropLength != 0) {
+			System.arraycopy(stack, stackPointer - keepLength, stack, stackPointer - keepLength - dropLength, keepLength);
+		}
+		return stackPointer - dropLength;
+	}
+
+	// Floats are stored as their raw bits like on the operand stack
+	static void store(Memory memory, int opcode, int address, long value) {
+		switch (opcode) {
+			case 0x36: // i32.store
+			case 0x38: // f32.store
+			case 0x3e: // i64.store32
+				memory.writeInt32(address, (int) value);
+				break;
+			case 0x37: // i64.store
+			case 0x39: // f64.store
+				memory.writeInt64(address, value);
+				break;
+			case 0x3a: // i32.store8
+			case 0x3c: // i64.store8
+				memory.writeInt8(address, (byte) value);
+				break;
+			default: // i32.store16 and i64.store16
+				memory.writeInt16(address, (short) value);
+				break;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import jp.hisano.wasm.interpreter.Module.Function;
+import jp.hisano.wasm.interpreter.Module.FunctionType;
+
+import static java.lang.Integer.max;
+import static java.lang.Integer.toHexString;
+import static jp.hisano.wasm.interpreter.Module.toResultLength;
+import static jp.hisano.wasm.interpreter.Parser.getStackEffect;
+import static jp.hisano.wasm.interpreter.Parser.toValueType;
+
+// Lowers a function body into the int[] code of FlatCode, resolving branches in the same way as Parser does for FunctionBlock
+final class FlatCodeCompiler {
+	private final Module module;
+	private final Function function;
+	private final ByteBuffer byteBuffer;
+	private final BitSet inBoundsAccesses;
+
+	private int[] code = new int[64];
+	private int codeLength;
+	private final List<Function> functions = new ArrayList<>();
+	private final List<CallIndirectCache> caches = new ArrayList<>();
+
+	private final LinkedList<Label> labels = new LinkedList<>();
+	private int stackHeight;
+	private int maxStackHeight;
+
+	FlatCodeCompiler(Module module, Function function) {
+		this.module = module;
+		this.function = function;
+		byteBuffer = function.readInstructions();
+		inBoundsAccesses = BoundsCheckAnalyzer.analyze(module, function.readInstructions());
+	}
+
+	FlatCode compile() {
+		labels.push(new Label(false, 0, function.returnTypes.length, 0));
+		while (!labels.isEmpty()) {
+			int index = byteBuffer.getReadIndex();
+			compileInstruction(byteBuffer.readUint8AsInt(), inBoundsAccesses.get(index));
+		}
+		return new FlatCode(Arrays.copyOf(code, codeLength), functions.toArray(new Function[functions.size()]), caches.toArray(new CallIndirectCache[caches.size()]), maxStackHeight);
+	}
+
+	private void compileInstruction(int opcode, boolean isInBounds) {
+		switch (opcode) {
+			case 0x02:
+			case 0x03: {
+				int resultLength = toResultLength(toValueType(byteBuffer.readVarsint7()));
+				labels.push(new Label(opcode == 0x03, stackHeight, resultLength, codeLength));
+				return;
+			}
+			case 0x04: {
+				int resultLength = toResultLength(toValueType(byteBuffer.readVarsint7()));
+				stackHeight--;
+				Label label = new Label(false, stackHeight, resultLength, codeLength);
+				emit(0x04);
+				label.elseIndex = codeLength;
+				emit(0);
+				labels.push(label);
+				return;
+			}
+			case 0x05: {
+				Label label = labels.peek();
+				emit(0x05);
+				label.endIndices.add(codeLength);
+				emit(0);
+				code[label.elseIndex] = codeLength;
+				label.elseIndex = -1;
+				stackHeight = label.entryStackHeight;
+				return;
+			}
+			case 0x0b: {
+				Label label = labels.pop();
+				if (label.elseIndex != -1) {
+					code[label.elseIndex] = codeLength;
+				}
+				for (int index : label.endIndices) {
+					code[index] = codeLength;
+				}
+				stackHeight = label.entryStackHeight + label.resultLength;
+				return;
+			}
+
+			case 0x0c:
+				emit(0x0c);
+				emitBranchTarget(byteBuffer.readVaruint32());
+				return;
+			case 0x0d:
+				stackHeight--;
+				emit(0x0d);
+				emitBranchTarget(byteBuffer.readVaruint32());
+				return;
+			case 0x0e: {
+				stackHeight--;
+				int[] depths = byteBuffer.readVaruint32Array();
+				emit(0x0e);
+				emit(depths.length);
+				for (int depth : depths) {
+					emitBranchTarget(depth);
+				}
+				emitBranchTarget(byteBuffer.readVaruint32());
+				return;
+			}
+			case 0x0f:
+				// return is a branch to the label of the function
+				emit(0x0c);
+				emitBranchTarget(labels.size() - 1);
+				return;
+
+			case 0x10: {
+				Function function = module.getFunction(byteBuffer.readVaruint32());
+				emit(0x10);
+				emit(functions.size());
+				functions.add(function);
+				updateStackHeight(function.returnTypes.length - function.parameterTypes.length);
+				return;
+			}
+			case 0x11: {
+				int typeIndex = byteBuffer.readVaruint32();
+				FunctionType functionType = module.getFunctionType(typeIndex);
+				emit(0x11);
+				emit(byteBuffer.readVaruint32());
+				emit(caches.size());
+				caches.add(new CallIndirectCache(module, typeIndex));
+				updateStackHeight(functionType.returnTypes.length - functionType.parameterTypes.length - 1);
+				return;
+			}
+			case 0x12: {
+				Function function = module.getFunction(byteBuffer.readVaruint32());
+				emit(0x12);
+				emit(functions.size());
+				functions.add(function);
+				updateStackHeight(-function.parameterTypes.length);
+				return;
+			}
+			case 0x13: {
+				int typeIndex = byteBuffer.readVaruint32();
+				FunctionType functionType = module.getFunctionType(typeIndex);
+				emit(0x13);
+				emit(byteBuffer.readVaruint32());
+				emit(caches.size());
+				caches.add(new CallIndirectCache(module, typeIndex));
+				updateStackHeight(-functionType.parameterTypes.length - 1);
+				return;
+			}
+
+			case 0x20:
+			case 0x21:
+			case 0x22:
+			case 0x23:
+			case 0x24:
+				emit(opcode);
+				emit(byteBuffer.readVaruint32());
+				break;
+
+			case 0x3f:
+			case 0x40:
+				byteBuffer.readByte();
+				emit(opcode);
+				break;
+
+			case 0x41:
+				emit(opcode);
+				emit(byteBuffer.readVarsint32());
+				break;
+			case 0x42:
+				emit(opcode);
+				emitLong(byteBuffer.readVarsint64());
+				break;
+			case 0x43:
+				emit(opcode);
+				emit(byteBuffer.readInt32());
+				break;
+			case 0x44:
+				emit(opcode);
+				emitLong(byteBuffer.readInt64());
+				break;
+
+			case 0xd0:
+				byteBuffer.readVarsint7();
+				emit(opcode);
+				break;
+
+			default:
+				if (0x28 <= opcode && opcode <= 0x3e) {
+					// memory instructions: the alignment hint is not needed for execution
+					byteBuffer.readVaruint32();
+					emit(isInBounds? FlatCode.IN_BOUNDS | opcode: opcode);
+					emit(byteBuffer.readVaruint32());
+				} else if (opcode <= 0x01 || opcode == 0x1a || opcode == 0x1b || (0x45 <= opcode && opcode <= 0xc4) || opcode == 0xd1) {
+					// instructions without immediates
+					emit(opcode);
+				} else {
+					// The immediates are unknown, so the rest of the body cannot be read
+					throw new UnsupportedOperationException("not implemented instruction: instruction = 0x" + toHexString(opcode));
+				}
+				break;
+		}
+		updateStackHeight(getStackEffect(opcode));
+	}
+
+	private void emitBranchTarget(int depth) {
+		Label label = labels.get(depth);
+		int keepLength = label.isLoop? 0: label.resultLength;
+		if (label.isLoop) {
+			emit(label.startIndex);
+		} else {
+			label.endIndices.add(codeLength);
+			emit(0);
+		}
+		emit(keepLength);
+		// Heights are not tracked exactly in unreachable code, where the branch is never taken
+		emit(max(0, stackHeight - label.entryStackHeight - keepLength));
+	}
+
+	private void emitLong(long value) {
+		emit((int) value);
+		emit((int) (value >>> 32));
+	}
+
+	private void emit(int value) {
+		if (codeLength == code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[codeLength++] = value;
+	}
+
+	private void updateStackHeight(int delta) {
+		stackHeight += delta;
+		if (maxStackHeight < stackHeight) {
+			maxStackHeight = stackHeight;
+		}
+	}
+
+	private static final class Label {
+		private final boolean isLoop;
+		private final int entryStackHeight;
+		private final int resultLength;
+		private final int startIndex;
+
+		private final List<Integer> endIndices = new ArrayList<>();
+		private int elseIndex = -1;
+
+		Label(boolean isLoop, int entryStackHeight, int resultLength, int startIndex) {
+			this.isLoop = isLoop;
+			this.entryStackHeight = entryStackHeight;
+			this.resultLength = resultLength;
+			this.startIndex = startIndex;
+		}
+	}
+}
@@ -1,103 +1,230 @@
 package jp.hisano.wasm.interpreter;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Stack;
+import java.util.Arrays;
 
 import jp.hisano.wasm.interpreter.Module.Function;
-import jp.hisano.wasm.interpreter.Module.ValueType;
 
-final class Frame {
-	private final Instance instance;
-	private final LocalVariable[] localVariables;
+import static java.lang.Double.*;
+import static java.lang.Float.*;
 
-	private final Stack<Value> stack = new Stack<>();
+final class Frame {
+	// Constant expressions (global initializers and segment offsets) always produce a single value
+	private static final int CONSTANT_EXPRESSION_STACK_HEIGHT = 1;
+
+	private final ValueStack valueStack;
+	private Instance instance;
+	private Configuration configuration;
+
+	// Values are stored untyped: i32 is sign extended, f32 and f64 are stored as their raw bits.
+	// The locals start at localBase of the slots of the ValueStack and the operand stack follows them.
+	private int localBase;
+	private int stackPointer;
+	// Top of the ValueStack before this frame, which is restored when the frame exits
+	private int previousTop;
+	private int callDepth;
+
+	private int programCounter;
+	// Counted for tiered execution
+	private int backEdgeCount;
+
+	// Reused for the calls from this frame, so that calls do not allocate frames
+	private Frame callee;
+	// Set by return_call and return_call_indirect
+	private Function tailCallee;
+
+	Frame(Instance instance) {
+		this.instance = instance;
+		valueStack = new ValueStack(CONSTANT_EXPRESSION_STACK_HEIGHT);
+		valueStack.setTop(CONSTANT_EXPRESSION_STACK_HEIGHT);
+	}
 
+	// Pushes a frame onto the ValueStack of the current thread. The caller sets the arguments and calls exit.
 	Frame(Instance instance, Function function) {
+		valueStack = ValueStack.current();
+		enter(instance, function, valueStack.getTop(), 0);
+	}
+
+	private Frame(ValueStack valueStack) {
+		this.valueStack = valueStack;
+	}
+
+	private void enter(Instance instance, Function function, int localBase, int initializedLength) {
+		Configuration configuration = function.getConfiguration();
+		int callDepth = valueStack.getCallDepth() + 1;
+		int localVariableLength = function.getLocalVariableLength();
+		int top = localBase + localVariableLength + function.getMaxStackHeight();
+		if (configuration.getMaxCallDepth() < callDepth || configuration.getMaxValueStackSize() < top) {
+			throw new TrapException("call stack exhausted");
+		}
+
 		this.instance = instance;
+		this.configuration = configuration;
+		this.localBase = localBase;
+		this.callDepth = callDepth;
+		previousTop = valueStack.getTop();
+		valueStack.setTop(top);
+		valueStack.setCallDepth(callDepth);
+		Arrays.fill(valueStack.getSlots(), localBase + initializedLength, localBase + localVariableLength, 0);
+		stackPointer = localBase + localVariableLength;
+		programCounter = 0;
+		backEdgeCount = 0;
+	}
+
+	// Starts the frame of a call. The arguments on the top of the operand stack become the first locals of the callee.
+	Frame enterCall(Function function) {
+		Frame callee = this.callee;
+		if (callee == null) {
+			callee = new Frame(valueStack);
+			this.callee = callee;
+		}
+		int parameterLength = function.parameterTypes.length;
+		stackPointer -= parameterLength;
+		callee.enter(instance, function, stackPointer, parameterLength);
+		return callee;
+	}
+
+	// Replaces the arguments with the results on the top of the operand stack of the callee
+	void exitCall(Frame callee, int resultLength) {
+		if (resultLength != 0) {
+			long[] slots = valueStack.getSlots();
+			slots[stackPointer++] = slots[callee.stackPointer - 1];
+		}
+		callee.exit();
+	}
+
+	// Ends the execution of the code. The function which invoked it executes the callee in this frame instead of returning.
+	void returnCall(Function callee) {
+		tailCallee = callee;
+		programCounter = Integer.MAX_VALUE;
+	}
+
+	// Replaces this frame with the one of the callee of return_call, whose arguments are on the top of the operand stack.
+	// Returns null when the code has returned normally.
+	Function enterTailCall() {
+		Function callee = tailCallee;
+		if (callee == null) {
+			return null;
+		}
+		tailCallee = null;
+		int parameterLength = callee.parameterTypes.length;
+		long[] slots = valueStack.getSlots();
+		System.arraycopy(slots, stackPointer - parameterLength, slots, localBase, parameterLength);
+		exit();
+		enter(instance, callee, localBase, parameterLength);
+		return callee;
+	}
+
+	void exit() {
+		valueStack.setTop(previousTop);
+		valueStack.setCallDepth(callDepth - 1);
+	}
 
-		if (function == null) {
-			localVariables = new LocalVariable[0];
-		} else {
-			List<LocalVariable> localVariables = new LinkedList<>();
-			for (int i = 0, length = function.parameterTypes.length; i < length; i++) {
-				localVariables.add(new LocalVariable(function.parameterTypes[i]));
-			}
-			for (int i = 0, length = function.locals.length; i < length; i++) {
-				for (int j = 0; j < function.locals[i].getCount(); j++) {
-					localVariables.add(new LocalVariable(function.locals[i].getType()));
-				}
-			}
-			this.localVariables = localVariables.toArray(new LocalVariable[localVariables.size()]);
+	// Counts a call between JVM compiled functions, which passes the arguments on the JVM stack and shares this frame.
+	// The depth is not restored when the callee traps, since exit of the frame restores it.
+	void enterDirectCall() {
+		int callDepth = valueStack.getCallDepth() + 1;
+		if (configuration.getMaxCallDepth() < callDepth) {
+			throw new TrapException("call stack exhausted");
 		}
+		valueStack.setCallDepth(callDepth);
+	}
+
+	void exitDirectCall() {
+		valueStack.setCallDepth(valueStack.getCallDepth() - 1);
 	}
 
 	Instance getInstance() {
 		return instance;
 	}
 
-	Value pop() {
-		return stack.pop();
+	long pop() {
+		return valueStack.getSlots()[--stackPointer];
+	}
+
+	int popI32() {
+		return (int) pop();
+	}
+
+	long popI64() {
+		return pop();
+	}
+
+	float popF32() {
+		return intBitsToFloat((int) pop());
+	}
+
+	double popF64() {
+		return longBitsToDouble(pop());
+	}
+
+	void push(long value) {
+		valueStack.getSlots()[stackPointer++] = value;
 	}
 
 	void pushI32(int i32Value) {
-		stack.push(new Value(i32Value));
+		push(i32Value);
 	}
 
 	void pushI64(long i64Value) {
-		stack.push(new Value(i64Value));
+		push(i64Value);
 	}
 
 	void pushF32(float f32Value) {
-		stack.push(new Value(f32Value));
+		push(floatToRawIntBits(f32Value));
 	}
 
 	void pushF64(double f64Value) {
-		stack.push(new Value(f64Value));
+		push(doubleToRawLongBits(f64Value));
 	}
 
-	LocalVariable getLocalVariable(int index) {
-		return localVariables[index];
+	// The slots of the locals and the operand stack, which are indexed from getLocalBase() and by the stack pointer.
+	// They are replaced when a call grows the ValueStack.
+	long[] getStack() {
+		return valueStack.getSlots();
 	}
 
-	void throwExceptionToExitBlock(int depth) {
-		throw new ExceptionToExitBlock(depth);
+	int getLocalBase() {
+		return localBase;
 	}
 
-	static class ExceptionToExitBlock extends RuntimeException {
-		private int depth;
-
-		private ExceptionToExitBlock(int depth) {
-			this.depth = depth;
-		}
+	int getStackPointer() {
+		return stackPointer;
+	}
 
-		boolean isMoreExitRequired() {
-			return depth != 0;
-		}
+	void setStackPointer(int stackPointer) {
+		this.stackPointer = stackPointer;
+	}
 
-		void decrementDepth() {
-			depth--;
-		}
+	int fetchInstructionIndex() {
+		return programCounter++;
 	}
 
-	void throwExceptionToReturn() {
-		throw new ExceptionToReturn();
+	void jump(int index) {
+		programCounter = index;
 	}
 
-	static class ExceptionToReturn extends RuntimeException {
-		private ExceptionToReturn() {
+	// Keeps the top keepLength values and drops the dropLength values below them before jumping
+	void branch(int index, int keepLength, int dropLength) {
+		if (dropLength != 0) {
+			long[] slots = valueStack.getSlots();
+			System.arraycopy(slots, stackPointer - keepLength, slots, stackPointer - keepLength - dropLength, keepLength);
+			stackPointer -= dropLength;
 		}
+		if (index < programCounter) {
+			backEdgeCount++;
+		}
+		programCounter = index;
 	}
 
-	static class LocalVariable {
-		private final Value value;
+	int getBackEdgeCount() {
+		return backEdgeCount;
+	}
 
-		LocalVariable(ValueType type) {
-			value = new Value(type);
-		}
+	long getLocalVariable(int index) {
+		return valueStack.getSlots()[localBase + index];
+	}
 
-		Value getValue() {
-			return value;
-		}
+	void setLocalVariable(int index, long value) {
+		valueStack.getSlots()[localBase + index] = value;
 	}
 }
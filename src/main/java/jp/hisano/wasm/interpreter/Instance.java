@@ -1,10 +1,16 @@
 package jp.hisano.wasm.interpreter;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import jp.hisano.wasm.interpreter.Module.Function;
 import jp.hisano.wasm.interpreter.Module.GlobalVariableType;
 import jp.hisano.wasm.interpreter.Module.Instruction;
+import jp.hisano.wasm.interpreter.Module.ValueType;
+import static jp.hisano.wasm.interpreter.Module.ValueType.*;
 
 public final class Instance {
 	private final Module module;
@@ -24,6 +30,26 @@ public final class Instance {
 		prepareGlobalVariables();
 	}
 
+	// Creates a fork which shares the memory pages of the snapshot copy-on-write
+	private Instance(Module module, Snapshot snapshot) {
+		this.module = module;
+
+		tables = module.getTableTypes().stream().map(tableType -> new Table(module, tableType)).collect(Collectors.toList());
+		for (int i = 0; i < tables.size(); i++) {
+			tables.get(i).restore(snapshot.tableSnapshots.get(i));
+		}
+
+		memories = new ArrayList<>();
+		for (int i = 0; i < snapshot.memorySnapshots.size(); i++) {
+			memories.add(Memory.fork(snapshot.memorySnapshots.get(i), module.getMemoryTypes().get(i).getMaximumPageLength()));
+		}
+
+		globalVariables = module.getGlobalVariableTypes().stream().map(GlobalVariable::new).collect(Collectors.toList());
+		for (int i = 0; i < globalVariables.size(); i++) {
+			globalVariables.get(i).setValue(snapshot.globalValues[i]);
+		}
+	}
+
 	private List<Table> createTables() {
 		List<Table> tables = module.getTableTypes().stream().map(tableType -> new Table(module, tableType)).collect(Collectors.toList());
 		module.getElementTypes().stream().forEach(elementType -> {
@@ -35,8 +61,18 @@ public final class Instance {
 	}
 
 	private List<Memory> createMemories() {
+		Configuration configuration = module.getConfiguration();
 		return module.getMemoryTypes().stream().map(memoryType -> {
-			Memory memory = new Memory(memoryType.getMinimumPageLength(), memoryType.getMaximumPageLength());
+			if (configuration.getMemoryImage() != null) {
+				// The image is the initialized memory, so the data segments are not written again
+				try {
+					return Memory.map(configuration.getMemoryImage(), configuration.getMemoryImageMapMode(), memoryType.getMinimumPageLength(), memoryType.getMaximumPageLength());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			Memory memory = new Memory(memoryType.getMinimumPageLength(), memoryType.getMaximumPageLength(), configuration.isDirectMemory());
 			memoryType.getData().stream().forEach(data -> {
 				int offset = getOffset(data.getOffsetInstructions());
 				memory.setData(offset, data.getData());
@@ -46,31 +82,35 @@ public final class Instance {
 	}
 
 	private int getOffset(List<Instruction> offsetInstructions) {
-		Frame frame = new Frame(Instance.this, null);
+		Frame frame = new Frame(Instance.this);
 		offsetInstructions.forEach(instruction -> {
 			instruction.execute(frame);
 		});
-		int offset = frame.pop().getI32();
+		int offset = frame.popI32();
 		return offset;
 	}
 
 	private void prepareGlobalVariables() {
 		globalVariables.stream().forEach(globalVariable -> {
 			GlobalVariableType type = globalVariable.getType();
-			if (type.getType() == Module.ValueType.I32) {
+			if (isNumberType(type.getType())) {
 				List<Instruction> instructions = type.getInstructions();
 				// モジュールでインポートされたGlobalはスキップ
 				if (!instructions.isEmpty()) {
-					Frame frame = new Frame(Instance.this, null);
+					Frame frame = new Frame(Instance.this);
 					instructions.forEach(instruction -> {
 						instruction.execute(frame);
 					});
-					globalVariable.getValue().setI32(frame.pop().getI32());
+					globalVariable.setValue(frame.pop());
 				}
 			}
 		});
 	}
 
+	private static boolean isNumberType(ValueType type) {
+		return type == I32 || type == I64 || type == F32 || type == F64;
+	}
+
 	public <T> T invoke(String name, Object... parameters) {
 		return module.getExportedFunction(name).invoke(this, parameters);
 	}
@@ -91,21 +131,91 @@ public final class Instance {
 		return globalVariables.get(index);
 	}
 
+	// Captures the tables, the memories and the global variables. Memories which are not written since their last snapshot are
+	// not copied again.
+	public Snapshot snapshot() {
+		List<Function[]> tableSnapshots = tables.stream().map(Table::snapshot).collect(Collectors.toList());
+		List<Memory.Snapshot> memorySnapshots = memories.stream().map(Memory::snapshot).collect(Collectors.toList());
+		long[] globalValues = globalVariables.stream().mapToLong(GlobalVariable::getValue).toArray();
+		return new Snapshot(module, tableSnapshots, memorySnapshots, globalValues);
+	}
+
+	// Creates an instance in the current state of this instance. Its memory pages are shared until either of them writes them.
+	// The memory keeps its snapshot file while it is not written, so that the forks after the first one do not copy it again.
+	public Instance fork() {
+		try (Snapshot snapshot = snapshot()) {
+			return snapshot.fork();
+		}
+	}
+
+	// Restores the state when the snapshot was taken. Only the memory pages written since then are copied.
+	void restore(Snapshot snapshot) {
+		for (int i = 0; i < tables.size(); i++) {
+			tables.get(i).restore(snapshot.tableSnapshots.get(i));
+		}
+		for (int i = 0; i < memories.size(); i++) {
+			memories.get(i).restore(snapshot.memorySnapshots.get(i));
+		}
+		for (int i = 0; i < globalVariables.size(); i++) {
+			globalVariables.get(i).setValue(snapshot.globalValues[i]);
+		}
+	}
+
+	public static final class Snapshot implements AutoCloseable {
+		private final Module module;
+		private final List<Function[]> tableSnapshots;
+		private final List<Memory.Snapshot> memorySnapshots;
+		private final long[] globalValues;
+		private boolean isClosed;
+
+		private Snapshot(Module module, List<Function[]> tableSnapshots, List<Memory.Snapshot> memorySnapshots, long[] globalValues) {
+			this.module = module;
+			this.tableSnapshots = tableSnapshots;
+			this.memorySnapshots = memorySnapshots;
+			this.globalValues = globalValues;
+			memorySnapshots.forEach(Memory.Snapshot::retain);
+		}
+
+		// Creates an instance in the state of the snapshot. Forks can be created from a snapshot any number of times until it is closed.
+		public synchronized Instance fork() {
+			if (isClosed) {
+				throw new IllegalStateException("snapshot is closed");
+			}
+			return new Instance(module, this);
+		}
+
+		// Releases the files which the memories are mapped from, unless the memories of the instance and its forks are still
+		// in the state of the snapshot. The forks created so far are not affected.
+		@Override
+		public synchronized void close() {
+			if (isClosed) {
+				return;
+			}
+			isClosed = true;
+			memorySnapshots.forEach(Memory.Snapshot::release);
+		}
+	}
+
 	static class GlobalVariable {
 		private final GlobalVariableType type;
-		private final Value value;
+
+		// Stored untyped in the same representation as the operand stack of Frame
+		private long value;
 
 		GlobalVariable(GlobalVariableType type) {
 			this.type = type;
-			value = new Value(type.getType());
 		}
 
 		GlobalVariableType getType() {
 			return type;
 		}
 
-		Value getValue() {
+		long getValue() {
 			return value;
 		}
+
+		void setValue(long value) {
+			this.value = value;
+		}
 	}
 }
@@ -0,0 +1,37 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Reuses instances of a module. A released instance is restored to the state just after its instantiation by copying back
+// only the memory pages written while it was used.
+public final class InstancePool {
+	private final Module module;
+	private final Instance.Snapshot snapshot;
+	private final Queue<Instance> idleInstances = new ConcurrentLinkedQueue<>();
+
+	public InstancePool(Module module) {
+		this.module = module;
+
+		Instance instance = new Instance(module);
+		snapshot = instance.snapshot();
+		idleInstances.add(instance);
+	}
+
+	public Instance acquire() {
+		Instance instance = idleInstances.poll();
+		if (instance == null) {
+			instance = new Instance(module);
+		}
+		return instance;
+	}
+
+	public void release(Instance instance) {
+		if (instance.getModule() != module) {
+			throw new IllegalArgumentException("instance of another module");
+		}
+		// A new instance is in the same state as the snapshot, so the pages written by its data segments are just copied again
+		instance.restore(snapshot);
+		idleInstances.add(instance);
+	}
+}
@@ -4,7 +4,16 @@ public final class Interpreter {
 	private final Instance instance;
 
 	public Interpreter(byte[] wasmFileContent) {
-		instance = new Instance(new Module(wasmFileContent));
+		this(wasmFileContent, new Configuration());
+	}
+
+	public Interpreter(byte[] wasmFileContent, Configuration configuration) {
+		this(new Module(wasmFileContent, configuration));
+	}
+
+	// Creates a new instance of the module, which is not parsed again
+	public Interpreter(Module module) {
+		instance = new Instance(module);
 	}
 
 	public <T> T invoke(String name, Object... parameters) {
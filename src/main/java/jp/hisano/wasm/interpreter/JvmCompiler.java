@@ -0,0 +1,1610 @@
+package jp.hisano.wasm.interpreter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.hisano.wasm.interpreter.ClassFileWriter.MethodWriter;
+import jp.hisano.wasm.interpreter.Module.Code;
+import jp.hisano.wasm.interpreter.Module.Function;
+import jp.hisano.wasm.interpreter.Module.FunctionType;
+import jp.hisano.wasm.interpreter.Module.Local;
+import jp.hisano.wasm.interpreter.Module.ValueType;
+
+import static jp.hisano.wasm.interpreter.ClassFileWriter.*;
+import static jp.hisano.wasm.interpreter.Module.ValueType.*;
+import static jp.hisano.wasm.interpreter.Parser.skipImmediates;
+import static jp.hisano.wasm.interpreter.Parser.toValueType;
+
+// Compiles a function body into a static method of a generated class. Locals are mapped onto JVM locals and the operand stack onto the JVM operand stack.
+final class JvmCompiler {
+	private static final String PACKAGE = "jp/hisano/wasm/interpreter/";
+	private static final String FRAME = PACKAGE + "Frame";
+	private static final String INSTANCE = PACKAGE + "Instance";
+	private static final String GLOBAL_VARIABLE = PACKAGE + "Instance$GlobalVariable";
+	private static final String MEMORY = PACKAGE + "Memory";
+	private static final String TABLE = PACKAGE + "Table";
+	private static final String CALL_INDIRECT_CACHE = PACKAGE + "CallIndirectCache";
+	private static final String FUNCTION = PACKAGE + "Module$Function";
+	private static final String CODE = PACKAGE + "Module$Code";
+	private static final String INTERPRETER_EXCEPTION = PACKAGE + "InterpreterException";
+	private static final String INTERPRETER_EXCEPTION_TYPE = PACKAGE + "InterpreterException$Type";
+
+	private static final String FUNCTIONS_FIELD = "functions";
+	private static final String FUNCTIONS_DESCRIPTOR = "[L" + FUNCTION + ";";
+	private static final String CACHES_FIELD = "caches";
+	private static final String CACHES_DESCRIPTOR = "[L" + CALL_INDIRECT_CACHE + ";";
+
+	private static final String INDEX_FIELD = "index";
+
+	// A call between the functions of a generated class is compiled into invokestatic, which the JIT compiler can inline.
+	// Such calls do not enter a Frame, so they are counted against the max call depth but not against the max value stack
+	// size, and only the callees whose JVM frames are not larger than this are called directly.
+	private static final int MAX_DIRECT_CALLEE_FRAME_SIZE = 256;
+	// Bounds of a generated class below the limits of the class file format
+	private static final int MAX_CLASS_FUNCTION_LENGTH = 1024;
+	private static final int MAX_CLASS_CONSTANT_COUNT = 0xf000;
+	private static final int MAX_EXECUTE_CODE_LENGTH = 0xf000;
+
+	private static final AtomicInteger classCount = new AtomicInteger();
+
+	private final Module module;
+	private final Function function;
+	private final GeneratingClass generatingClass;
+	private final ByteBuffer byteBuffer;
+	private final BitSet inBoundsAccesses;
+
+	private final ClassFileWriter classFile;
+	private final MethodWriter method = new MethodWriter();
+
+	private final ValueType[] localTypes;
+	private final int[] localSlots;
+	// The memory of the instance is loaded into this slot once when the function accesses it
+	private final int memorySlot;
+	private final int temporarySlot;
+	private int maxLocals;
+
+	private final List<ValueType> stack = new ArrayList<>();
+	private int stackSlotLength;
+	private int maxStackSlotLength;
+	// The arguments of the calls through frames are pushed onto the operand stack of the frame
+	private int maxArgumentLength;
+	private int callCount;
+	private boolean isAccessingMemory;
+
+	private final LinkedList<Label> labels = new LinkedList<>();
+	private int opcodeIndex;
+	private boolean isUnreachable;
+	// Depth of the blocks skipped in unreachable code
+	private int unreachableDepth;
+
+	private JvmCompiler(Module module, Function function, GeneratingClass generatingClass) {
+		this.module = module;
+		this.function = function;
+		this.generatingClass = generatingClass;
+		byteBuffer = function.readInstructions();
+		inBoundsAccesses = BoundsCheckAnalyzer.analyze(module, function.readInstructions());
+		classFile = generatingClass.classFile;
+
+		localTypes = new ValueType[function.getLocalVariableLength()];
+		System.arraycopy(function.parameterTypes, 0, localTypes, 0, function.parameterTypes.length);
+		int index = function.parameterTypes.length;
+		for (Local local : function.locals) {
+			for (int i = 0; i < local.getCount(); i++) {
+				localTypes[index++] = local.getType();
+			}
+		}
+
+		// slot 0 is the Instance and slot 1 is the Frame
+		localSlots = new int[localTypes.length];
+		int slot = 2;
+		for (int i = 0; i < localTypes.length; i++) {
+			localSlots[i] = slot;
+			slot += getSlotLength(localTypes[i]);
+		}
+		memorySlot = slot;
+		temporarySlot = slot + 1;
+		maxLocals = temporarySlot;
+	}
+
+	// Returns null when the function uses an instruction which is not supported yet
+	static Code compile(Module module, Function function) {
+		List<GeneratedClass> generatedClasses = generate(module, Collections.singletonList(function));
+		return generatedClasses.isEmpty()? null: generatedClasses.get(0).define()[0];
+	}
+
+	// Compiles the functions into as few classes as possible, so that the calls between them are direct. The functions which use
+	// instructions not supported yet are left out. The classes are defined separately so that CodeCache can store them.
+	static List<GeneratedClass> generate(Module module, List<Function> functions) {
+		// Each function is compiled alone first to find the ones which can be compiled and the sizes of their methods
+		List<JvmCompiler> compilers = new ArrayList<>();
+		for (Function function : functions) {
+			if (!function.hasBody()) {
+				continue;
+			}
+			JvmCompiler compiler = new JvmCompiler(module, function, new GeneratingClass(PACKAGE + "JvmCode"));
+			try {
+				compiler.compileMethod("run");
+			} catch (UnsupportedOperationException e) {
+				continue;
+			}
+			compilers.add(compiler);
+		}
+
+		Map<Function, Integer> functionIndices = new IdentityHashMap<>();
+		for (Function function : module.getFunctions()) {
+			functionIndices.put(function, functionIndices.size());
+		}
+		List<GeneratedClass> result = new ArrayList<>();
+		int start = 0;
+		while (start < compilers.size()) {
+			int end = start;
+			int constantCount = 0;
+			int executeCodeLength = 0;
+			while (end < compilers.size() && end - start < MAX_CLASS_FUNCTION_LENGTH) {
+				JvmCompiler compiler = compilers.get(end);
+				constantCount += compiler.getConstantCount();
+				executeCodeLength += compiler.getExecuteCodeLength();
+				if (start < end && (MAX_CLASS_CONSTANT_COUNT < constantCount || MAX_EXECUTE_CODE_LENGTH < executeCodeLength)) {
+					break;
+				}
+				end++;
+			}
+			result.add(generateClass(module, compilers.subList(start, end), functionIndices));
+			start = end;
+		}
+		return result;
+	}
+
+	private static GeneratedClass generateClass(Module module, List<JvmCompiler> compilers, Map<Function, Integer> functionIndices) {
+		GeneratingClass generatingClass = new GeneratingClass(createClassName());
+		for (int i = 0; i < compilers.size(); i++) {
+			JvmCompiler compiler = compilers.get(i);
+			if (compiler.method.getMaxLocals() + compiler.method.getMaxStack() <= MAX_DIRECT_CALLEE_FRAME_SIZE) {
+				generatingClass.methodIndices.put(compiler.function, i);
+			}
+		}
+
+		int maxStackHeight = 0;
+		int[] classFunctionIndices = new int[compilers.size()];
+		for (int i = 0; i < compilers.size(); i++) {
+			JvmCompiler firstCompiler = compilers.get(i);
+			JvmCompiler compiler = new JvmCompiler(module, firstCompiler.function, generatingClass);
+			// The memory is not loaded by the functions which do not access it
+			compiler.isAccessingMemory = firstCompiler.isAccessingMemory;
+			compiler.compileMethod(toMethodName(i));
+			// The direct callees share the frame of the caller
+			maxStackHeight = Math.max(maxStackHeight, Math.max(compiler.maxArgumentLength, compiler.function.returnTypes.length));
+			classFunctionIndices[i] = functionIndices.get(compiler.function);
+		}
+
+		ClassFileWriter classFile = generatingClass.classFile;
+		classFile.addField(ACC_PUBLIC | ACC_STATIC, FUNCTIONS_FIELD, FUNCTIONS_DESCRIPTOR);
+		classFile.addField(ACC_PUBLIC | ACC_STATIC, CACHES_FIELD, CACHES_DESCRIPTOR);
+		classFile.addField(ACC_FINAL, INDEX_FIELD, "I");
+		addConstructor(generatingClass);
+		addGetMaxStackHeight(generatingClass, maxStackHeight);
+		addExecute(generatingClass, compilers);
+
+		List<Function> functions = generatingClass.functions;
+		List<CallIndirectCache> caches = generatingClass.caches;
+		byte[] bytes = classFile.toByteArray(ACC_FINAL | ACC_SUPER, generatingClass.name, "java/lang/Object", CODE);
+		return new GeneratedClass(generatingClass.name, bytes, functions.toArray(new Function[functions.size()]), caches.toArray(new CallIndirectCache[caches.size()]), classFunctionIndices);
+	}
+
+	private void compileMethod(String methodName) {
+		checkSupportedType(function.parameterTypes);
+		checkSupportedResultType(function.returnTypes);
+		for (ValueType localType : localTypes) {
+			checkSupportedType(localType);
+		}
+
+		compileBody();
+		classFile.addMethod(ACC_STATIC, methodName, getRunDescriptor(function), method);
+	}
+
+	// Includes the references to the callees which may be added when the calls are compiled into invokestatic
+	private int getConstantCount() {
+		return classFile.getConstantCount() + 4 * (callCount + 1);
+	}
+
+	// Bytes of the case of the function in the execute method
+	private int getExecuteCodeLength() {
+		return 16 + 12 * function.parameterTypes.length;
+	}
+
+	// The count has a fixed width, so that a stored class can be renamed by replacing the bytes of its name
+	private static String createClassName() {
+		return PACKAGE + "JvmCode$" + String.format("%08x", classCount.incrementAndGet());
+	}
+
+	private static String toMethodName(int index) {
+		return "run" + index;
+	}
+
+	private static String getRunDescriptor(Function function) {
+		StringBuilder result = new StringBuilder("(L" + INSTANCE + ";L" + FRAME + ";");
+		for (ValueType parameterType : function.parameterTypes) {
+			result.append(toDescriptor(parameterType));
+		}
+		result.append(")");
+		result.append(function.returnTypes.length == 0? "V": toDescriptor(function.returnTypes[0]));
+		return result.toString();
+	}
+
+	private void compileBody() {
+		if (isAccessingMemory) {
+			method.emitLocal(0x19, 0);
+			emitInvokeVirtual(INSTANCE, "getMemory", "()L" + MEMORY + ";");
+			method.emitLocal(0x3a, memorySlot);
+			updateMaxStackSlotLength(1);
+		}
+		for (int i = function.parameterTypes.length; i < localTypes.length; i++) {
+			emitZero(localTypes[i]);
+			method.emitLocal(toStoreOpcode(localTypes[i]), localSlots[i]);
+		}
+
+		labels.push(new Label(LabelKind.FUNCTION, 0, function.returnTypes.length == 0? VOID: function.returnTypes[0]));
+		while (!labels.isEmpty()) {
+			opcodeIndex = byteBuffer.getReadIndex();
+			int opcode = byteBuffer.readUint8AsInt();
+			if (isUnreachable) {
+				skipInstruction(opcode);
+			} else {
+				compileInstruction(opcode);
+			}
+		}
+
+		method.setMaxStack(maxStackSlotLength + 6);
+		method.setMaxLocals(maxLocals);
+	}
+
+	private void skipInstruction(int opcode) {
+		switch (opcode) {
+			case 0x02:
+			case 0x03:
+			case 0x04:
+				byteBuffer.readVarsint7();
+				unreachableDepth++;
+				return;
+			case 0x05:
+				if (unreachableDepth == 0) {
+					compileInstruction(opcode);
+				}
+				return;
+			case 0x0b:
+				if (unreachableDepth == 0) {
+					compileInstruction(opcode);
+				} else {
+					unreachableDepth--;
+				}
+				return;
+			default:
+				if (0xfc <= opcode) {
+					throw new UnsupportedOperationException();
+				}
+				skipImmediates(byteBuffer, opcode);
+				return;
+		}
+	}
+
+	private void compileInstruction(int opcode) {
+		switch (opcode) {
+			case 0x00: // unreachable
+				method.emitWithShort(0xbb, classFile.addClass(INTERPRETER_EXCEPTION));
+				method.emit(0x59);
+				method.emitWithShort(0xb2, classFile.addFieldReference(INTERPRETER_EXCEPTION_TYPE, "UNREACHABLE", "L" + INTERPRETER_EXCEPTION_TYPE + ";"));
+				method.emitWithShort(0xb7, classFile.addMethodReference(INTERPRETER_EXCEPTION, "<init>", "(L" + INTERPRETER_EXCEPTION_TYPE + ";)V"));
+				method.emit(0xbf);
+				updateMaxStackSlotLength(3);
+				isUnreachable = true;
+				return;
+			case 0x01: // nop
+				return;
+
+			case 0x02: // block
+			case 0x03: { // loop
+				ValueType resultType = readBlockType();
+				Label label = new Label(opcode == 0x02? LabelKind.BLOCK: LabelKind.LOOP, stack.size(), resultType);
+				if (opcode == 0x03) {
+					method.bind(label.branchLabel);
+				}
+				labels.push(label);
+				return;
+			}
+			case 0x04: { // if
+				ValueType resultType = readBlockType();
+				pop(I32);
+				Label label = new Label(LabelKind.IF, stack.size(), resultType);
+				label.elseLabel = method.createLabel();
+				method.emitJump(0x99, label.elseLabel);
+				labels.push(label);
+				return;
+			}
+			case 0x05: { // else
+				Label label = labels.peek();
+				if (!isUnreachable) {
+					method.emitJump(0xa7, label.branchLabel);
+					label.isTargeted = true;
+				}
+				method.bind(label.elseLabel);
+				label.elseLabel = null;
+				resetStack(label.entryStackLength);
+				isUnreachable = false;
+				return;
+			}
+			case 0x0b: { // end
+				Label label = labels.pop();
+				boolean isReachable = !isUnreachable || label.isTargeted && label.kind != LabelKind.LOOP;
+				if (label.elseLabel != null) {
+					// the false branch of if without else
+					method.bind(label.elseLabel);
+					isReachable = true;
+				}
+				if (label.kind == LabelKind.FUNCTION) {
+					if (isReachable) {
+						emitReturn();
+					}
+					return;
+				}
+				if (label.kind != LabelKind.LOOP) {
+					method.bind(label.branchLabel);
+				}
+				resetStack(label.entryStackLength);
+				if (label.resultType != VOID) {
+					push(label.resultType);
+				}
+				isUnreachable = !isReachable;
+				unreachableDepth = 0;
+				return;
+			}
+
+			case 0x0c: // br
+				emitBranch(labels.get(byteBuffer.readVaruint32()));
+				isUnreachable = true;
+				return;
+			case 0x0d: { // br_if
+				Label label = labels.get(byteBuffer.readVaruint32());
+				pop(I32);
+				MethodWriter.Label skipLabel = method.createLabel();
+				method.emitJump(0x99, skipLabel);
+				emitBranch(label);
+				method.bind(skipLabel);
+				return;
+			}
+			case 0x0e: { // br_table
+				int[] depths = byteBuffer.readVaruint32Array();
+				int defaultDepth = byteBuffer.readVaruint32();
+				pop(I32);
+				MethodWriter.Label[] caseLabels = new MethodWriter.Label[depths.length + 1];
+				for (int i = 0; i < caseLabels.length; i++) {
+					caseLabels[i] = method.createLabel();
+				}
+				// the default branch is also used as the last case so that the table is never empty
+				method.emitTableSwitch(caseLabels[depths.length], caseLabels);
+				for (int i = 0; i < caseLabels.length; i++) {
+					method.bind(caseLabels[i]);
+					emitBranch(labels.get(i < depths.length? depths[i]: defaultDepth));
+				}
+				isUnreachable = true;
+				return;
+			}
+			case 0x0f: // return
+				emitReturn();
+				isUnreachable = true;
+				return;
+
+			case 0x10: { // call
+				Function callee = module.getFunction(byteBuffer.readVaruint32());
+				checkSupportedType(callee.parameterTypes);
+				checkSupportedResultType(callee.returnTypes);
+				callCount++;
+				Integer methodIndex = generatingClass.methodIndices.get(callee);
+				if (methodIndex != null) {
+					emitDirectCall(callee, methodIndex);
+					return;
+				}
+				int calleeSlot = temporarySlot;
+				int[] argumentSlots = storeArguments(callee.parameterTypes, calleeSlot + 1);
+				method.emitWithShort(0xb2, classFile.addFieldReference(generatingClass.name, FUNCTIONS_FIELD, FUNCTIONS_DESCRIPTOR));
+				method.emitInt(generatingClass.functions.size(), classFile);
+				method.emit(0x32);
+				method.emitLocal(0x3a, calleeSlot);
+				generatingClass.functions.add(callee);
+				emitCall(callee.parameterTypes, callee.returnTypes, calleeSlot, argumentSlots);
+				return;
+			}
+			case 0x11: { // call_indirect
+				int typeIndex = byteBuffer.readVaruint32();
+				FunctionType functionType = module.getFunctionType(typeIndex);
+				int tableIndex = byteBuffer.readVaruint32();
+				checkSupportedType(functionType.parameterTypes);
+				checkSupportedResultType(functionType.returnTypes);
+				int calleeSlot = temporarySlot;
+				int elementSlot = calleeSlot + 1;
+				pop(I32);
+				method.emitLocal(0x36, elementSlot);
+				int[] argumentSlots = storeArguments(functionType.parameterTypes, elementSlot + 1);
+				method.emitWithShort(0xb2, classFile.addFieldReference(generatingClass.name, CACHES_FIELD, CACHES_DESCRIPTOR));
+				method.emitInt(generatingClass.caches.size(), classFile);
+				method.emit(0x32);
+				generatingClass.caches.add(new CallIndirectCache(module, typeIndex));
+				method.emitLocal(0x19, 0);
+				method.emitInt(tableIndex, classFile);
+				emitInvokeVirtual(INSTANCE, "getTable", "(I)L" + TABLE + ";");
+				method.emitLocal(0x15, elementSlot);
+				emitInvokeVirtual(CALL_INDIRECT_CACHE, "getFunction", "(L" + TABLE + ";I)L" + FUNCTION + ";");
+				method.emitLocal(0x3a, calleeSlot);
+				emitCall(functionType.parameterTypes, functionType.returnTypes, calleeSlot, argumentSlots);
+				return;
+			}
+
+			case 0x1a: // drop
+				method.emit(getSlotLength(pop()) == 1? 0x57: 0x58);
+				return;
+			case 0x1b: { // select
+				pop(I32);
+				ValueType type = pop();
+				pop(type);
+				MethodWriter.Label secondLabel = method.createLabel();
+				MethodWriter.Label endLabel = method.createLabel();
+				method.emitJump(0x99, secondLabel);
+				method.emit(getSlotLength(type) == 1? 0x57: 0x58);
+				method.emitJump(0xa7, endLabel);
+				method.bind(secondLabel);
+				if (getSlotLength(type) == 1) {
+					// swap and pop
+					method.emit(0x5f);
+					method.emit(0x57);
+				} else {
+					// dup2_x2, pop2 and pop2
+					method.emit(0x5e);
+					method.emit(0x58);
+					method.emit(0x58);
+					updateMaxStackSlotLength(2);
+				}
+				method.bind(endLabel);
+				push(type);
+				return;
+			}
+
+			case 0x20: { // local.get
+				int index = byteBuffer.readVaruint32();
+				method.emitLocal(toLoadOpcode(localTypes[index]), localSlots[index]);
+				push(localTypes[index]);
+				return;
+			}
+			case 0x21: { // local.set
+				int index = byteBuffer.readVaruint32();
+				pop(localTypes[index]);
+				method.emitLocal(toStoreOpcode(localTypes[index]), localSlots[index]);
+				return;
+			}
+			case 0x22: { // local.tee
+				int index = byteBuffer.readVaruint32();
+				method.emit(getSlotLength(localTypes[index]) == 1? 0x59: 0x5c);
+				updateMaxStackSlotLength(getSlotLength(localTypes[index]));
+				method.emitLocal(toStoreOpcode(localTypes[index]), localSlots[index]);
+				return;
+			}
+			case 0x23: { // global.get
+				int index = byteBuffer.readVaruint32();
+				ValueType type = module.getGlobalVariableTypes().get(index).getType();
+				checkSupportedType(type);
+				method.emitLocal(0x19, 0);
+				method.emitInt(index, classFile);
+				emitInvokeVirtual(INSTANCE, "getGlobalVariable", "(I)L" + GLOBAL_VARIABLE + ";");
+				emitInvokeVirtual(GLOBAL_VARIABLE, "getValue", "()J");
+				updateMaxStackSlotLength(2);
+				emitFromRawBits(type);
+				push(type);
+				return;
+			}
+			case 0x24: { // global.set
+				int index = byteBuffer.readVaruint32();
+				ValueType type = module.getGlobalVariableTypes().get(index).getType();
+				checkSupportedType(type);
+				pop(type);
+				emitToRawBits(type);
+				method.emitLocal(0x19, 0);
+				method.emitInt(index, classFile);
+				emitInvokeVirtual(INSTANCE, "getGlobalVariable", "(I)L" + GLOBAL_VARIABLE + ";");
+				// dup_x2 and pop to move the global variable under the value
+				method.emit(0x5b);
+				method.emit(0x57);
+				emitInvokeVirtual(GLOBAL_VARIABLE, "setValue", "(J)V");
+				updateMaxStackSlotLength(4);
+				return;
+			}
+
+			case 0x28: // i32.load
+				emitLoad(0x28, "readInt32", "I");
+				return;
+			case 0x2c: // i32.load8_s
+				emitLoad(0x2c, "readInt8", "B");
+				return;
+			case 0x2d: // i32.load8_u
+				emitLoad(0x2d, "readUint8AsInt", "I");
+				return;
+			case 0x2e: // i32.load16_s
+				emitLoad(0x2e, "readInt16AsInt", "I");
+				return;
+			case 0x2f: // i32.load16_u
+				emitLoad(0x2f, "readUint16AsInt", "I");
+				return;
+
+			case 0x36: // i32.store
+				emitStore(0x36, I32, "writeInt32", "I");
+				return;
+			case 0x37: // i64.store
+				emitStore(0x37, I64, "writeInt64", "J");
+				return;
+			case 0x38: // f32.store
+				emitStore(0x38, F32, "writeFloat32", "F");
+				return;
+			case 0x39: // f64.store
+				emitStore(0x39, F64, "writeFloat64", "D");
+				return;
+			case 0x3a: // i32.store8
+				emitStore(0x3a, I32, "writeInt8", "B");
+				return;
+			case 0x3b: // i32.store16
+				emitStore(0x3b, I32, "writeInt16", "S");
+				return;
+			case 0x3c: // i64.store8
+				emitStore(0x3c, I64, "writeInt8", "B");
+				return;
+			case 0x3d: // i64.store16
+				emitStore(0x3d, I64, "writeInt16", "S");
+				return;
+			case 0x3e: // i64.store32
+				emitStore(0x3e, I64, "writeInt32", "I");
+				return;
+
+			case 0x3f: // memory.size
+				byteBuffer.readByte();
+				emitLoadMemory();
+				emitInvokeVirtual(MEMORY, "getPageLength", "()I");
+				push(I32);
+				return;
+			case 0x40: // memory.grow
+				byteBuffer.readByte();
+				pop(I32);
+				emitLoadMemory();
+				// swap
+				method.emit(0x5f);
+				emitInvokeVirtual(MEMORY, "grow", "(I)I");
+				updateMaxStackSlotLength(2);
+				push(I32);
+				return;
+
+			case 0x41: // i32.const
+				method.emitInt(byteBuffer.readVarsint32(), classFile);
+				push(I32);
+				return;
+			case 0x42: { // i64.const
+				long value = byteBuffer.readVarsint64();
+				if (value == 0 || value == 1) {
+					// lconst_<n>
+					method.emit(0x09 + (int) value);
+				} else {
+					method.emitWithShort(0x14, classFile.addLong(value));
+				}
+				push(I64);
+				return;
+			}
+			case 0x43: // f32.const
+				method.emitConstant(classFile.addFloat(Float.intBitsToFloat(byteBuffer.readInt32())));
+				push(F32);
+				return;
+			case 0x44: // f64.const
+				method.emitWithShort(0x14, classFile.addDouble(Double.longBitsToDouble(byteBuffer.readInt64())));
+				push(F64);
+				return;
+
+			case 0x45: // i32.eqz
+				emitCondition(I32, 1, 0x99);
+				return;
+			case 0x46: // i32.eq
+				emitCondition(I32, 2, 0x9f);
+				return;
+			case 0x47: // i32.ne
+				emitCondition(I32, 2, 0xa0);
+				return;
+			case 0x48: // i32.lt_s
+				emitCondition(I32, 2, 0xa1);
+				return;
+			case 0x49: // i32.lt_u
+				emitUnsignedCondition(I32, 0x9b);
+				return;
+			case 0x4a: // i32.gt_s
+				emitCondition(I32, 2, 0xa3);
+				return;
+			case 0x4b: // i32.gt_u
+				emitUnsignedCondition(I32, 0x9d);
+				return;
+			case 0x4c: // i32.le_s
+				emitCondition(I32, 2, 0xa4);
+				return;
+			case 0x4d: // i32.le_u
+				emitUnsignedCondition(I32, 0x9e);
+				return;
+			case 0x4e: // i32.ge_s
+				emitCondition(I32, 2, 0xa2);
+				return;
+			case 0x4f: // i32.ge_u
+				emitUnsignedCondition(I32, 0x9c);
+				return;
+
+			case 0x50: // i64.eqz
+				method.emit(0x09);
+				updateMaxStackSlotLength(2);
+				emitComparison(I64, 1, 0x94, 0x99);
+				return;
+			case 0x51: // i64.eq
+				emitComparison(I64, 2, 0x94, 0x99);
+				return;
+			case 0x52: // i64.ne
+				emitComparison(I64, 2, 0x94, 0x9a);
+				return;
+			case 0x53: // i64.lt_s
+				emitComparison(I64, 2, 0x94, 0x9b);
+				return;
+			case 0x54: // i64.lt_u
+				emitUnsignedCondition(I64, 0x9b);
+				return;
+			case 0x55: // i64.gt_s
+				emitComparison(I64, 2, 0x94, 0x9d);
+				return;
+			case 0x56: // i64.gt_u
+				emitUnsignedCondition(I64, 0x9d);
+				return;
+			case 0x57: // i64.le_s
+				emitComparison(I64, 2, 0x94, 0x9e);
+				return;
+			case 0x58: // i64.le_u
+				emitUnsignedCondition(I64, 0x9e);
+				return;
+			case 0x59: // i64.ge_s
+				emitComparison(I64, 2, 0x94, 0x9c);
+				return;
+			case 0x5a: // i64.ge_u
+				emitUnsignedCondition(I64, 0x9c);
+				return;
+
+			// fcmpl and dcmpl return -1 and fcmpg and dcmpg return 1 for NaN, which are chosen so that the conditions become false
+			case 0x5b: // f32.eq
+				emitComparison(F32, 2, 0x95, 0x99);
+				return;
+			case 0x5c: // f32.ne
+				emitComparison(F32, 2, 0x95, 0x9a);
+				return;
+			case 0x5d: // f32.lt
+				emitComparison(F32, 2, 0x96, 0x9b);
+				return;
+			case 0x5e: // f32.gt
+				emitComparison(F32, 2, 0x95, 0x9d);
+				return;
+			case 0x5f: // f32.le
+				emitComparison(F32, 2, 0x96, 0x9e);
+				return;
+			case 0x60: // f32.ge
+				emitComparison(F32, 2, 0x95, 0x9c);
+				return;
+			case 0x61: // f64.eq
+				emitComparison(F64, 2, 0x97, 0x99);
+				return;
+			case 0x62: // f64.ne
+				emitComparison(F64, 2, 0x97, 0x9a);
+				return;
+			case 0x63: // f64.lt
+				emitComparison(F64, 2, 0x98, 0x9b);
+				return;
+			case 0x64: // f64.gt
+				emitComparison(F64, 2, 0x97, 0x9d);
+				return;
+			case 0x65: // f64.le
+				emitComparison(F64, 2, 0x98, 0x9e);
+				return;
+			case 0x66: // f64.ge
+				emitComparison(F64, 2, 0x97, 0x9c);
+				return;
+
+			case 0x67: // i32.clz
+				emitInvokeStatic(I32, 1, I32, "java/lang/Integer", "numberOfLeadingZeros", "(I)I");
+				return;
+			case 0x68: // i32.ctz
+				emitInvokeStatic(I32, 1, I32, "java/lang/Integer", "numberOfTrailingZeros", "(I)I");
+				return;
+			case 0x69: // i32.popcnt
+				emitInvokeStatic(I32, 1, I32, "java/lang/Integer", "bitCount", "(I)I");
+				return;
+			case 0x6a: // i32.add
+				emitOperator(I32, 2, 0x60);
+				return;
+			case 0x6b: // i32.sub
+				emitOperator(I32, 2, 0x64);
+				return;
+			case 0x6c: // i32.mul
+				emitOperator(I32, 2, 0x68);
+				return;
+			case 0x6d: // i32.div_s
+				emitOperator(I32, 2, 0x6c);
+				return;
+			case 0x6e: // i32.div_u
+				emitInvokeStatic(I32, 2, I32, "java/lang/Integer", "divideUnsigned", "(II)I");
+				return;
+			case 0x6f: // i32.rem_s
+				emitOperator(I32, 2, 0x70);
+				return;
+			case 0x70: // i32.rem_u
+				emitInvokeStatic(I32, 2, I32, "java/lang/Integer", "remainderUnsigned", "(II)I");
+				return;
+			case 0x71: // i32.and
+				emitOperator(I32, 2, 0x7e);
+				return;
+			case 0x72: // i32.or
+				emitOperator(I32, 2, 0x80);
+				return;
+			case 0x73: // i32.xor
+				emitOperator(I32, 2, 0x82);
+				return;
+			case 0x74: // i32.shl
+				emitOperator(I32, 2, 0x78);
+				return;
+			case 0x75: // i32.shr_s
+				emitOperator(I32, 2, 0x7a);
+				return;
+			case 0x76: // i32.shr_u
+				emitOperator(I32, 2, 0x7c);
+				return;
+			case 0x77: // i32.rotl
+				emitInvokeStatic(I32, 2, I32, "java/lang/Integer", "rotateLeft", "(II)I");
+				return;
+			case 0x78: // i32.rotr
+				emitInvokeStatic(I32, 2, I32, "java/lang/Integer", "rotateRight", "(II)I");
+				return;
+
+			case 0x79: // i64.clz
+				emitInvokeStatic(I64, 1, I32, "java/lang/Long", "numberOfLeadingZeros", "(J)I");
+				emitConversion(I32, 0x85, I64);
+				return;
+			case 0x7a: // i64.ctz
+				emitInvokeStatic(I64, 1, I32, "java/lang/Long", "numberOfTrailingZeros", "(J)I");
+				emitConversion(I32, 0x85, I64);
+				return;
+			case 0x7b: // i64.popcnt
+				emitInvokeStatic(I64, 1, I32, "java/lang/Long", "bitCount", "(J)I");
+				emitConversion(I32, 0x85, I64);
+				return;
+			case 0x7c: // i64.add
+				emitOperator(I64, 2, 0x61);
+				return;
+			case 0x7d: // i64.sub
+				emitOperator(I64, 2, 0x65);
+				return;
+			case 0x7e: // i64.mul
+				emitOperator(I64, 2, 0x69);
+				return;
+			case 0x7f: // i64.div_s
+				emitInvokeStatic(I64, 2, I64, PACKAGE + "Module$I64DivS", "divide", "(JJ)J");
+				return;
+			case 0x80: // i64.div_u
+				emitInvokeStatic(I64, 2, I64, PACKAGE + "Module$I64DivU", "divide", "(JJ)J");
+				return;
+			case 0x81: // i64.rem_s
+				emitInvokeStatic(I64, 2, I64, PACKAGE + "Module$I64RemS", "remainder", "(JJ)J");
+				return;
+			case 0x82: // i64.rem_u
+				emitInvokeStatic(I64, 2, I64, PACKAGE + "Module$I64RemU", "remainder", "(JJ)J");
+				return;
+			case 0x83: // i64.and
+				emitOperator(I64, 2, 0x7f);
+				return;
+			case 0x84: // i64.or
+				emitOperator(I64, 2, 0x81);
+				return;
+			case 0x85: // i64.xor
+				emitOperator(I64, 2, 0x83);
+				return;
+			case 0x86: // i64.shl
+				emitShift(0x79);
+				return;
+			case 0x87: // i64.shr_s
+				emitShift(0x7b);
+				return;
+			case 0x88: // i64.shr_u
+				emitShift(0x7d);
+				return;
+			case 0x89: // i64.rotl
+				method.emit(0x88);
+				emitInvokeStatic(I64, 2, I64, "java/lang/Long", "rotateLeft", "(JI)J");
+				return;
+			case 0x8a: // i64.rotr
+				method.emit(0x88);
+				emitInvokeStatic(I64, 2, I64, "java/lang/Long", "rotateRight", "(JI)J");
+				return;
+
+			case 0x8b: // f32.abs
+				emitInvokeStatic(F32, 1, F32, "java/lang/Math", "abs", "(F)F");
+				return;
+			case 0x8c: // f32.neg
+				emitOperator(F32, 1, 0x76);
+				return;
+			case 0x8d: // f32.ceil
+				emitF32ByF64("ceil");
+				return;
+			case 0x8e: // f32.floor
+				emitF32ByF64("floor");
+				return;
+			case 0x8f: // f32.trunc
+				emitInvokeStatic(F32, 1, F32, PACKAGE + "Module$F32Trunc", "truncate", "(F)F");
+				return;
+			case 0x90: // f32.nearest
+				emitF32ByF64("rint");
+				return;
+			case 0x91: // f32.sqrt
+				emitF32ByF64("sqrt");
+				return;
+			case 0x92: // f32.add
+				emitOperator(F32, 2, 0x62);
+				return;
+			case 0x93: // f32.sub
+				emitOperator(F32, 2, 0x66);
+				return;
+			case 0x94: // f32.mul
+				emitOperator(F32, 2, 0x6a);
+				return;
+			case 0x95: // f32.div
+				emitOperator(F32, 2, 0x6e);
+				return;
+			case 0x96: // f32.min
+				emitInvokeStatic(F32, 2, F32, "java/lang/Math", "min", "(FF)F");
+				return;
+			case 0x97: // f32.max
+				emitInvokeStatic(F32, 2, F32, "java/lang/Math", "max", "(FF)F");
+				return;
+			case 0x98: // f32.copysign
+				emitInvokeStatic(F32, 2, F32, "java/lang/Math", "copySign", "(FF)F");
+				return;
+
+			case 0x99: // f64.abs
+				emitInvokeStatic(F64, 1, F64, "java/lang/Math", "abs", "(D)D");
+				return;
+			case 0x9a: // f64.neg
+				emitOperator(F64, 1, 0x77);
+				return;
+			case 0x9b: // f64.ceil
+				emitInvokeStatic(F64, 1, F64, "java/lang/Math", "ceil", "(D)D");
+				return;
+			case 0x9c: // f64.floor
+				emitInvokeStatic(F64, 1, F64, "java/lang/Math", "floor", "(D)D");
+				return;
+			case 0x9d: // f64.trunc
+				emitInvokeStatic(F64, 1, F64, PACKAGE + "Module$F64Trunc", "truncate", "(D)D");
+				return;
+			case 0x9e: // f64.nearest
+				emitInvokeStatic(F64, 1, F64, "java/lang/Math", "rint", "(D)D");
+				return;
+			case 0x9f: // f64.sqrt
+				emitInvokeStatic(F64, 1, F64, "java/lang/Math", "sqrt", "(D)D");
+				return;
+			case 0xa0: // f64.add
+				emitOperator(F64, 2, 0x63);
+				return;
+			case 0xa1: // f64.sub
+				emitOperator(F64, 2, 0x67);
+				return;
+			case 0xa2: // f64.mul
+				emitOperator(F64, 2, 0x6b);
+				return;
+			case 0xa3: // f64.div
+				emitOperator(F64, 2, 0x6f);
+				return;
+			case 0xa4: // f64.min
+				emitInvokeStatic(F64, 2, F64, "java/lang/Math", "min", "(DD)D");
+				return;
+			case 0xa5: // f64.max
+				emitInvokeStatic(F64, 2, F64, "java/lang/Math", "max", "(DD)D");
+				return;
+			case 0xa6: // f64.copysign
+				emitInvokeStatic(F64, 2, F64, "java/lang/Math", "copySign", "(DD)D");
+				return;
+
+			case 0xa7: // i32.wrap_i64
+				emitConversion(I64, 0x88, I32);
+				return;
+			case 0xa8: // i32.trunc_f32_s
+			case 0xa9: // i32.trunc_f32_u
+				emitConversion(F32, 0x8b, I32);
+				return;
+			case 0xaa: // i32.trunc_f64_s
+				emitConversion(F64, 0x8e, I32);
+				return;
+			case 0xac: // i64.extend_i32_s
+				emitConversion(I32, 0x85, I64);
+				return;
+			case 0xad: // i64.extend_i32_u
+				emitConversion(I32, 0x85, I64);
+				emitUint32Mask();
+				return;
+			case 0xb7: // f64.convert_i32_s
+				emitConversion(I32, 0x87, F64);
+				return;
+			case 0xb8: // f64.convert_i32_u
+				emitConversion(I32, 0x85, I64);
+				emitUint32Mask();
+				emitConversion(I64, 0x8a, F64);
+				return;
+			case 0xba: // f64.convert_i64_u
+				emitInvokeStatic(I64, 1, F64, PACKAGE + "Module$F64ConvertI64U", "fromUint64ToF64", "(J)D");
+				return;
+			case 0xbb: // f64.promote_f32
+				emitConversion(F32, 0x8d, F64);
+				return;
+			case 0xc0: // i32.extend8_s
+				emitOperator(I32, 1, 0x91);
+				return;
+			case 0xc1: // i32.extend16_s
+				emitOperator(I32, 1, 0x93);
+				return;
+			case 0xc2: // i64.extend8_s
+				emitConversion(I64, 0x88, I32);
+				method.emit(0x91);
+				emitConversion(I32, 0x85, I64);
+				return;
+			case 0xc3: // i64.extend16_s
+				emitConversion(I64, 0x88, I32);
+				method.emit(0x93);
+				emitConversion(I32, 0x85, I64);
+				return;
+			case 0xc4: // i64.extend32_s
+				emitConversion(I64, 0x88, I32);
+				emitConversion(I32, 0x85, I64);
+				return;
+
+			default:
+				throw new UnsupportedOperationException("not implemented yet: opcode = 0x" + Integer.toHexString(opcode));
+		}
+	}
+
+	private ValueType readBlockType() {
+		ValueType type = toValueType(byteBuffer.readVarsint7());
+		if (type == null) {
+			throw new UnsupportedOperationException("multi value");
+		}
+		if (type != VOID) {
+			checkSupportedType(type);
+		}
+		return type;
+	}
+
+	private void emitBranch(Label label) {
+		if (label.kind == LabelKind.FUNCTION) {
+			emitReturn();
+			return;
+		}
+
+		int keepLength = label.kind == LabelKind.LOOP || label.resultType == VOID? 0: 1;
+		int dropEndIndex = stack.size() - keepLength;
+		if (label.entryStackLength < dropEndIndex) {
+			ValueType resultType = null;
+			if (keepLength == 1) {
+				resultType = stack.get(stack.size() - 1);
+				method.emitLocal(toStoreOpcode(resultType), temporarySlot);
+				updateMaxLocals(temporarySlot + getSlotLength(resultType));
+			}
+			for (int i = dropEndIndex - 1; label.entryStackLength <= i; i--) {
+				method.emit(getSlotLength(stack.get(i)) == 1? 0x57: 0x58);
+			}
+			if (resultType != null) {
+				method.emitLocal(toLoadOpcode(resultType), temporarySlot);
+			}
+		}
+		method.emitJump(0xa7, label.branchLabel);
+		label.isTargeted = true;
+	}
+
+	private void emitReturn() {
+		// The JVM discards the rest of the operand stack when returning
+		if (function.returnTypes.length == 0) {
+			method.emit(0xb1);
+			return;
+		}
+		switch (function.returnTypes[0]) {
+			case I32:
+				method.emit(0xac);
+				return;
+			case I64:
+				method.emit(0xad);
+				return;
+			case F32:
+				method.emit(0xae);
+				return;
+			default:
+				method.emit(0xaf);
+				return;
+		}
+	}
+
+	private int[] storeArguments(ValueType[] parameterTypes, int firstSlot) {
+		int[] result = new int[parameterTypes.length];
+		int slot = firstSlot;
+		for (int i = 0; i < parameterTypes.length; i++) {
+			result[i] = slot;
+			slot += getSlotLength(parameterTypes[i]);
+		}
+		updateMaxLocals(slot);
+		for (int i = parameterTypes.length - 1; 0 <= i; i--) {
+			pop(parameterTypes[i]);
+			method.emitLocal(toStoreOpcode(parameterTypes[i]), result[i]);
+		}
+		return result;
+	}
+
+	// Calls the method of the callee in the same class with the frame of this function, whose operand stack is empty between
+	// the instructions. The call is counted against the max call depth as the calls through frames are.
+	private void emitDirectCall(Function callee, int methodIndex) {
+		int[] argumentSlots = storeArguments(callee.parameterTypes, temporarySlot);
+		method.emitLocal(0x19, 1);
+		emitInvokeVirtual(FRAME, "enterDirectCall", "()V");
+		method.emitLocal(0x19, 0);
+		method.emitLocal(0x19, 1);
+		int argumentSlotLength = 0;
+		for (int i = 0; i < argumentSlots.length; i++) {
+			method.emitLocal(toLoadOpcode(callee.parameterTypes[i]), argumentSlots[i]);
+			argumentSlotLength += getSlotLength(callee.parameterTypes[i]);
+		}
+		updateMaxStackSlotLength(2 + argumentSlotLength);
+		method.emitWithShort(0xb8, classFile.addMethodReference(generatingClass.name, toMethodName(methodIndex), getRunDescriptor(callee)));
+		if (callee.returnTypes.length != 0) {
+			push(callee.returnTypes[0]);
+		}
+		method.emitLocal(0x19, 1);
+		emitInvokeVirtual(FRAME, "exitDirectCall", "()V");
+		updateMaxStackSlotLength(1);
+	}
+
+	// The arguments are passed on the operand stack of the frame of this function, from which the callee takes them as its
+	// locals, so that calls do not allocate frames
+	private void emitCall(ValueType[] parameterTypes, ValueType[] returnTypes, int calleeSlot, int[] argumentSlots) {
+		for (int i = 0; i < parameterTypes.length; i++) {
+			method.emitLocal(0x19, 1);
+			method.emitLocal(toLoadOpcode(parameterTypes[i]), argumentSlots[i]);
+			emitToRawBits(parameterTypes[i]);
+			emitInvokeVirtual(FRAME, "push", "(J)V");
+		}
+		maxArgumentLength = Math.max(maxArgumentLength, parameterTypes.length);
+
+		method.emitLocal(0x19, calleeSlot);
+		method.emitLocal(0x19, 1);
+		emitInvokeVirtual(FUNCTION, "executeWithNewFrame", "(L" + FRAME + ";)V");
+		updateMaxStackSlotLength(3);
+
+		if (returnTypes.length == 0) {
+			return;
+		}
+		method.emitLocal(0x19, 1);
+		switch (returnTypes[0]) {
+			case I32:
+				emitInvokeVirtual(FRAME, "popI32", "()I");
+				break;
+			case I64:
+				emitInvokeVirtual(FRAME, "popI64", "()J");
+				break;
+			case F32:
+				emitInvokeVirtual(FRAME, "popF32", "()F");
+				break;
+			default:
+				emitInvokeVirtual(FRAME, "popF64", "()D");
+				break;
+		}
+		push(returnTypes[0]);
+	}
+
+	private void emitLoad(int opcode, String methodName, String resultDescriptor) {
+		pop(I32);
+		emitEffectiveAddress(opcode);
+		emitInvokeVirtual(MEMORY, methodName, "(I)" + resultDescriptor);
+		updateMaxStackSlotLength(4);
+		push(I32);
+	}
+
+	// The value is kept in the temporary slot while the memory and the address are put under it
+	private void emitStore(int opcode, ValueType type, String methodName, String valueDescriptor) {
+		pop(type);
+		pop(I32);
+		method.emitLocal(toStoreOpcode(type), temporarySlot);
+		updateMaxLocals(temporarySlot + getSlotLength(type));
+		emitEffectiveAddress(opcode);
+		method.emitLocal(toLoadOpcode(type), temporarySlot);
+		if (type == I64 && !valueDescriptor.equals("J")) {
+			// l2i
+			method.emit(0x88);
+		}
+		if (valueDescriptor.equals("B")) {
+			// i2b
+			method.emit(0x91);
+		} else if (valueDescriptor.equals("S")) {
+			// i2s
+			method.emit(0x93);
+		}
+		emitInvokeVirtual(MEMORY, methodName, "(I" + valueDescriptor + ")V");
+		updateMaxStackSlotLength(4);
+	}
+
+	// Replaces the address on the top of the stack with the memory and the effective address
+	private void emitEffectiveAddress(int opcode) {
+		// the alignment hint is not needed
+		byteBuffer.readVaruint32();
+		int offset = byteBuffer.readVaruint32();
+		if (inBoundsAccesses.get(opcodeIndex)) {
+			if (offset != 0) {
+				method.emitInt(offset, classFile);
+				method.emit(0x60);
+			}
+			emitLoadMemory();
+			// swap
+			method.emit(0x5f);
+		} else {
+			emitLoadMemory();
+			// dup_x1 and swap to keep the memory under the address
+			method.emit(0x5a);
+			method.emit(0x5f);
+			method.emitInt(offset, classFile);
+			method.emitInt(BoundsCheckAnalyzer.getAccessLength(opcode), classFile);
+			emitInvokeVirtual(MEMORY, "toEffectiveAddress", "(III)I");
+		}
+	}
+
+	private void emitLoadMemory() {
+		method.emitLocal(0x19, memorySlot);
+		isAccessingMemory = true;
+	}
+
+	private void emitOperator(ValueType type, int operandLength, int opcode) {
+		for (int i = 0; i < operandLength; i++) {
+			pop(type);
+		}
+		method.emit(opcode);
+		push(type);
+	}
+
+	private void emitShift(int opcode) {
+		// the shift distance of the JVM is int
+		method.emit(0x88);
+		emitOperator(I64, 2, opcode);
+	}
+
+	private void emitConversion(ValueType fromType, int opcode, ValueType toType) {
+		pop(fromType);
+		method.emit(opcode);
+		push(toType);
+	}
+
+	private void emitUint32Mask() {
+		method.emitWithShort(0x14, classFile.addLong(0xffffffffL));
+		method.emit(0x7f);
+		updateMaxStackSlotLength(2);
+	}
+
+	private void emitF32ByF64(String methodName) {
+		emitConversion(F32, 0x8d, F64);
+		emitInvokeStatic(F64, 1, F64, "java/lang/Math", methodName, "(D)D");
+		emitConversion(F64, 0x90, F32);
+	}
+
+	private void emitInvokeStatic(ValueType operandType, int operandLength, ValueType resultType, String owner, String name, String descriptor) {
+		for (int i = 0; i < operandLength; i++) {
+			pop(operandType);
+		}
+		method.emitWithShort(0xb8, classFile.addMethodReference(owner, name, descriptor));
+		push(resultType);
+	}
+
+	private void emitInvokeVirtual(String owner, String name, String descriptor) {
+		method.emitWithShort(0xb6, classFile.addMethodReference(owner, name, descriptor));
+	}
+
+	// Compares the operands by an if instruction and pushes 1 when it jumps
+	private void emitCondition(ValueType operandType, int operandLength, int ifOpcode) {
+		for (int i = 0; i < operandLength; i++) {
+			pop(operandType);
+		}
+		MethodWriter.Label trueLabel = method.createLabel();
+		MethodWriter.Label endLabel = method.createLabel();
+		method.emitJump(ifOpcode, trueLabel);
+		method.emit(0x03);
+		method.emitJump(0xa7, endLabel);
+		method.bind(trueLabel);
+		method.emit(0x04);
+		method.bind(endLabel);
+		push(I32);
+	}
+
+	private void emitComparison(ValueType operandType, int operandLength, int compareOpcode, int ifOpcode) {
+		for (int i = 0; i < operandLength; i++) {
+			pop(operandType);
+		}
+		method.emit(compareOpcode);
+		push(I32);
+		emitCondition(I32, 1, ifOpcode);
+	}
+
+	private void emitUnsignedCondition(ValueType operandType, int ifOpcode) {
+		if (operandType == I32) {
+			emitInvokeStatic(I32, 2, I32, "java/lang/Integer", "compareUnsigned", "(II)I");
+		} else {
+			emitInvokeStatic(I64, 2, I32, "java/lang/Long", "compareUnsigned", "(JJ)I");
+		}
+		emitCondition(I32, 1, ifOpcode);
+	}
+
+	private void emitZero(ValueType type) {
+		switch (type) {
+			case I32:
+				method.emit(0x03);
+				break;
+			case I64:
+				method.emit(0x09);
+				break;
+			case F32:
+				method.emit(0x0b);
+				break;
+			default:
+				method.emit(0x0e);
+				break;
+		}
+		updateMaxStackSlotLength(2);
+	}
+
+	private void emitToRawBits(ValueType type) {
+		switch (type) {
+			case I32:
+				method.emit(0x85);
+				break;
+			case F32:
+				method.emitWithShort(0xb8, classFile.addMethodReference("java/lang/Float", "floatToRawIntBits", "(F)I"));
+				method.emit(0x85);
+				break;
+			case F64:
+				method.emitWithShort(0xb8, classFile.addMethodReference("java/lang/Double", "doubleToRawLongBits", "(D)J"));
+				break;
+		}
+	}
+
+	private void emitFromRawBits(ValueType type) {
+		switch (type) {
+			case I32:
+				method.emit(0x88);
+				break;
+			case F32:
+				method.emit(0x88);
+				method.emitWithShort(0xb8, classFile.addMethodReference("java/lang/Float", "intBitsToFloat", "(I)F"));
+				break;
+			case F64:
+				method.emitWithShort(0xb8, classFile.addMethodReference("java/lang/Double", "longBitsToDouble", "(J)D"));
+				break;
+		}
+	}
+
+	private void push(ValueType type) {
+		stack.add(type);
+		stackSlotLength += getSlotLength(type);
+		updateMaxStackSlotLength(0);
+	}
+
+	private ValueType pop() {
+		ValueType type = stack.remove(stack.size() - 1);
+		stackSlotLength -= getSlotLength(type);
+		return type;
+	}
+
+	private void pop(ValueType expectedType) {
+		if (pop() != expectedType) {
+			throw new IllegalStateException("type mismatch");
+		}
+	}
+
+	private void resetStack(int length) {
+		while (length < stack.size()) {
+			pop();
+		}
+	}
+
+	private void updateMaxStackSlotLength(int temporarySlotLength) {
+		maxStackSlotLength = Math.max(maxStackSlotLength, stackSlotLength + temporarySlotLength);
+	}
+
+	private void updateMaxLocals(int slot) {
+		maxLocals = Math.max(maxLocals, slot);
+	}
+
+	private static void addConstructor(GeneratingClass generatingClass) {
+		ClassFileWriter classFile = generatingClass.classFile;
+		MethodWriter constructor = new MethodWriter();
+		constructor.emitLocal(0x19, 0);
+		constructor.emitWithShort(0xb7, classFile.addMethodReference("java/lang/Object", "<init>", "()V"));
+		constructor.emitLocal(0x19, 0);
+		constructor.emitLocal(0x15, 1);
+		constructor.emitWithShort(0xb5, classFile.addFieldReference(generatingClass.name, INDEX_FIELD, "I"));
+		constructor.emit(0xb1);
+		constructor.setMaxStack(2);
+		constructor.setMaxLocals(2);
+		classFile.addMethod(ACC_PUBLIC, "<init>", "(I)V", constructor);
+	}
+
+	private static void addGetMaxStackHeight(GeneratingClass generatingClass, int maxStackHeight) {
+		// only the arguments of calls through frames and the result are pushed onto the stack of the frame
+		ClassFileWriter classFile = generatingClass.classFile;
+		MethodWriter getMaxStackHeight = new MethodWriter();
+		getMaxStackHeight.emitInt(maxStackHeight, classFile);
+		getMaxStackHeight.emit(0xac);
+		getMaxStackHeight.setMaxStack(1);
+		getMaxStackHeight.setMaxLocals(1);
+		classFile.addMethod(ACC_PUBLIC, "getMaxStackHeight", "()I", getMaxStackHeight);
+	}
+
+	// Each instance of the class is the code of one of its functions, whose method is selected by the index
+	private static void addExecute(GeneratingClass generatingClass, List<JvmCompiler> compilers) {
+		ClassFileWriter classFile = generatingClass.classFile;
+		MethodWriter execute = new MethodWriter();
+		MethodWriter.Label[] caseLabels = new MethodWriter.Label[compilers.size()];
+		for (int i = 0; i < caseLabels.length; i++) {
+			caseLabels[i] = execute.createLabel();
+		}
+		execute.emitLocal(0x19, 0);
+		execute.emitWithShort(0xb4, classFile.addFieldReference(generatingClass.name, INDEX_FIELD, "I"));
+		execute.emitTableSwitch(caseLabels[0], caseLabels);
+
+		int maxStack = 1;
+		for (int i = 0; i < caseLabels.length; i++) {
+			Function function = compilers.get(i).function;
+			execute.bind(caseLabels[i]);
+			// the frame to push the result onto, the instance and the frame
+			int slotLength = 3;
+			execute.emitLocal(0x19, 1);
+			execute.emitLocal(0x19, 1);
+			execute.emitWithShort(0xb6, classFile.addMethodReference(FRAME, "getInstance", "()L" + INSTANCE + ";"));
+			execute.emitLocal(0x19, 1);
+			for (int j = 0; j < function.parameterTypes.length; j++) {
+				ValueType type = function.parameterTypes[j];
+				execute.emitLocal(0x19, 1);
+				execute.emitInt(j, classFile);
+				execute.emitWithShort(0xb6, classFile.addMethodReference(FRAME, "getLocalVariable", "(I)J"));
+				switch (type) {
+					case I32:
+						execute.emit(0x88);
+						break;
+					case F32:
+						execute.emit(0x88);
+						execute.emitWithShort(0xb8, classFile.addMethodReference("java/lang/Float", "intBitsToFloat", "(I)F"));
+						break;
+					case F64:
+						execute.emitWithShort(0xb8, classFile.addMethodReference("java/lang/Double", "longBitsToDouble", "(J)D"));
+						break;
+				}
+				slotLength += getSlotLength(type);
+			}
+			execute.emitWithShort(0xb8, classFile.addMethodReference(generatingClass.name, toMethodName(i), getRunDescriptor(function)));
+			if (function.returnTypes.length != 0) {
+				ValueType type = function.returnTypes[0];
+				execute.emitWithShort(0xb6, classFile.addMethodReference(FRAME, "push" + type.name(), "(" + toDescriptor(type) + ")V"));
+			}
+			execute.emit(0xb1);
+			maxStack = Math.max(maxStack, slotLength + 2);
+		}
+		execute.setMaxStack(maxStack);
+		execute.setMaxLocals(2);
+		classFile.addMethod(ACC_PUBLIC, "execute", "(L" + FRAME + ";)V", execute);
+	}
+
+	private static void checkSupportedResultType(ValueType... types) {
+		if (1 < types.length) {
+			throw new UnsupportedOperationException("multi value");
+		}
+		checkSupportedType(types);
+	}
+
+	private static void checkSupportedType(ValueType... types) {
+		for (ValueType type : types) {
+			switch (type) {
+				case I32:
+				case I64:
+				case F32:
+				case F64:
+					break;
+				default:
+					throw new UnsupportedOperationException("unsupported type: " + type);
+			}
+		}
+	}
+
+	private static int getSlotLength(ValueType type) {
+		return type == I64 || type == F64? 2: 1;
+	}
+
+	private static String toDescriptor(ValueType type) {
+		switch (type) {
+			case I32:
+				return "I";
+			case I64:
+				return "J";
+			case F32:
+				return "F";
+			default:
+				return "D";
+		}
+	}
+
+	private static int toLoadOpcode(ValueType type) {
+		switch (type) {
+			case I32:
+				return 0x15;
+			case I64:
+				return 0x16;
+			case F32:
+				return 0x17;
+			default:
+				return 0x18;
+		}
+	}
+
+	private static int toStoreOpcode(ValueType type) {
+		return toLoadOpcode(type) + 0x21;
+	}
+
+	// Hidden classes are used when available so that the generated classes can be unloaded
+	private static Class<?> defineClass(String name, byte[] bytes) throws ReflectiveOperationException {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			try {
+				Class<?> classOptionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+				Object classOptions = Array.newInstance(classOptionClass, 0);
+				Method defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, classOptions.getClass());
+				return ((MethodHandles.Lookup) defineHiddenClass.invoke(lookup, bytes, true, classOptions)).lookupClass();
+			} catch (ClassNotFoundException | NoSuchMethodException e) {
+				// Java 14 or older
+			}
+			try {
+				Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+				return (Class<?>) defineClass.invoke(lookup, bytes);
+			} catch (NoSuchMethodException e) {
+				// Java 8
+			}
+			Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class);
+			defineClass.setAccessible(true);
+			return (Class<?>) defineClass.invoke(JvmCompiler.class.getClassLoader(), name, bytes, 0, bytes.length);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof LinkageError) {
+				throw (LinkageError) cause;
+			}
+			throw e;
+		}
+	}
+
+	static final class GeneratedClass {
+		private final String name;
+		private final byte[] bytes;
+		private final Function[] functions;
+		private final CallIndirectCache[] caches;
+		// The indices in the module of the functions compiled into the class
+		private final int[] functionIndices;
+
+		GeneratedClass(String name, byte[] bytes, Function[] functions, CallIndirectCache[] caches, int[] functionIndices) {
+			this.name = name;
+			this.bytes = bytes;
+			this.functions = functions;
+			this.caches = caches;
+			this.functionIndices = functionIndices;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		byte[] getBytes() {
+			return bytes;
+		}
+
+		Function[] getFunctions() {
+			return functions;
+		}
+
+		CallIndirectCache[] getCaches() {
+			return caches;
+		}
+
+		int[] getFunctionIndices() {
+			return functionIndices;
+		}
+
+		// A class loaded from a cache may have the same name as a class defined by this process already
+		GeneratedClass rename() {
+			String newName = createClassName();
+			byte[] oldNameBytes = name.getBytes(StandardCharsets.UTF_8);
+			byte[] newNameBytes = newName.getBytes(StandardCharsets.UTF_8);
+			byte[] newBytes = bytes.clone();
+			for (int i = 0; i <= newBytes.length - oldNameBytes.length; i++) {
+				if (isNameAt(newBytes, i, oldNameBytes)) {
+					System.arraycopy(newNameBytes, 0, newBytes, i, newNameBytes.length);
+				}
+			}
+			return new GeneratedClass(newName, newBytes, functions, caches, functionIndices);
+		}
+
+		private static boolean isNameAt(byte[] bytes, int index, byte[] name) {
+			for (int i = 0; i < name.length; i++) {
+				if (bytes[index + i] != name[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// Returns the codes of the functions in the order of getFunctionIndices()
+		Code[] define() {
+			try {
+				Class<?> generatedClass = defineClass(name.replace('/', '.'), bytes);
+				generatedClass.getField(FUNCTIONS_FIELD).set(null, functions);
+				generatedClass.getField(CACHES_FIELD).set(null, caches);
+				Constructor<?> constructor = generatedClass.getConstructor(int.class);
+				Code[] result = new Code[functionIndices.length];
+				for (int i = 0; i < result.length; i++) {
+					result[i] = (Code) constructor.newInstance(i);
+				}
+				return result;
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	// The state shared by the functions compiled into a class
+	private static final class GeneratingClass {
+		private final String name;
+		private final ClassFileWriter classFile = new ClassFileWriter();
+		// The callees of the calls through frames and the caches of call_indirect, which are set to the static fields
+		private final List<Function> functions = new ArrayList<>();
+		private final List<CallIndirectCache> caches = new ArrayList<>();
+		// The methods of the functions which are called directly
+		private final Map<Function, Integer> methodIndices = new IdentityHashMap<>();
+
+		GeneratingClass(String name) {
+			this.name = name;
+		}
+	}
+
+	private enum LabelKind {
+		FUNCTION, BLOCK, LOOP, IF,
+	}
+
+	private final class Label {
+		private final LabelKind kind;
+		private final int entryStackLength;
+		private final ValueType resultType;
+
+		// the start for loop and the end for the others
+		private final MethodWriter.Label branchLabel = method.createLabel();
+		private MethodWriter.Label elseLabel;
+		private boolean isTargeted;
+
+		Label(LabelKind kind, int entryStackLength, ValueType resultType) {
+			this.kind = kind;
+			this.entryStackLength = entryStackLength;
+			this.resultType = resultType;
+		}
+	}
+}
@@ -54,14 +54,14 @@ final class Leb128 {
     }
 
     static long readSignedLongLeb128(ByteBuffer in) {
-        int result = 0;
+        long result = 0;
         int cur;
         int count = 0;
-        int signBits = -1;
+        long signBits = -1;
 
         do {
             cur = in.readByte() & 0xff;
-            result |= (cur & 0x7f) << (count * 7);
+            result |= (cur & 0x7fL) << (count * 7);
             signBits <<= 7;
             count++;
         } while (((cur & 0x80) == 0x80) && count < 10);
@@ -1,35 +1,370 @@
 package jp.hisano.wasm.interpreter;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+import static java.nio.file.StandardOpenOption.*;
+
+// Linear memory is little endian, so values are read and written by single ByteBuffer accesses
 public final class Memory {
-	private final byte[] data;
+	private static final int PAGE_SIZE = 64 * 1024;
+	// ByteBuffer is indexed by int
+	private static final int MAX_PAGE_LENGTH = Integer.MAX_VALUE / PAGE_SIZE;
+	// Writes are tracked in the same unit as the pages of the OS
+	private static final int DIRTY_PAGE_SHIFT = 12;
+	private static final int DIRTY_PAGE_SIZE = 1 << DIRTY_PAGE_SHIFT;
+	private static final byte[] ZERO_PAGE = new byte[DIRTY_PAGE_SIZE];
+
+	// The capacity is reserved geometrically and the limit is the current size, which the absolute accessors check
+	private java.nio.ByteBuffer data;
+	private int size;
+	private int pageLength;
 	private final int maximumPageLength;
+	private final boolean isMapped;
+	// Null until the memory is snapshotted or forked, so that the stores of the memories never restored do not track the pages
+	private BitSet dirtyPages;
+	// The snapshot which the pages not in dirtyPages are equal to
+	private Snapshot lastSnapshot;
 
 	public Memory(int initialPageLength, int maximumPageLength) {
-		data = new byte[initialPageLength * 64 * 1024];
-		this.maximumPageLength = maximumPageLength;
+		this(initialPageLength, maximumPageLength, false);
+	}
+
+	// Direct memory is allocated outside the Java heap, so large memories are not copied by GC
+	public Memory(int initialPageLength, int maximumPageLength, boolean isDirect) {
+		this(allocate(initialPageLength * PAGE_SIZE, isDirect), maximumPageLength, false);
+	}
+
+	private Memory(java.nio.ByteBuffer data, int maximumPageLength, boolean isMapped) {
+		this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+		size = data.capacity();
+		pageLength = size / PAGE_SIZE;
+		this.maximumPageLength = Math.min(maximumPageLength, MAX_PAGE_LENGTH);
+		this.isMapped = isMapped;
+	}
+
+	private static java.nio.ByteBuffer allocate(int capacity, boolean isDirect) {
+		return isDirect? java.nio.ByteBuffer.allocateDirect(capacity): java.nio.ByteBuffer.allocate(capacity);
+	}
+
+	// Maps a memory image without copying it. The pages are loaded lazily by the OS.
+	// PRIVATE mapping makes writes copy-on-write and READ_WRITE mapping writes them back to the file.
+	// READ_ONLY is mapped as PRIVATE, because the stores of the guest code must not fail on a read-only buffer.
+	static Memory map(Path imageFile, MapMode mapMode, int initialPageLength, int maximumPageLength) throws IOException {
+		if (mapMode == MapMode.READ_ONLY) {
+			mapMode = MapMode.PRIVATE;
+		}
+		try (FileChannel channel = mapMode == MapMode.PRIVATE? FileChannel.open(imageFile, READ, WRITE): FileChannel.open(imageFile, READ, WRITE, CREATE)) {
+			long imageSize = channel.size();
+			long size = Math.max((long) initialPageLength, imageSize / PAGE_SIZE) * PAGE_SIZE;
+			if (Integer.MAX_VALUE < size) {
+				throw new IOException("memory image is too large: " + imageFile);
+			}
+			if (imageSize < size && mapMode != MapMode.READ_WRITE) {
+				// Mapping beyond the end would extend the file
+				throw new IOException("memory image is smaller than the initial memory: " + imageFile);
+			}
+			return new Memory(channel.map(mapMode, 0, size), maximumPageLength, true);
+		}
+	}
+
+	// The memory of a fork shares the pages of the snapshot with the other forks until they are written.
+	// It is copied into a new buffer only when it grows beyond the snapshot.
+	static Memory fork(Snapshot snapshot, int maximumPageLength) {
+		Memory memory = new Memory(snapshot.map(), maximumPageLength, false);
+		memory.setLastSnapshot(snapshot);
+		return memory;
+	}
+
+	boolean isDirect() {
+		return data.isDirect();
+	}
+
+	int getPageLength() {
+		return pageLength;
+	}
+
+	// Returns the previous page length, or -1 when the memory cannot grow
+	int grow(int deltaPageLength) {
+		int oldPageLength = pageLength;
+		if (deltaPageLength < 0 || maximumPageLength - oldPageLength < deltaPageLength) {
+			return -1;
+		}
+		int newSize = (oldPageLength + deltaPageLength) * PAGE_SIZE;
+		if (data.capacity() < newSize) {
+			if (isMapped) {
+				// A mapping cannot be extended in place
+				return -1;
+			}
+			// Doubling the capacity makes repeated growth amortized O(1)
+			int newCapacity = (int) Math.min(Math.max((long) newSize, 2L * data.capacity()), (long) maximumPageLength * PAGE_SIZE);
+			java.nio.ByteBuffer newData = allocate(newCapacity, data.isDirect()).order(ByteOrder.LITTLE_ENDIAN);
+			newData.put(data.duplicate());
+			// Buffer methods are called through Buffer because ByteBuffer overrides them only since Java 9
+			((Buffer) newData).position(0);
+			data = newData;
+		}
+		((Buffer) data).limit(newSize);
+		size = newSize;
+		pageLength += deltaPageLength;
+		return oldPageLength;
 	}
 
 	void setData(int offset, byte[] data) {
-		System.arraycopy(data, 0, this.data,offset,data.length);
+		setData(offset, new ByteBuffer(data));
+	}
+
+	// Copies a data segment from the module binary directly
+	void setData(int offset, ByteBuffer data) {
+		java.nio.ByteBuffer duplicate = this.data.duplicate();
+		((Buffer) duplicate).position(offset);
+		duplicate.put(data.getBytes(), data.getOffset(), data.getLength());
+		if (data.getLength() != 0) {
+			markDirty(offset, data.getLength());
+		}
+	}
+
+	private void markDirty(int address, int length) {
+		BitSet dirtyPages = this.dirtyPages;
+		if (dirtyPages == null) {
+			return;
+		}
+		dirtyPages.set(address >>> DIRTY_PAGE_SHIFT, ((address + length - 1) >>> DIRTY_PAGE_SHIFT) + 1);
+	}
+
+	// Writes the current contents into a snapshot file and starts tracking the pages written after it.
+	// The last snapshot and its file are returned again while the memory is not written, so that repeated forks do not copy it.
+	Snapshot snapshot() {
+		if (lastSnapshot != null && dirtyPages.isEmpty() && lastSnapshot.size == size) {
+			return lastSnapshot;
+		}
+		Snapshot snapshot = Snapshot.write(data.duplicate(), pageLength);
+		setLastSnapshot(snapshot);
+		return snapshot;
+	}
+
+	// The memory keeps its last snapshot open, so that it can be forked again without being written.
+	// The pages written after it are tracked from here.
+	private void setLastSnapshot(Snapshot snapshot) {
+		if (dirtyPages == null) {
+			dirtyPages = new BitSet();
+		} else {
+			dirtyPages.clear();
+		}
+		if (lastSnapshot == snapshot) {
+			return;
+		}
+		snapshot.retain();
+		if (lastSnapshot != null) {
+			lastSnapshot.release();
+		}
+		lastSnapshot = snapshot;
+	}
+
+	// Restores only the pages written since the snapshot, and shrinks the memory grown since then.
+	// The snapshot must be taken from this memory or from another one in the same state as this memory was when it was tracked last.
+	void restore(Snapshot snapshot) {
+		if (dirtyPages == null) {
+			// Not tracked yet, so all the pages are restored
+			dirtyPages = new BitSet();
+			dirtyPages.set(0, (size + DIRTY_PAGE_SIZE - 1) >>> DIRTY_PAGE_SHIFT);
+		}
+		java.nio.ByteBuffer image = snapshot.getImage();
+		java.nio.ByteBuffer duplicate = data.duplicate();
+		for (int index = dirtyPages.nextSetBit(0); 0 <= index; index = dirtyPages.nextSetBit(index + 1)) {
+			int address = index << DIRTY_PAGE_SHIFT;
+			((Buffer) duplicate).position(address);
+			if (address < snapshot.size) {
+				((Buffer) image).limit(address + DIRTY_PAGE_SIZE);
+				((Buffer) image).position(address);
+				duplicate.put(image);
+			} else {
+				// Grown pages are cleared, because they are reused when the memory grows again
+				duplicate.put(ZERO_PAGE);
+			}
+		}
+		setLastSnapshot(snapshot);
+
+		((Buffer) data).limit(snapshot.size);
+		size = snapshot.size;
+		pageLength = snapshot.pageLength;
+	}
+
+	// Addresses and offsets are unsigned, so the effective address is computed in 33 bits before it is checked
+	int toEffectiveAddress(int address, int offset, int length) {
+		long effectiveAddress = (address & 0xffffffffL) + (offset & 0xffffffffL);
+		if (size - length < effectiveAddress) {
+			throw new TrapException("out of bounds memory access");
+		}
+		return (int) effectiveAddress;
+	}
+
+	long readInt64(int address) {
+		return data.getLong(address);
 	}
 
 	int readInt32(int address) {
-		return readInt8(address) | (readUint8AsInt(address + 1) << 8) | (readUint8AsInt(address + 2) << 16) | (readUint8AsInt(address + 3) << 24);
+		return data.getInt(address);
 	}
 
 	int readInt16AsInt(int address) {
-		return (short) readUint16AsInt(address);
+		return data.getShort(address);
 	}
 
 	int readUint16AsInt(int address) {
-		return readUint8AsInt(address) | (readUint8AsInt(address + 1) << 8);
+		return data.getShort(address) & 0xffff;
 	}
 
 	int readUint8AsInt(int address) {
-		return readInt8(address) & 0xff;
+		return data.get(address) & 0xff;
 	}
 
 	byte readInt8(int address) {
-		return data[address];
+		return data.get(address);
+	}
+
+	float readFloat32(int address) {
+		return data.getFloat(address);
+	}
+
+	double readFloat64(int address) {
+		return data.getDouble(address);
+	}
+
+	void writeInt64(int address, long value) {
+		data.putLong(address, value);
+		markDirty(address, 8);
+	}
+
+	void writeInt32(int address, int value) {
+		data.putInt(address, value);
+		markDirty(address, 4);
+	}
+
+	void writeInt16(int address, short value) {
+		data.putShort(address, value);
+		markDirty(address, 2);
+	}
+
+	void writeInt8(int address, byte value) {
+		data.put(address, value);
+		markDirty(address, 1);
+	}
+
+	void writeFloat32(int address, float value) {
+		data.putFloat(address, value);
+		markDirty(address, 4);
+	}
+
+	void writeFloat64(int address, double value) {
+		data.putDouble(address, value);
+		markDirty(address, 8);
+	}
+
+	static final class Snapshot {
+		private final int size;
+		private final int pageLength;
+
+		// The contents are written into a file deleted just after its creation. Forks map the file privately to make the OS copy
+		// the pages on write, and restore copies the pages from the read-only image, which stays valid after the channel is closed.
+		private final FileChannel channel;
+		private final java.nio.ByteBuffer image;
+
+		// The memories whose last snapshot this is and the instance snapshots containing this. The channel is closed when all of
+		// them have released this.
+		private int referenceCount;
+		private boolean isClosed;
+
+		private Snapshot(int size, int pageLength, FileChannel channel, java.nio.ByteBuffer image) {
+			this.size = size;
+			this.pageLength = pageLength;
+			this.channel = channel;
+			this.image = image;
+		}
+
+		// Writes the contents straight from the buffer of the memory
+		private static Snapshot write(java.nio.ByteBuffer contents, int pageLength) {
+			int size = contents.remaining();
+			if (size == 0) {
+				return new Snapshot(size, pageLength, null, java.nio.ByteBuffer.allocate(0));
+			}
+			try {
+				Path file = Files.createTempFile("memory", ".snapshot");
+				FileChannel channel;
+				try {
+					channel = FileChannel.open(file, READ, WRITE);
+				} finally {
+					// The storage is freed when the channel and the mappings are gone
+					Files.delete(file);
+				}
+				try {
+					while (contents.hasRemaining()) {
+						channel.write(contents);
+					}
+					return new Snapshot(size, pageLength, channel, channel.map(MapMode.READ_ONLY, 0, size));
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		java.nio.ByteBuffer getImage() {
+			return image.duplicate();
+		}
+
+		int getPageLength() {
+			return pageLength;
+		}
+
+		private synchronized java.nio.ByteBuffer map() {
+			if (isClosed) {
+				throw new IllegalStateException("snapshot is closed");
+			}
+			if (channel == null) {
+				return java.nio.ByteBuffer.allocate(0);
+			}
+			try {
+				return channel.map(MapMode.PRIVATE, 0, size);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		synchronized void retain() {
+			if (isClosed) {
+				throw new IllegalStateException("snapshot is closed");
+			}
+			referenceCount++;
+		}
+
+		// The forks created so far are not affected when the channel is closed
+		synchronized void release() {
+			if (--referenceCount != 0) {
+				return;
+			}
+			isClosed = true;
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		synchronized boolean isOpen() {
+			return !isClosed;
+		}
 	}
 }
@@ -1,10 +1,21 @@
 package jp.hisano.wasm.interpreter;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+import jp.hisano.wasm.interpreter.Configuration.TierListener;
+import jp.hisano.wasm.interpreter.JvmCompiler.GeneratedClass;
 
 import static java.lang.Double.isInfinite;
 import static java.lang.Double.isNaN;
@@ -21,12 +32,14 @@ import static java.lang.Long.remainderUnsigned;
 import static java.lang.Long.rotateLeft;
 import static java.lang.Long.rotateRight;
 import static java.lang.Math.*;
-import jp.hisano.wasm.interpreter.Frame.ExceptionToExitBlock;
-import jp.hisano.wasm.interpreter.Frame.ExceptionToReturn;
 import static jp.hisano.wasm.interpreter.InterpreterException.Type.*;
 
+// A decoded module, which is not changed after it is constructed except for the functions promoted by TIERED. It can be
+// shared by the threads which create their own Instance from it, since all function bodies are decoded in the constructor.
 public final class Module {
 	private final List<FunctionType> functionTypes = new ArrayList<>();
+	// The equal signatures share an id, so that the type of a call_indirect target is checked by comparing ints
+	private final Map<List<List<ValueType>>, Integer> canonicalTypeIds = new HashMap<>();
 	private final List<Function> functions = new ArrayList<>();
 	private final Map<String, ExportedFunction> exportedFunctions = new HashMap<>();
 
@@ -37,12 +50,60 @@ public final class Module {
 
 	private final List<GlobalVariableType> globalVariableTypes = new LinkedList<>();
 
+	private final Configuration configuration;
+	// Created on the first call unless the thread stack size of the configuration is 0
+	private ExecutorService executor;
+
 	public Module(byte[] wasmFileContent) {
+		this(wasmFileContent, new Configuration());
+	}
+
+	// The function bodies and the data are views of the binary, so they point into a copy which the caller cannot change
+	public Module(byte[] wasmFileContent, Configuration configuration) {
+		this(configuration, wasmFileContent.clone());
+	}
+
+	// The binary is not copied, so it must not be changed after this
+	Module(Configuration configuration, byte[] wasmFileContent) {
+		// Copied so that the module is not changed by the caller after it is shared
+		this.configuration = new Configuration(configuration);
 		new Parser(wasmFileContent).parseModule(this);
+
+		if (configuration.getCacheDirectory() != null && CodeCache.isCacheable(configuration.getEngine())) {
+			new CodeCache(configuration.getCacheDirectory(), configuration.getEngine()).loadOrStore(this, wasmFileContent);
+		} else {
+			decodeFunctions();
+		}
+	}
+
+	// Parses the module while it is read, without reading the whole binary into an array first
+	public Module(InputStream input, Configuration configuration) throws IOException {
+		this(Channels.newChannel(input), configuration);
+	}
+
+	public Module(ReadableByteChannel channel, Configuration configuration) throws IOException {
+		this.configuration = new Configuration(configuration);
+		new StreamingParser(channel).parseModule(this);
+		decodeFunctions();
+	}
+
+	// All the function bodies are decoded when the module is built, so that the functions are not changed after the module
+	// is shared. The bodies which have been decoded while they were read are skipped.
+	private void decodeFunctions() {
+		if (configuration.getEngine() == Engine.JVM) {
+			// Compiled together, so that the calls between them are direct
+			for (GeneratedClass generatedClass : JvmCompiler.generate(this, functions)) {
+				setCodes(generatedClass);
+			}
+		}
+		// The bodies are independent of each other, so they are decoded by the worker threads of the common ForkJoinPool
+		(configuration.isParallelDecoding()? functions.parallelStream(): functions.stream()).forEach(Function::decode);
 	}
 
 	void addFunctionType(ValueType[] parameterTypes, ValueType[] returnTypes) {
-		functionTypes.add(new FunctionType(parameterTypes, returnTypes));
+		List<List<ValueType>> signature = Arrays.asList(Arrays.asList(parameterTypes), Arrays.asList(returnTypes));
+		int canonicalTypeId = canonicalTypeIds.computeIfAbsent(signature, key -> canonicalTypeIds.size());
+		functionTypes.add(new FunctionType(parameterTypes, returnTypes, canonicalTypeId));
 	}
 
 	FunctionType getFunctionType(int index) {
@@ -51,7 +112,7 @@ public final class Module {
 
 	void addFunction(int typeIndex) {
 		FunctionType functionType = functionTypes.get(typeIndex);
-		functions.add(new Function(functionType.parameterTypes, functionType.returnTypes));
+		functions.add(new Function(functionType.parameterTypes, functionType.returnTypes, functionType.canonicalTypeId));
 	}
 
 	void addExportedFunction(String name, int functionIndex) {
@@ -62,6 +123,10 @@ public final class Module {
 		return functions.get(functionIndex);
 	}
 
+	List<Function> getFunctions() {
+		return functions;
+	}
+
 	ExportedFunction getExportedFunction(String name) {
 		return exportedFunctions.get(name);
 	}
@@ -86,11 +151,42 @@ public final class Module {
 		return elementTypes;
 	}
 
+	Configuration getConfiguration() {
+		return configuration;
+	}
+
+	// Threads with the stack size of the configuration, which are discarded after they have been idle for a while
+	synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new ExecutorThread(this, runnable);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	// Compiles all functions at once, so that the calls between them are direct calls of the JVM. The functions which cannot
+	// be compiled are left undecoded.
+	void setCodes(GeneratedClass generatedClass) {
+		Code[] codes = generatedClass.define();
+		for (int i = 0; i < codes.length; i++) {
+			functions.get(generatedClass.getFunctionIndices()[i]).setCode(Engine.JVM, codes[i]);
+		}
+	}
+
+	// The calls from the host functions back into the module already run on a thread of getExecutor
+	boolean isExecutorThread() {
+		Thread thread = Thread.currentThread();
+		return thread instanceof ExecutorThread && ((ExecutorThread) thread).module == this;
+	}
+
 	void addMemoryType(int minimumPageLength, int maximumPageLength) {
 		memoryTypes.add(new MemoryType(minimumPageLength, maximumPageLength));
 	}
 
-	void addMemoryData(int memoryIndex, List<Instruction> offsetInstructions, byte[] data) {
+	void addMemoryData(int memoryIndex, List<Instruction> offsetInstructions, ByteBuffer data) {
 		memoryTypes.get(memoryIndex).addData(offsetInstructions, data);
 	}
 
@@ -114,6 +210,19 @@ public final class Module {
 		VOID, I32, I64, F32, F64, V128, FUNCREF, EXTERNREF,
 	}
 
+	static int toResultLength(ValueType blockType) {
+		return blockType == ValueType.VOID? 0: 1;
+	}
+
+	final static class ExecutorThread extends Thread {
+		private final Module module;
+
+		ExecutorThread(Module module, Runnable runnable) {
+			super(null, runnable, "wasm-" + Integer.toHexString(System.identityHashCode(module)), module.configuration.getThreadStackSize());
+			this.module = module;
+		}
+	}
+
 	static class VariableType {
 		private final ValueType type;
 
@@ -193,7 +302,7 @@ public final class Module {
 			return maximumPageLength;
 		}
 
-		void addData(List<Instruction> offsetInstructions, byte[] data) {
+		void addData(List<Instruction> offsetInstructions, ByteBuffer data) {
 			this.data.add(new Data(offsetInstructions, data));
 		}
 
@@ -203,9 +312,10 @@ public final class Module {
 
 		static class Data {
 			private final List<Instruction> offsetInstructions;
-			private final byte[] data;
+			// A view of the module binary, which is copied into the memory directly
+			private final ByteBuffer data;
 
-			Data(List<Instruction> offsetInstructions, byte[] data) {
+			Data(List<Instruction> offsetInstructions, ByteBuffer data) {
 				this.offsetInstructions = offsetInstructions;
 				this.data = data;
 			}
@@ -214,7 +324,7 @@ public final class Module {
 				return offsetInstructions;
 			}
 
-			byte[] getData() {
+			ByteBuffer getData() {
 				return data;
 			}
 		}
@@ -250,57 +360,164 @@ public final class Module {
 	class Function {
 		final ValueType[] parameterTypes;
 		final ValueType[] returnTypes;
+		final int canonicalTypeId;
 
 		Local[] locals;
-		byte[] instructions;
-		FunctionBlock functionBlock;
+		// The body is a view of the module binary
+		private ByteBuffer instructions;
+		// Replaced when the function is promoted, which switches every call site at once
+		volatile Code code;
+		private volatile Engine engine;
+		private int hotness;
 
-		Function(ValueType[] parameterTypes, ValueType[] returnTypes) {
+		private int localVariableLength;
+
+		Function(ValueType[] parameterTypes, ValueType[] returnTypes, int canonicalTypeId) {
 			this.parameterTypes = parameterTypes;
 			this.returnTypes = returnTypes;
+			this.canonicalTypeId = canonicalTypeId;
 		}
 
-		void setBody(Local[] locals, byte[] instructions) {
+		void setBody(Local[] locals, ByteBuffer instructions) {
 			this.locals = locals;
 			this.instructions = instructions;
+
+			localVariableLength = parameterTypes.length;
+			for (Local local : locals) {
+				localVariableLength += local.getCount();
+			}
 		}
 
-		void invoke(Frame frame) {
-			if (functionBlock == null) {
-				functionBlock = new Parser(instructions).parseFunctionBlock(frame.getInstance().getModule(), this);
+		int getLocalVariableLength() {
+			return localVariableLength;
+		}
+
+		Configuration getConfiguration() {
+			return configuration;
+		}
+
+		ExecutorService getExecutor() {
+			return Module.this.getExecutor();
+		}
+
+		boolean isExecutorThread() {
+			return Module.this.isExecutorThread();
+		}
+
+		boolean hasBody() {
+			return instructions != null;
+		}
+
+		boolean hasType(FunctionType functionType) {
+			return canonicalTypeId == functionType.canonicalTypeId;
+		}
+
+		int getInstructionLength() {
+			return instructions.getLength();
+		}
+
+		// Returns a new reader, since functions may be decoded by several threads at once
+		ByteBuffer readInstructions() {
+			return new ByteBuffer(instructions.getBytes(), instructions.getOffset(), instructions.getLength());
+		}
+
+		int getMaxStackHeight() {
+			return getCode().getMaxStackHeight();
+		}
+
+		// Sets the code loaded from CodeCache before the function is called
+		void setCode(Engine engine, Code code) {
+			this.engine = engine;
+			this.code = code;
+		}
+
+		// Called once for each function while the module is built
+		void decode() {
+			if (!hasBody() || code != null) {
+				return;
+			}
+			engine = getInitialEngine();
+			try {
+				code = compile(engine);
+			} catch (UnsupportedOperationException | InterpreterException e) {
+				// Left undecoded so that the error is reported by each call
 			}
-			functionBlock.execute(frame);
 		}
 
-		void executeWithNewFrame(Frame parent) {
-			Frame frame = new Frame(parent.getInstance(), this);
-
-			for (int i = parameterTypes.length - 1; 0 <= i; i--) {
-				switch (parameterTypes[i]) {
-					case I32:
-						frame.getLocalVariable(i).getValue().setI32(parent.pop().getI32());
-						break;
-					case I64:
-						frame.getLocalVariable(i).getValue().setI64(parent.pop().getI64());
-						break;
+		private Engine getInitialEngine() {
+			return configuration.getEngine() == Engine.TIERED? Engine.TREE: configuration.getEngine();
+		}
+
+		private Code getCode() {
+			Code code = this.code;
+			// Only the bodies which failed to be decoded are null, and decoding them again throws the error
+			return code != null? code: compile(getInitialEngine());
+		}
+
+		private Code compile(Engine engine) {
+			switch (engine) {
+				case TREE:
+					return new Parser(readInstructions()).parseFunctionBlock(Module.this, this);
+				case FLAT:
+					return new FlatCodeCompiler(Module.this, this).compile();
+				case REGISTER: {
+					Code code = RegisterCodeCompiler.compile(Module.this, this);
+					return code != null? code: new FlatCodeCompiler(Module.this, this).compile();
+				}
+				case JVM: {
+					// Unless promoted by TIERED, the functions which JvmCompiler can compile have been compiled with the module
+					Code code = configuration.getEngine() == Engine.TIERED? JvmCompiler.compile(Module.this, this): null;
+					return code != null? code: new FlatCodeCompiler(Module.this, this).compile();
 				}
+				default:
+					throw new IllegalArgumentException("engine = " + engine);
 			}
+		}
 
-			invoke(frame);
+		// The callees of return_call replace the frame and are executed in this loop, so that tail calls do not nest
+		void invoke(Frame frame) {
+			for (Function function = this; function != null; function = frame.enterTailCall()) {
+				function.execute(frame);
+			}
+		}
+
+		private void execute(Frame frame) {
+			getCode().execute(frame);
+			if (engine == Engine.TREE && configuration.getEngine() == Engine.TIERED) {
+				countHotness(1 + frame.getBackEdgeCount());
+			}
+		}
 
-			if (returnTypes.length == 0) {
+		// There is no on-stack replacement, so a promoted function is used from the next call.
+		// The count is not synchronized between threads, since a lost update only delays the promotion.
+		private void countHotness(int count) {
+			hotness += count;
+			if (hotness < configuration.getTierUpThreshold()) {
 				return;
 			}
 
-			switch (returnTypes[0]) {
-				case I32:
-					parent.pushI32(frame.pop().getI32());
-					break;
-				case I64:
-					parent.pushI64(frame.pop().getI64());
-					break;
+			Engine fromEngine;
+			synchronized (this) {
+				if (engine != Engine.TREE) {
+					return;
+				}
+				fromEngine = engine;
+				code = compile(configuration.getTieredEngine());
+				engine = configuration.getTieredEngine();
+			}
+
+			TierListener tierListener = configuration.getTierListener();
+			if (tierListener != null) {
+				tierListener.onTierUp(functions.indexOf(this), fromEngine, engine);
 			}
 		}
+
+		// The arguments on the operand stack of the parent are the first locals of the new frame, so a call does not copy them
+		void executeWithNewFrame(Frame parent) {
+			Frame frame = parent.enterCall(this);
+			invoke(frame);
+			parent.exitCall(frame, returnTypes.length);
+		}
 	}
 
 	static class Local {
@@ -321,16 +538,24 @@ public final class Module {
 		}
 	}
 
-	private class FunctionType {
-		private final ValueType[] parameterTypes;
-		private final ValueType[] returnTypes;
+	static class FunctionType {
+		final ValueType[] parameterTypes;
+		final ValueType[] returnTypes;
+		final int canonicalTypeId;
 
-		FunctionType(ValueType[] parameterTypes, ValueType[] returnTypes) {
+		FunctionType(ValueType[] parameterTypes, ValueType[] returnTypes, int canonicalTypeId) {
 			this.parameterTypes = parameterTypes;
 			this.returnTypes = returnTypes;
+			this.canonicalTypeId = canonicalTypeId;
 		}
 	}
 
+	interface Code {
+		int getMaxStackHeight();
+
+		void execute(Frame frame);
+	}
+
 	interface Instruction {
 		void execute(Frame frame);
 	}
@@ -358,9 +583,20 @@ public final class Module {
 	}
 
 	final static class Return extends ExitBlock {
+		private final BranchTarget target;
+
+		Return(BranchTarget target) {
+			this.target = target;
+		}
+
+		@Override
+		void resolveIndices() {
+			target.resolveIndex();
+		}
+
 		@Override
 		public void execute(Frame frame) {
-			frame.throwExceptionToReturn();
+			target.branch(frame);
 		}
 	}
 
@@ -371,194 +607,437 @@ public final class Module {
 			this.function = function;
 		}
 
+		Function getFunction() {
+			return function;
+		}
+
 		@Override
 		public void execute(Frame frame) {
 			function.executeWithNewFrame(frame);
 		}
 	}
 
+	final static class ReturnCall implements Instruction {
+		private final Function function;
+
+		ReturnCall(Function function) {
+			this.function = function;
+		}
+
+		Function getFunction() {
+			return function;
+		}
+
+		@Override
+		public void execute(Frame frame) {
+			frame.returnCall(function);
+		}
+	}
+
 	final static class CallIndirect implements Instruction {
 		private final FunctionType functionType;
 		private final int tableIndex;
+		private final CallIndirectCache cache;
 
 		CallIndirect(Module module, int typeIndex, int tableIndex) {
 			functionType = module.getFunctionType(typeIndex);
 			this.tableIndex = tableIndex;
+			cache = new CallIndirectCache(module, typeIndex);
+		}
+
+		FunctionType getFunctionType() {
+			return functionType;
 		}
 
 		@Override
 		public void execute(Frame frame) {
-			int functionIndex = frame.pop().getI32();
-			Function function = frame.getInstance().getTable(tableIndex).getFunction(functionIndex);
+			int functionIndex = frame.popI32();
+			Function function = cache.getFunction(frame.getInstance().getTable(tableIndex), functionIndex);
 			function.executeWithNewFrame(frame);
 		}
 	}
 
+	final static class ReturnCallIndirect implements Instruction {
+		private final FunctionType functionType;
+		private final int tableIndex;
+		private final CallIndirectCache cache;
+
+		ReturnCallIndirect(Module module, int typeIndex, int tableIndex) {
+			functionType = module.getFunctionType(typeIndex);
+			this.tableIndex = tableIndex;
+			cache = new CallIndirectCache(module, typeIndex);
+		}
+
+		FunctionType getFunctionType() {
+			return functionType;
+		}
+
+		@Override
+		public void execute(Frame frame) {
+			int functionIndex = frame.popI32();
+			frame.returnCall(cache.getFunction(frame.getInstance().getTable(tableIndex), functionIndex));
+		}
+	}
+
+	static final class BranchTarget {
+		private final AbstractBlock block;
+		private final int keepLength;
+		private final int dropLength;
+
+		private int index;
+
+		BranchTarget(AbstractBlock block, int keepLength, int dropLength) {
+			this.block = block;
+			this.keepLength = keepLength;
+			this.dropLength = dropLength;
+		}
+
+		void resolveIndex() {
+			index = block.getBranchIndex();
+		}
+
+		void branch(Frame frame) {
+			frame.branch(index, keepLength, dropLength);
+		}
+	}
+
 	private static abstract class ExitBlock implements Instruction {
+		// Called after the enclosing FunctionBlock has been flattened
+		abstract void resolveIndices();
 	}
 
 	final static class Br extends ExitBlock {
-		private final int depth;
+		private final BranchTarget target;
 
-		Br(int depth) {
-			this.depth = depth;
+		Br(BranchTarget target) {
+			this.target = target;
+		}
+
+		@Override
+		void resolveIndices() {
+			target.resolveIndex();
 		}
 
 		@Override
 		public void execute(Frame frame) {
-			frame.throwExceptionToExitBlock(depth);
+			target.branch(frame);
 		}
 	}
 
 	final static class BrIf extends ExitBlock {
-		private final int depth;
+		private final BranchTarget target;
+
+		BrIf(BranchTarget target) {
+			this.target = target;
+		}
+
+		BranchTarget getTarget() {
+			return target;
+		}
 
-		BrIf(int depth) {
-			this.depth = depth;
+		@Override
+		void resolveIndices() {
+			target.resolveIndex();
 		}
 
 		@Override
 		public void execute(Frame frame) {
-			if (frame.pop().getI32() != 0) {
-				frame.throwExceptionToExitBlock(depth);
+			if (frame.popI32() != 0) {
+				target.branch(frame);
 			}
 		}
 	}
 
 	final static class BrTable extends ExitBlock {
-		private final int[] depths;
-		private final int defaultDepth;
+		private final BranchTarget[] targets;
+		private final BranchTarget defaultTarget;
+
+		BrTable(BranchTarget[] targets, BranchTarget defaultTarget) {
+			this.targets = targets;
+			this.defaultTarget = defaultTarget;
+		}
 
-		BrTable(int[] depths, int defaultDepth) {
-			this.depths = depths;
-			this.defaultDepth = defaultDepth;
+		@Override
+		void resolveIndices() {
+			for (BranchTarget target : targets) {
+				target.resolveIndex();
+			}
+			defaultTarget.resolveIndex();
 		}
 
 		@Override
 		public void execute(Frame frame) {
-			int index = frame.pop().getI32();
-			if (index < depths.length) {
-				frame.throwExceptionToExitBlock(depths[index]);
+			int index = frame.popI32();
+			if (compareUnsigned(index, targets.length) < 0) {
+				targets[index].branch(frame);
 			} else {
-				frame.throwExceptionToExitBlock(defaultDepth);
+				defaultTarget.branch(frame);
 			}
 		}
 	}
 
-	static abstract class MemoryAccess extends PushValueInstruction {
+	static abstract class MemoryAccess implements Instruction {
 		private final int align;
 		private final int offset;
+		private final int length;
+		// Set when BoundsCheckAnalyzer proves that the access is in bounds
+		private boolean isInBounds;
 
-		MemoryAccess(int align, int offset) {
+		MemoryAccess(int align, int offset, int length) {
 			this.align = align;
 			this.offset = offset;
+			this.length = length;
+		}
+
+		void setInBounds() {
+			isInBounds = true;
 		}
 
 		@Override
-		final Value getValue(Frame frame) {
-			int address = offset + frame.pop().getI32();
+		public final void execute(Frame frame) {
+			execute(frame, frame.popI32());
+		}
+
+		final void execute(Frame frame, int address) {
 			Memory memory = frame.getInstance().getMemory();
-			return readMemory(memory, address);
+			int effectiveAddress = isInBounds? offset + address: memory.toEffectiveAddress(address, offset, length);
+			frame.pushI32(readMemory(memory, effectiveAddress));
 		}
 
-		abstract Value readMemory(Memory memory, int address);
+		abstract int readMemory(Memory memory, int address);
 	}
 
 	final static class I32Load extends MemoryAccess {
 		I32Load(int align, int offset) {
-			super(align, offset);
+			super(align, offset, 4);
 		}
 
 		@Override
-		Value readMemory(Memory memory, int address) {
-			return new Value(memory.readInt32(address));
+		int readMemory(Memory memory, int address) {
+			return memory.readInt32(address);
 		}
 	}
 
 	final static class I32Load8S extends MemoryAccess {
 		I32Load8S(int align, int offset) {
-			super(align, offset);
+			super(align, offset, 1);
 		}
 
 		@Override
-		Value readMemory(Memory memory, int address) {
-			return new Value(memory.readInt8(address));
+		int readMemory(Memory memory, int address) {
+			return memory.readInt8(address);
 		}
 	}
 
 	final static class I32Load8U extends MemoryAccess {
 		I32Load8U(int align, int offset) {
-			super(align, offset);
+			super(align, offset, 1);
 		}
 
 		@Override
-		Value readMemory(Memory memory, int address) {
-			return new Value(memory.readUint8AsInt(address));
+		int readMemory(Memory memory, int address) {
+			return memory.readUint8AsInt(address);
 		}
 	}
 
 	final static class I32Load16S extends MemoryAccess {
 		I32Load16S(int align, int offset) {
-			super(align, offset);
+			super(align, offset, 2);
 		}
 
 		@Override
-		Value readMemory(Memory memory, int address) {
-			return new Value(memory.readInt16AsInt(address));
+		int readMemory(Memory memory, int address) {
+			return memory.readInt16AsInt(address);
 		}
 	}
 
 	final static class I32Load16U extends MemoryAccess {
 		I32Load16U(int align, int offset) {
-			super(align, offset);
+			super(align, offset, 2);
 		}
 
 		@Override
-		Value readMemory(Memory memory, int address) {
-			return new Value(memory.readUint16AsInt(address));
+		int readMemory(Memory memory, int address) {
+			return memory.readUint16AsInt(address);
 		}
 	}
 
-	final static class Drop implements Instruction {
+	static abstract class MemoryStore implements Instruction {
+		private final int align;
+		private final int offset;
+		private final int length;
+		// Set when BoundsCheckAnalyzer proves that the access is in bounds
+		private boolean isInBounds;
+
+		MemoryStore(int align, int offset, int length) {
+			this.align = align;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		void setInBounds() {
+			isInBounds = true;
+		}
+
+		@Override
+		public final void execute(Frame frame) {
+			// Floats are stored as their raw bits like on the operand stack
+			long value = frame.pop();
+			int address = frame.popI32();
+			Memory memory = frame.getInstance().getMemory();
+			writeMemory(memory, isInBounds? offset + address: memory.toEffectiveAddress(address, offset, length), value);
+		}
+
+		abstract void writeMemory(Memory memory, int address, long value);
+	}
+
+	final static class I32Store extends MemoryStore {
+		I32Store(int align, int offset) {
+			super(align, offset, 4);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt32(address, (int) value);
+		}
+	}
+
+	final static class I64Store extends MemoryStore {
+		I64Store(int align, int offset) {
+			super(align, offset, 8);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt64(address, value);
+		}
+	}
+
+	final static class F32Store extends MemoryStore {
+		F32Store(int align, int offset) {
+			super(align, offset, 4);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt32(address, (int) value);
+		}
+	}
+
+	final static class F64Store extends MemoryStore {
+		F64Store(int align, int offset) {
+			super(align, offset, 8);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt64(address, value);
+		}
+	}
+
+	final static class I32Store8 extends MemoryStore {
+		I32Store8(int align, int offset) {
+			super(align, offset, 1);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt8(address, (byte) value);
+		}
+	}
+
+	final static class I32Store16 extends MemoryStore {
+		I32Store16(int align, int offset) {
+			super(align, offset, 2);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt16(address, (short) value);
+		}
+	}
+
+	final static class I64Store8 extends MemoryStore {
+		I64Store8(int align, int offset) {
+			super(align, offset, 1);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt8(address, (byte) value);
+		}
+	}
+
+	final static class I64Store16 extends MemoryStore {
+		I64Store16(int align, int offset) {
+			super(align, offset, 2);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt16(address, (short) value);
+		}
+	}
+
+	final static class I64Store32 extends MemoryStore {
+		I64Store32(int align, int offset) {
+			super(align, offset, 4);
+		}
+
+		@Override
+		void writeMemory(Memory memory, int address, long value) {
+			memory.writeInt32(address, (int) value);
+		}
+	}
+
+	final static class GlobalSet implements Instruction {
+		private final int index;
+
+		GlobalSet(int index) {
+			this.index = index;
+		}
+
 		@Override
 		public void execute(Frame frame) {
-			frame.pop();
+			frame.getInstance().getGlobalVariable(index).setValue(frame.pop());
 		}
 	}
 
-	private static abstract class PushValueInstruction implements Instruction {
+	final static class MemorySize implements Instruction {
 		@Override
-		public final void execute(Frame frame) {
-			Value value = getValue(frame);
-			switch (value.getType()) {
-				case I32:
-					frame.pushI32(value.getI32());
-					return;
-				case I64:
-					frame.pushI64(value.getI64());
-					return;
-				case F32:
-					frame.pushF32(value.getF32());
-					return;
-				case F64:
-					frame.pushF64(value.getF64());
-					return;
-			}
+		public void execute(Frame frame) {
+			frame.pushI32(frame.getInstance().getMemory().getPageLength());
 		}
+	}
 
-		abstract Value getValue(Frame frame);
+	final static class MemoryGrow implements Instruction {
+		@Override
+		public void execute(Frame frame) {
+			frame.pushI32(frame.getInstance().getMemory().grow(frame.popI32()));
+		}
 	}
 
-	final static class LocalGet extends PushValueInstruction {
+	final static class Drop implements Instruction {
+		@Override
+		public void execute(Frame frame) {
+			frame.pop();
+		}
+	}
+
+	final static class LocalGet implements Instruction {
 		private final int index;
 
 		LocalGet(int index) {
 			this.index = index;
 		}
 
+		int getIndex() {
+			return index;
+		}
+
 		@Override
-		Value getValue(Frame frame) {
-			return frame.getLocalVariable(index).getValue();
+		public void execute(Frame frame) {
+			frame.push(frame.getLocalVariable(index));
 		}
 	}
 
@@ -571,25 +1050,11 @@ public final class Module {
 
 		@Override
 		public void execute(Frame frame) {
-			Value value = frame.getLocalVariable(index).getValue();
-			switch (value.getType()) {
-				case I32:
-					value.setI32(frame.pop().getI32());
-					break;
-				case I64:
-					value.setI64(frame.pop().getI64());
-					break;
-				case F32:
-					value.setF32(frame.pop().getF32());
-					break;
-				case F64:
-					value.setF64(frame.pop().getF64());
-					break;
-			}
+			frame.setLocalVariable(index, frame.pop());
 		}
 	}
 
-	final static class GlobalGet extends PushValueInstruction {
+	final static class GlobalGet implements Instruction {
 		private final int index;
 
 		GlobalGet(int index) {
@@ -597,8 +1062,8 @@ public final class Module {
 		}
 
 		@Override
-		Value getValue(Frame frame) {
-			return frame.getInstance().getGlobalVariable(index).getValue();
+		public void execute(Frame frame) {
+			frame.push(frame.getInstance().getGlobalVariable(index).getValue());
 		}
 	}
 
@@ -609,6 +1074,10 @@ public final class Module {
 			this.value = value;
 		}
 
+		int getValue() {
+			return value;
+		}
+
 		@Override
 		public void execute(Frame frame) {
 			frame.pushI32(value);
@@ -654,17 +1123,100 @@ public final class Module {
 		}
 	}
 
-	private static abstract class I32TwoOperandsOperator implements Instruction {
+	static abstract class I32TwoOperandsOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			int second = frame.pop().getI32();
-			int first = frame.pop().getI32();
+			int second = frame.popI32();
+			int first = frame.popI32();
 			frame.pushI32(calculate(first, second));
 		}
 
 		abstract int calculate(int first, int second);
 	}
 
+	// Superinstructions which PeepholeOptimizer fuses common sequences into. They read locals and constants directly instead of
+	// pushing them onto the stack.
+
+	// local.get a; local.get b; i32.<binop>
+	final static class LocalGetLocalGetI32Operator implements Instruction {
+		private final int firstIndex;
+		private final int secondIndex;
+		private final I32TwoOperandsOperator operator;
+
+		LocalGetLocalGetI32Operator(int firstIndex, int secondIndex, I32TwoOperandsOperator operator) {
+			this.firstIndex = firstIndex;
+			this.secondIndex = secondIndex;
+			this.operator = operator;
+		}
+
+		@Override
+		public void execute(Frame frame) {
+			frame.pushI32(operator.calculate((int) frame.getLocalVariable(firstIndex), (int) frame.getLocalVariable(secondIndex)));
+		}
+	}
+
+	// local.get a; i32.const c; i32.<binop>
+	final static class LocalGetI32ConstI32Operator implements Instruction {
+		private final int index;
+		private final int value;
+		private final I32TwoOperandsOperator operator;
+
+		LocalGetI32ConstI32Operator(int index, int value, I32TwoOperandsOperator operator) {
+			this.index = index;
+			this.value = value;
+			this.operator = operator;
+		}
+
+		@Override
+		public void execute(Frame frame) {
+			frame.pushI32(operator.calculate((int) frame.getLocalVariable(index), value));
+		}
+	}
+
+	// local.get a; i32.const c; i32.<binop>; br_if
+	final static class LocalGetI32ConstI32OperatorBrIf extends ExitBlock {
+		private final int index;
+		private final int value;
+		private final I32TwoOperandsOperator operator;
+		private final BranchTarget target;
+
+		LocalGetI32ConstI32OperatorBrIf(int index, int value, I32TwoOperandsOperator operator, BranchTarget target) {
+			this.index = index;
+			this.value = value;
+			this.operator = operator;
+			this.target = target;
+		}
+
+		@Override
+		void resolveIndices() {
+			target.resolveIndex();
+		}
+
+		@Override
+		public void execute(Frame frame) {
+			if (operator.calculate((int) frame.getLocalVariable(index), value) != 0) {
+				target.branch(frame);
+			}
+		}
+	}
+
+	// i32.const c; i32.add; i32.load*
+	final static class I32ConstI32AddMemoryAccess implements Instruction {
+		private final int value;
+		private final MemoryAccess memoryAccess;
+
+		I32ConstI32AddMemoryAccess(int value, MemoryAccess memoryAccess) {
+			this.value = value;
+			this.memoryAccess = memoryAccess;
+		}
+
+		@Override
+		public void execute(Frame frame) {
+			// The addition wraps around before the offset is added, as i32.add does
+			memoryAccess.execute(frame, frame.popI32() + value);
+		}
+	}
+
 	final static class I32Eqz extends I32Converter {
 		@Override
 		int convert(int value) {
@@ -745,15 +1297,15 @@ public final class Module {
 	final static class I64Eqz implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushI32(frame.pop().getI64() == 0? 1: 0);
+			frame.pushI32(frame.popI64() == 0? 1: 0);
 		}
 	}
 
 	private static abstract class I64TwoOperandsCmpOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			long second = frame.pop().getI64();
-			long first = frame.pop().getI64();
+			long second = frame.popI64();
+			long first = frame.popI64();
 			frame.pushI32(calculate(first, second)? 1: 0);
 		}
 
@@ -1033,7 +1585,7 @@ public final class Module {
 	private static abstract class I32Converter implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushI32(convert(frame.pop().getI32()));
+			frame.pushI32(convert(frame.popI32()));
 		}
 
 		abstract int convert(int value);
@@ -1056,7 +1608,7 @@ public final class Module {
 	private static abstract class I64Converter implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushI64(convert(frame.pop().getI64()));
+			frame.pushI64(convert(frame.popI64()));
 		}
 
 		abstract long convert(long value);
@@ -1107,8 +1659,8 @@ public final class Module {
 	private static abstract class I64TwoOperandsOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			long second = frame.pop().getI64();
-			long first = frame.pop().getI64();
+			long second = frame.popI64();
+			long first = frame.popI64();
 			frame.pushI64(calculate(first, second));
 		}
 
@@ -1139,6 +1691,10 @@ public final class Module {
 	final static class I64DivS extends I64TwoOperandsOperator {
 		@Override
 		long calculate(long first, long second) {
+			return divide(first, second);
+		}
+
+		static long divide(long first, long second) {
 			try {
 				if (first == Long.MIN_VALUE && second == -1) {
 					throw new TrapException("integer overflow");
@@ -1153,6 +1709,10 @@ public final class Module {
 	final static class I64DivU extends I64TwoOperandsOperator {
 		@Override
 		long calculate(long first, long second) {
+			return divide(first, second);
+		}
+
+		static long divide(long first, long second) {
 			try {
 				return divideUnsigned(first, second);
 			} catch (ArithmeticException e) {
@@ -1164,6 +1724,10 @@ public final class Module {
 	final static class I64RemS extends I64TwoOperandsOperator {
 		@Override
 		long calculate(long first, long second) {
+			return remainder(first, second);
+		}
+
+		static long remainder(long first, long second) {
 			try {
 				return first % second;
 			} catch (ArithmeticException e) {
@@ -1175,6 +1739,10 @@ public final class Module {
 	final static class I64RemU extends I64TwoOperandsOperator {
 		@Override
 		long calculate(long first, long second) {
+			return remainder(first, second);
+		}
+
+		static long remainder(long first, long second) {
 			try {
 				return remainderUnsigned(first, second);
 			} catch (ArithmeticException e) {
@@ -1242,8 +1810,8 @@ public final class Module {
 	private static abstract class F32TwoOperandsOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			float second = frame.pop().getF32();
-			float first = frame.pop().getF32();
+			float second = frame.popF32();
+			float first = frame.popF32();
 			frame.pushF32(calculate(first, second));
 		}
 
@@ -1253,8 +1821,8 @@ public final class Module {
 	private static abstract class F32TwoOperandsCmpOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			float second = frame.pop().getF32();
-			float first = frame.pop().getF32();
+			float second = frame.popF32();
+			float first = frame.popF32();
 			frame.pushI32(calculate(first, second)? 1: 0);
 		}
 
@@ -1264,7 +1832,7 @@ public final class Module {
 	private static abstract class F32OneOperandsOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushF32(calculate(frame.pop().getF32()));
+			frame.pushF32(calculate(frame.popF32()));
 		}
 
 		abstract float calculate(float value);
@@ -1301,6 +1869,10 @@ public final class Module {
 	final static class F32Trunc extends F32OneOperandsOperator {
 		@Override
 		float calculate(float value) {
+			return truncate(value);
+		}
+
+		static float truncate(float value) {
 			if (Float.isNaN(value) || Float.isInfinite(value)) {
 				return value;
 			}
@@ -1378,7 +1950,7 @@ public final class Module {
 	private static abstract class F64OneOperandsOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushF64(calculate(frame.pop().getF64()));
+			frame.pushF64(calculate(frame.popF64()));
 		}
 
 		abstract double calculate(double value);
@@ -1387,8 +1959,8 @@ public final class Module {
 	private static abstract class F64TwoOperandsOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			double second = frame.pop().getF64();
-			double first = frame.pop().getF64();
+			double second = frame.popF64();
+			double first = frame.popF64();
 			frame.pushF64(calculate(first, second));
 		}
 
@@ -1398,8 +1970,8 @@ public final class Module {
 	private static abstract class F64TwoOperandsCmpOperator implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			double second = frame.pop().getF64();
-			double first = frame.pop().getF64();
+			double second = frame.popF64();
+			double first = frame.popF64();
 			frame.pushI32(calculate(first, second)? 1: 0);
 		}
 
@@ -1437,6 +2009,10 @@ public final class Module {
 	final static class F64Trunc extends F64OneOperandsOperator {
 		@Override
 		double calculate(double value) {
+			return truncate(value);
+		}
+
+		static double truncate(double value) {
 			if (isNaN(value) || isInfinite(value)) {
 				return value;
 			}
@@ -1511,60 +2087,60 @@ public final class Module {
 		}
 	}
 
-	final static class I32WrapI64 extends PushValueInstruction {
+	final static class I32WrapI64 implements Instruction {
 		@Override
-		Value getValue(Frame frame) {
-			return new Value((int) frame.pop().getI64());
+		public void execute(Frame frame) {
+			frame.pushI32((int) frame.popI64());
 		}
 	}
 
-	final static class I32TruncF32S extends PushValueInstruction {
+	final static class I32TruncF32S implements Instruction {
 		@Override
-		Value getValue(Frame frame) {
-			return new Value((int) frame.pop().getF32());
+		public void execute(Frame frame) {
+			frame.pushI32((int) frame.popF32());
 		}
 	}
 
-	final static class I32TruncF32U extends PushValueInstruction {
+	final static class I32TruncF32U implements Instruction {
 		@Override
-		Value getValue(Frame frame) {
+		public void execute(Frame frame) {
 			// TODO Add unsigned f32 to i32 conversion
-			return new Value((int) frame.pop().getF32());
+			frame.pushI32((int) frame.popF32());
 		}
 	}
 
-	final static class I32TruncF64S extends PushValueInstruction {
+	final static class I32TruncF64S implements Instruction {
 		@Override
-		Value getValue(Frame frame) {
-			return new Value((int) frame.pop().getF64());
+		public void execute(Frame frame) {
+			frame.pushI32((int) frame.popF64());
 		}
 	}
 
-	final static class I64ExtendI32S extends PushValueInstruction {
+	final static class I64ExtendI32S implements Instruction {
 		@Override
-		Value getValue(Frame frame) {
-			return new Value((long) frame.pop().getI32());
+		public void execute(Frame frame) {
+			frame.pushI64((long) frame.popI32());
 		}
 	}
 
-	final static class I64ExtendI32U extends PushValueInstruction {
+	final static class I64ExtendI32U implements Instruction {
 		@Override
-		Value getValue(Frame frame) {
-			return new Value(frame.pop().getI32() & 0xffffffffL);
+		public void execute(Frame frame) {
+			frame.pushI64(frame.popI32() & 0xffffffffL);
 		}
 	}
 
 	final static class F64ConvertI32S implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushF64(frame.pop().getI32());
+			frame.pushF64(frame.popI32());
 		}
 	}
 
 	final static class F64ConvertI32U implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushF64(fromUint32ToF64(frame.pop().getI32()));
+			frame.pushF64(fromUint32ToF64(frame.popI32()));
 		}
 
 		private double fromUint32ToF64(int value) {
@@ -1575,10 +2151,10 @@ public final class Module {
 	final static class F64ConvertI64U implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushF64(fromUint64ToF64(frame.pop().getI64()));
+			frame.pushF64(fromUint64ToF64(frame.popI64()));
 		}
 
-		private double fromUint64ToF64(long value) {
+		static double fromUint64ToF64(long value) {
 			double result = (double) (value & 0x7fffffffffffffffL);
 			if (value < 0) {
 				result += 0x1.0p63;
@@ -1590,7 +2166,7 @@ public final class Module {
 	final static class F64PromoteF32 implements Instruction {
 		@Override
 		public void execute(Frame frame) {
-			frame.pushF64(frame.pop().getF32());
+			frame.pushF64(frame.popF32());
 		}
 	}
 
@@ -1608,59 +2184,124 @@ public final class Module {
 	}
 
 	static abstract class AbstractBlock implements Instruction {
-		private AbstractBlock parent;
+		private final AbstractBlock parent;
+		private final int entryStackHeight;
+
+		protected int startIndex;
+		protected int endIndex;
 
-		AbstractBlock(AbstractBlock parent) {
+		AbstractBlock(AbstractBlock parent, int entryStackHeight) {
 			this.parent = parent;
+			this.entryStackHeight = entryStackHeight;
+		}
+
+		AbstractBlock getParent() {
+			return parent;
+		}
+
+		int getEntryStackHeight() {
+			return entryStackHeight;
+		}
+
+		abstract int getResultLength();
+
+		int getBranchValueLength() {
+			return getResultLength();
+		}
+
+		int getBranchIndex() {
+			return endIndex;
+		}
+
+		// Appends the instructions of this block to the flat code of the enclosing FunctionBlock
+		abstract void flatten(List<Instruction> code);
+
+		static void flatten(List<Instruction> instructions, List<Instruction> code) {
+			for (Instruction instruction : instructions) {
+				if (instruction instanceof AbstractBlock) {
+					((AbstractBlock) instruction).flatten(code);
+				} else if (!(instruction instanceof BlockEndMarker)) {
+					code.add(instruction);
+				}
+			}
 		}
 	}
 
 	private static abstract class OneChildBlock extends AbstractBlock {
-		private final boolean isBackwardExit;
-
 		protected List<Instruction> instructions;
 
-		OneChildBlock(AbstractBlock parent, boolean isBackwardExit) {
-			super(parent);
-			this.isBackwardExit = isBackwardExit;
+		OneChildBlock(AbstractBlock parent, int entryStackHeight) {
+			super(parent, entryStackHeight);
 		}
 
 		void setInstructions(List<Instruction> instructions) {
 			this.instructions = instructions;
 		}
 
+		@Override
+		void flatten(List<Instruction> code) {
+			startIndex = code.size();
+			flatten(instructions, code);
+			endIndex = code.size();
+		}
+
 		@Override
 		public void execute(Frame frame) {
-			boolean isExceptionThrown = false;
-			do {
-				try {
-					instructions.forEach(instruction -> {
-						instruction.execute(frame);
-					});
-				} catch (ExceptionToExitBlock e) {
-					isExceptionThrown = true;
-					if (e.isMoreExitRequired()) {
-						e.decrementDepth();
-						throw e;
-					}
-				}
-			} while (isExceptionThrown && isBackwardExit);
+			// Block labels are resolved into branch target indices when the FunctionBlock is flattened
 		}
 	}
 
-	final static class FunctionBlock extends OneChildBlock {
+	final static class FunctionBlock extends OneChildBlock implements Code {
 		private final Function function;
 
+		private int maxStackHeight;
+		private Instruction[] code;
+
+		private SequenceProfiler sequenceProfiler;
+
 		FunctionBlock(Function function) {
-			super(null, false);
+			super(null, 0);
 			this.function = function;
 		}
 
+		void setSequenceProfiler(SequenceProfiler sequenceProfiler) {
+			this.sequenceProfiler = sequenceProfiler;
+		}
+
+		void setMaxStackHeight(int maxStackHeight) {
+			this.maxStackHeight = maxStackHeight;
+		}
+
+		@Override
+		public int getMaxStackHeight() {
+			return maxStackHeight;
+		}
+
+		@Override
+		int getResultLength() {
+			return function.returnTypes.length;
+		}
+
+		void flatten() {
+			List<Instruction> code = new ArrayList<>();
+			flatten(code);
+			for (Instruction instruction : code) {
+				if (instruction instanceof ExitBlock) {
+					((ExitBlock) instruction).resolveIndices();
+				}
+			}
+			this.code = code.toArray(new Instruction[code.size()]);
+		}
+
 		@Override
 		public void execute(Frame frame) {
-			try {
-				super.execute(frame);
-			} catch (ExceptionToReturn e) {
+			Instruction[] code = this.code;
+			if (sequenceProfiler != null) {
+				sequenceProfiler.execute(code, frame);
+				return;
+			}
+			for (int index = frame.fetchInstructionIndex(); index < code.length; index = frame.fetchInstructionIndex()) {
+				code[index].execute(frame);
 			}
 		}
 	}
@@ -1668,19 +2309,39 @@ public final class Module {
 	final static class Block extends OneChildBlock {
 		private final ValueType resultValueType;
 
-		Block(AbstractBlock parent, ValueType resultValueType) {
-			super(parent, false);
+		Block(AbstractBlock parent, ValueType resultValueType, int entryStackHeight) {
+			super(parent, entryStackHeight);
 			this.resultValueType = resultValueType;
 		}
+
+		@Override
+		int getResultLength() {
+			return toResultLength(resultValueType);
+		}
 	}
 
 	final static class Loop extends OneChildBlock {
 		private final ValueType resultValueType;
 
-		Loop(AbstractBlock parent, ValueType resultValueType) {
-			super(parent, true);
+		Loop(AbstractBlock parent, ValueType resultValueType, int entryStackHeight) {
+			super(parent, entryStackHeight);
 			this.resultValueType = resultValueType;
 		}
+
+		@Override
+		int getResultLength() {
+			return toResultLength(resultValueType);
+		}
+
+		@Override
+		int getBranchValueLength() {
+			return 0;
+		}
+
+		@Override
+		int getBranchIndex() {
+			return startIndex;
+		}
 	}
 
 	final static class If extends AbstractBlock {
@@ -1689,8 +2350,10 @@ public final class Module {
 
 		private final ValueType resultValueType;
 
-		If(AbstractBlock parent, ValueType resultValueType) {
-			super(parent);
+		private int elseStartIndex;
+
+		If(AbstractBlock parent, ValueType resultValueType, int entryStackHeight) {
+			super(parent, entryStackHeight);
 			this.resultValueType = resultValueType;
 		}
 
@@ -1700,29 +2363,44 @@ public final class Module {
 		}
 
 		@Override
-		public void execute(Frame frame) {
-			try {
-				if (frame.pop().getI32() != 0) {
-					thenInstructions.forEach(instruction -> {
-						instruction.execute(frame);
-					});
-				} else {
-					if (elseInstructions != null) {
-						elseInstructions.forEach(instruction -> {
-							instruction.execute(frame);
-						});
-					}
-				}
-			} catch (ExceptionToExitBlock e) {
-				if (e.isMoreExitRequired()) {
-					e.decrementDepth();
-					throw e;
-				}
+		int getResultLength() {
+			return toResultLength(resultValueType);
+		}
+
+		@Override
+		void flatten(List<Instruction> code) {
+			code.add(this);
+			startIndex = code.size();
+			flatten(thenInstructions, code);
+			if (elseInstructions != null) {
+				// Jumps from the end of the then instructions over the else instructions
+				code.add(thenInstructions.get(thenInstructions.size() - 1));
+				elseStartIndex = code.size();
+				flatten(elseInstructions, code);
+			} else {
+				elseStartIndex = code.size();
 			}
+			endIndex = code.size();
 		}
 
+		@Override
+		public void execute(Frame frame) {
+			if (frame.popI32() == 0) {
+				frame.jump(elseStartIndex);
+			}
+		}
 	}
 
 	final static class Else extends BlockEndMarker {
+		private final If block;
+
+		Else(If block) {
+			this.block = block;
+		}
+
+		@Override
+		public void execute(Frame frame) {
+			frame.jump(block.endIndex);
+		}
 	}
 }
@@ -0,0 +1,117 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jp.hisano.wasm.interpreter.Module.Function;
+
+// Shares the modules of the same binary. The least recently used modules are evicted when the total of their estimated
+// retained sizes exceeds the maximum weight.
+public final class ModuleCache {
+	// Decoded code is several times larger than the instructions, e.g. FlatCode has an int for about each byte
+	private static final int DECODED_SIZE_RATIO = 4;
+
+	private final Configuration configuration;
+	private final long maximumWeight;
+
+	// Ordered from the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long weight;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	public ModuleCache(long maximumWeight) {
+		this(new Configuration(), maximumWeight);
+	}
+
+	public ModuleCache(Configuration configuration, long maximumWeight) {
+		this.configuration = configuration;
+		this.maximumWeight = maximumWeight;
+	}
+
+	public Module get(byte[] wasmFileContent) {
+		// Copied once before hashing, so that the module is parsed from the same bytes as its key and keeps its views
+		// into the copy however the caller changes its array
+		byte[] copiedContent = wasmFileContent.clone();
+		String key = CodeCache.toSha256(copiedContent);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hitCount++;
+				return entry.module;
+			}
+			missCount++;
+		}
+
+		// Parsed outside of the lock, so a module loaded by another thread at the same time is used instead of this one
+		Module module = new Module(configuration, copiedContent);
+		long moduleWeight = estimateWeight(module, copiedContent);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				return entry.module;
+			}
+			if (maximumWeight < moduleWeight) {
+				return module;
+			}
+			entries.put(key, new Entry(module, moduleWeight));
+			weight += moduleWeight;
+			evict();
+		}
+		return module;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (maximumWeight < weight) {
+			weight -= iterator.next().getValue().weight;
+			iterator.remove();
+			evictionCount++;
+		}
+	}
+
+	// The function bodies and the data are views of the copied binary, so the whole binary including the custom sections is retained.
+	// The function bodies are counted as decoded whether they are decoded yet or not, so that the weight does not change.
+	static long estimateWeight(Module module, byte[] wasmFileContent) {
+		long result = wasmFileContent.length;
+		for (Function function : module.getFunctions()) {
+			if (function.hasBody()) {
+				result += DECODED_SIZE_RATIO * (long) function.getInstructionLength();
+			}
+		}
+		return result;
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	private static final class Entry {
+		private final Module module;
+		private final long weight;
+
+		Entry(Module module, long weight) {
+			this.module = module;
+			this.weight = weight;
+		}
+	}
+}
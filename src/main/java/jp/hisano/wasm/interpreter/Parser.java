@@ -1,5 +1,6 @@
 package jp.hisano.wasm.interpreter;
 
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -12,6 +13,7 @@ import jp.hisano.wasm.interpreter.Module.BlockEndMarker;
 import jp.hisano.wasm.interpreter.Module.Br;
 import jp.hisano.wasm.interpreter.Module.BrIf;
 import jp.hisano.wasm.interpreter.Module.BrTable;
+import jp.hisano.wasm.interpreter.Module.BranchTarget;
 import jp.hisano.wasm.interpreter.Module.Call;
 import jp.hisano.wasm.interpreter.Module.CallIndirect;
 import jp.hisano.wasm.interpreter.Module.Drop;
@@ -36,6 +38,7 @@ import jp.hisano.wasm.interpreter.Module.F32Ne;
 import jp.hisano.wasm.interpreter.Module.F32Nearest;
 import jp.hisano.wasm.interpreter.Module.F32Neg;
 import jp.hisano.wasm.interpreter.Module.F32Sqrt;
+import jp.hisano.wasm.interpreter.Module.F32Store;
 import jp.hisano.wasm.interpreter.Module.F32Sub;
 import jp.hisano.wasm.interpreter.Module.F32Trunc;
 import jp.hisano.wasm.interpreter.Module.F64Abs;
@@ -61,11 +64,14 @@ import jp.hisano.wasm.interpreter.Module.F64Nearest;
 import jp.hisano.wasm.interpreter.Module.F64Neg;
 import jp.hisano.wasm.interpreter.Module.F64PromoteF32;
 import jp.hisano.wasm.interpreter.Module.F64Sqrt;
+import jp.hisano.wasm.interpreter.Module.F64Store;
 import jp.hisano.wasm.interpreter.Module.F64Sub;
 import jp.hisano.wasm.interpreter.Module.F64Trunc;
 import jp.hisano.wasm.interpreter.Module.Function;
 import jp.hisano.wasm.interpreter.Module.FunctionBlock;
+import jp.hisano.wasm.interpreter.Module.FunctionType;
 import jp.hisano.wasm.interpreter.Module.GlobalGet;
+import jp.hisano.wasm.interpreter.Module.GlobalSet;
 import jp.hisano.wasm.interpreter.Module.I32Add;
 import jp.hisano.wasm.interpreter.Module.I32And;
 import jp.hisano.wasm.interpreter.Module.I32Clz;
@@ -83,11 +89,11 @@ import jp.hisano.wasm.interpreter.Module.I32GtS;
 import jp.hisano.wasm.interpreter.Module.I32GtU;
 import jp.hisano.wasm.interpreter.Module.I32LeS;
 import jp.hisano.wasm.interpreter.Module.I32LeU;
-import jp.hisano.wasm.interpreter.Module.I32Load;
 import jp.hisano.wasm.interpreter.Module.I32Load16S;
 import jp.hisano.wasm.interpreter.Module.I32Load16U;
 import jp.hisano.wasm.interpreter.Module.I32Load8S;
 import jp.hisano.wasm.interpreter.Module.I32Load8U;
+import jp.hisano.wasm.interpreter.Module.I32Load;
 import jp.hisano.wasm.interpreter.Module.I32LtS;
 import jp.hisano.wasm.interpreter.Module.I32LtU;
 import jp.hisano.wasm.interpreter.Module.I32Mul;
@@ -101,6 +107,9 @@ import jp.hisano.wasm.interpreter.Module.I32Rotr;
 import jp.hisano.wasm.interpreter.Module.I32Shl;
 import jp.hisano.wasm.interpreter.Module.I32ShrS;
 import jp.hisano.wasm.interpreter.Module.I32ShrU;
+import jp.hisano.wasm.interpreter.Module.I32Store16;
+import jp.hisano.wasm.interpreter.Module.I32Store8;
+import jp.hisano.wasm.interpreter.Module.I32Store;
 import jp.hisano.wasm.interpreter.Module.I32Sub;
 import jp.hisano.wasm.interpreter.Module.I32TruncF32S;
 import jp.hisano.wasm.interpreter.Module.I32TruncF32U;
@@ -140,6 +149,10 @@ import jp.hisano.wasm.interpreter.Module.I64Rotr;
 import jp.hisano.wasm.interpreter.Module.I64Shl;
 import jp.hisano.wasm.interpreter.Module.I64ShrS;
 import jp.hisano.wasm.interpreter.Module.I64ShrU;
+import jp.hisano.wasm.interpreter.Module.I64Store16;
+import jp.hisano.wasm.interpreter.Module.I64Store32;
+import jp.hisano.wasm.interpreter.Module.I64Store8;
+import jp.hisano.wasm.interpreter.Module.I64Store;
 import jp.hisano.wasm.interpreter.Module.I64Sub;
 import jp.hisano.wasm.interpreter.Module.I64Xor;
 import jp.hisano.wasm.interpreter.Module.If;
@@ -149,9 +162,15 @@ import jp.hisano.wasm.interpreter.Module.Local;
 import jp.hisano.wasm.interpreter.Module.LocalGet;
 import jp.hisano.wasm.interpreter.Module.LocalSet;
 import jp.hisano.wasm.interpreter.Module.Loop;
+import jp.hisano.wasm.interpreter.Module.MemoryAccess;
+import jp.hisano.wasm.interpreter.Module.MemoryGrow;
+import jp.hisano.wasm.interpreter.Module.MemorySize;
+import jp.hisano.wasm.interpreter.Module.MemoryStore;
 import jp.hisano.wasm.interpreter.Module.Nop;
 import jp.hisano.wasm.interpreter.Module.RefNull;
 import jp.hisano.wasm.interpreter.Module.Return;
+import jp.hisano.wasm.interpreter.Module.ReturnCall;
+import jp.hisano.wasm.interpreter.Module.ReturnCallIndirect;
 import jp.hisano.wasm.interpreter.Module.Unreachable;
 import jp.hisano.wasm.interpreter.Module.ValueType;
 import static jp.hisano.wasm.interpreter.Module.ValueType.*;
@@ -162,55 +181,72 @@ final class Parser {
 
 	private final ByteBuffer byteBuffer;
 
+	private int stackHeight;
+	private int maxStackHeight;
+	private BitSet inBoundsAccesses = new BitSet();
+	private boolean isFusingInstructions;
+
 	Parser(byte[] byteBuffer) {
-		this.byteBuffer = new ByteBuffer(byteBuffer);
+		this(new ByteBuffer(byteBuffer));
+	}
+
+	Parser(ByteBuffer byteBuffer) {
+		this.byteBuffer = byteBuffer;
 	}
 
 	void parseModule(Module module) {
-		checkInt(MAGIC);
-		checkInt(VERSION);
+		checkHeader();
 
 		while (byteBuffer.canRead()) {
 			int section = byteBuffer.readVaruint7();
 			int size = byteBuffer.readVaruint32();
-			switch (section) {
-				case 0x00:
-					// ignore custom section
-					byteBuffer.skipBytes(size);
-					break;
-				case 0x01:
-					parseTypeSection(module);
-					break;
-				case 0x02:
-					parseImportSection(module);
-					break;
-				case 0x03:
-					parseFunctionSection(module);
-					break;
-				case 0x04:
-					parseTableSection(module);
-					break;
-				case 0x05:
-					parseMemorySection(module);
-					break;
-				case 0x06:
-					parseGlobalSection(module);
-					break;
-				case 0x07:
-					parseExportSection(module);
-					break;
-				case 0x09:
-					parseElementSection(module);
-					break;
-				case 0x0A:
-					parseCodeSection(module);
-					break;
-				case 0x0B:
-					parseDataSection(module);
-					break;
-				default:
-					throw new UnsupportedOperationException("not implemented section (0x" + toHexString(section) + "): readIndex = 0x" + toHexString(byteBuffer.getReadIndex()));
-			}
+			parseSection(module, section, size);
+		}
+	}
+
+	void checkHeader() {
+		checkInt(MAGIC);
+		checkInt(VERSION);
+	}
+
+	void parseSection(Module module, int section, int size) {
+		switch (section) {
+			case 0x00:
+				// ignore custom section
+				byteBuffer.skipBytes(size);
+				break;
+			case 0x01:
+				parseTypeSection(module);
+				break;
+			case 0x02:
+				parseImportSection(module);
+				break;
+			case 0x03:
+				parseFunctionSection(module);
+				break;
+			case 0x04:
+				parseTableSection(module);
+				break;
+			case 0x05:
+				parseMemorySection(module);
+				break;
+			case 0x06:
+				parseGlobalSection(module);
+				break;
+			case 0x07:
+				parseExportSection(module);
+				break;
+			case 0x09:
+				parseElementSection(module);
+				break;
+			case 0x0A:
+				parseCodeSection(module);
+				break;
+			case 0x0B:
+				parseDataSection(module);
+				break;
+			default:
+				throw new UnsupportedOperationException("not implemented section (0x" + toHexString(section) + "): readIndex = 0x" + toHexString(byteBuffer.getReadIndex()));
 		}
 	}
 
@@ -222,28 +258,38 @@ final class Parser {
 
 	private void parseCodeSection(Module module) {
 		for (int i = 0, length = byteBuffer.readVaruint32(); i < length; i++) {
-			int size = byteBuffer.readVaruint32();
-			int baseIndex = byteBuffer.getReadIndex();
-			Local[] locals = parseLocals();
-			int instructionLength = size - (byteBuffer.getReadIndex() - baseIndex);
-			byte[] instructions = byteBuffer.readInt8Array(instructionLength);
-			Function function = module.getFunction(i);
-			function.setBody(locals, instructions);
+			parseFunctionBody(module, i, byteBuffer.readVaruint32());
 		}
 	}
 
+	// Also called by StreamingParser for each body read separately
+	void parseFunctionBody(Module module, int functionIndex, int size) {
+		int baseIndex = byteBuffer.getReadIndex();
+		Local[] locals = parseLocals();
+		int instructionLength = size - (byteBuffer.getReadIndex() - baseIndex);
+		ByteBuffer instructions = byteBuffer.readSlice(instructionLength);
+		Function function = module.getFunction(functionIndex);
+		function.setBody(locals, instructions);
+	}
+
 	private void parseDataSection(Module module) {
 		for (int i = 0, length = byteBuffer.readVaruint32(); i < length; i++) {
 			int memoryIndex = byteBuffer.readVaruint32();
 			List<Instruction> offsetInstructions = parseInstructions(null, null);
-			byte[] data = byteBuffer.readInt8Array();
+			ByteBuffer data = byteBuffer.readSlice(byteBuffer.readVaruint32());
 			module.addMemoryData(memoryIndex, offsetInstructions, data);
 		}
 	}
 
 	FunctionBlock parseFunctionBlock(Module module, Function function) {
+		inBoundsAccesses = BoundsCheckAnalyzer.analyze(module, function.readInstructions());
+		Configuration configuration = module.getConfiguration();
+		isFusingInstructions = configuration.isFusingInstructions() && configuration.getSequenceProfiler() == null;
 		FunctionBlock functionBlock = new FunctionBlock(function);
+		functionBlock.setSequenceProfiler(configuration.getSequenceProfiler());
 		functionBlock.setInstructions(parseInstructions(module, functionBlock));
+		functionBlock.setMaxStackHeight(maxStackHeight);
+		functionBlock.flatten();
 		return functionBlock;
 	}
 
@@ -253,58 +299,220 @@ final class Parser {
 			Instruction instruction = parseInstruction(module, parent);
 			result.add(instruction);
 			if (instruction instanceof BlockEndMarker) {
-				return result;
+				return isFusingInstructions? PeepholeOptimizer.fuse(result): result;
 			}
 		}
 	}
 
 	private Instruction parseInstruction(Module module, AbstractBlock parent) {
-		int instruction = byteBuffer.readUint8AsInt();
+		int index = byteBuffer.getReadIndex();
+		int opcode = byteBuffer.readUint8AsInt();
+		Instruction instruction = parseInstruction(opcode, module, parent);
+		if (instruction instanceof MemoryAccess && inBoundsAccesses.get(index)) {
+			((MemoryAccess) instruction).setInBounds();
+		}
+		if (instruction instanceof MemoryStore && inBoundsAccesses.get(index)) {
+			((MemoryStore) instruction).setInBounds();
+		}
+		switch (opcode) {
+			case 0x10: {
+				Function function = ((Call) instruction).getFunction();
+				updateStackHeight(function.returnTypes.length - function.parameterTypes.length);
+				break;
+			}
+			case 0x11: {
+				FunctionType functionType = ((CallIndirect) instruction).getFunctionType();
+				updateStackHeight(functionType.returnTypes.length - functionType.parameterTypes.length - 1);
+				break;
+			}
+			case 0x12:
+				updateStackHeight(-((ReturnCall) instruction).getFunction().parameterTypes.length);
+				break;
+			case 0x13:
+				updateStackHeight(-((ReturnCallIndirect) instruction).getFunctionType().parameterTypes.length - 1);
+				break;
+			default:
+				updateStackHeight(getStackEffect(opcode));
+				break;
+		}
+		return instruction;
+	}
+
+	private static BranchTarget createBranchTarget(AbstractBlock parent, int depth, int stackHeight) {
+		AbstractBlock block = parent;
+		for (int i = 0; i < depth; i++) {
+			block = block.getParent();
+		}
+		int keepLength = block.getBranchValueLength();
+		// Heights are not tracked exactly in unreachable code, where the branch is never taken
+		int dropLength = max(0, stackHeight - block.getEntryStackHeight() - keepLength);
+		return new BranchTarget(block, keepLength, dropLength);
+	}
+
+	private void updateStackHeight(int delta) {
+		stackHeight += delta;
+		if (maxStackHeight < stackHeight) {
+			maxStackHeight = stackHeight;
+		}
+	}
+
+	// Skips the immediates of an instruction whose opcode has been read, except for prefixed instructions
+	static void skipImmediates(ByteBuffer byteBuffer, int opcode) {
+		switch (opcode) {
+			case 0x02:
+			case 0x03:
+			case 0x04:
+			case 0xd0:
+				byteBuffer.readVarsint7();
+				break;
+			case 0x0c:
+			case 0x0d:
+			case 0x10:
+			case 0x12:
+			case 0x20:
+			case 0x21:
+			case 0x22:
+			case 0x23:
+			case 0x24:
+			case 0xd2:
+				byteBuffer.readVaruint32();
+				break;
+			case 0x0e:
+				byteBuffer.readVaruint32Array();
+				byteBuffer.readVaruint32();
+				break;
+			case 0x11:
+			case 0x13:
+				byteBuffer.readVaruint32();
+				byteBuffer.readVaruint32();
+				break;
+			case 0x1c:
+				byteBuffer.readVaruint32Array();
+				break;
+			case 0x3f:
+			case 0x40:
+				byteBuffer.readByte();
+				break;
+			case 0x41:
+				byteBuffer.readVarsint32();
+				break;
+			case 0x42:
+				byteBuffer.readVarsint64();
+				break;
+			case 0x43:
+				byteBuffer.readInt32();
+				break;
+			case 0x44:
+				byteBuffer.readInt64();
+				break;
+			default:
+				if (0x28 <= opcode && opcode <= 0x3e) {
+					byteBuffer.readVaruint32();
+					byteBuffer.readVaruint32();
+				}
+				break;
+		}
+	}
+
+	// Blocks, calls and unconditional branches are handled in parseInstruction
+	static int getStackEffect(int opcode) {
+		switch (opcode) {
+			case 0x0d: // br_if
+			case 0x0e: // br_table
+			case 0x1a: // drop
+			case 0x21: // local.set
+			case 0x24: // global.set
+				return -1;
+			case 0x1b: // select
+				return -2;
+			case 0x20: // local.get
+			case 0x23: // global.get
+			case 0x3f: // memory.size
+			case 0x41: // i32.const
+			case 0x42: // i64.const
+			case 0x43: // f32.const
+			case 0x44: // f64.const
+				return 1;
+		}
+		if (0x36 <= opcode && opcode <= 0x3e) {
+			// store instructions
+			return -2;
+		}
+		if ((0x46 <= opcode && opcode <= 0x4f) || (0x51 <= opcode && opcode <= 0x66) || (0x6a <= opcode && opcode <= 0x78) || (0x7c <= opcode && opcode <= 0x8a) || (0x92 <= opcode && opcode <= 0x98) || (0xa0 <= opcode && opcode <= 0xa6)) {
+			// binary operators
+			return -1;
+		}
+		return 0;
+	}
+
+	private Instruction parseInstruction(int instruction, Module module, AbstractBlock parent) {
 		switch (instruction) {
 			case 0x00:
 				return new Unreachable();
 			case 0x01:
 				return new Nop();
 			case 0x02: {
-				Block block = new Block(parent, toValueType(byteBuffer.readVarsint7()));
+				int entryStackHeight = stackHeight;
+				Block block = new Block(parent, toValueType(byteBuffer.readVarsint7()), entryStackHeight);
 				block.setInstructions(parseInstructions(module, block));
+				stackHeight = entryStackHeight + block.getResultLength();
 				return block;
 			}
 			case 0x03: {
-				Loop block = new Loop(parent, toValueType(byteBuffer.readVarsint7()));
+				int entryStackHeight = stackHeight;
+				Loop block = new Loop(parent, toValueType(byteBuffer.readVarsint7()), entryStackHeight);
 				block.setInstructions(parseInstructions(module, block));
+				stackHeight = entryStackHeight + block.getResultLength();
 				return block;
 			}
 			case 0x04: {
-				If block = new If(parent, toValueType(byteBuffer.readVarsint7()));
+				int entryStackHeight = --stackHeight;
+				If block = new If(parent, toValueType(byteBuffer.readVarsint7()), entryStackHeight);
 				List<Instruction> thenInstructions = parseInstructions(module, block);
 				List<Instruction> elseInstructions = null;
 				if (thenInstructions.get(thenInstructions.size() - 1) instanceof Else) {
+					stackHeight = entryStackHeight;
 					elseInstructions = parseInstructions(module, block);
 				}
 				block.setInstructions(thenInstructions, elseInstructions);
+				stackHeight = entryStackHeight + block.getResultLength();
 				return block;
 			}
 			case 0x05:
-				return new Else();
+				return new Else((If) parent);
 
 			case 0x0b:
 				return new End();
 
 			case 0x0c:
-				return new Br(byteBuffer.readVaruint32());
+				return new Br(createBranchTarget(parent, byteBuffer.readVaruint32(), stackHeight));
 			case 0x0d:
-				return new BrIf(byteBuffer.readVaruint32());
-			case 0x0e:
-				return new BrTable(byteBuffer.readVaruint32Array(), byteBuffer.readVaruint32());
+				return new BrIf(createBranchTarget(parent, byteBuffer.readVaruint32(), stackHeight - 1));
+			case 0x0e: {
+				int[] depths = byteBuffer.readVaruint32Array();
+				BranchTarget[] targets = new BranchTarget[depths.length];
+				for (int i = 0; i < depths.length; i++) {
+					targets[i] = createBranchTarget(parent, depths[i], stackHeight - 1);
+				}
+				return new BrTable(targets, createBranchTarget(parent, byteBuffer.readVaruint32(), stackHeight - 1));
+			}
 
-			case 0x0f:
-				return new Return();
+			case 0x0f: {
+				AbstractBlock functionBlock = parent;
+				while (functionBlock.getParent() != null) {
+					functionBlock = functionBlock.getParent();
+				}
+				return new Return(createBranchTarget(functionBlock, 0, stackHeight));
+			}
 
 			case 0x10:
 				return new Call(module.getFunction(byteBuffer.readVaruint32()));
 			case 0x11:
 				return new CallIndirect(module, byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
+			case 0x12:
+				return new ReturnCall(module.getFunction(byteBuffer.readVaruint32()));
+			case 0x13:
+				return new ReturnCallIndirect(module, byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 
 			case 0x1a:
 				return new Drop();
@@ -322,8 +530,7 @@ final class Parser {
 			case 0x23:
 				return new GlobalGet(byteBuffer.readVaruint32());
 			case 0x24:
-				// TODO global.set命令
-				break;
+				return new GlobalSet(byteBuffer.readVaruint32());
 
 			case 0x28:
 				return new I32Load(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
@@ -365,39 +572,31 @@ final class Parser {
 				// TODO i64.load32_u命令
 				break;
 			case 0x36:
-				// TODO i32.store命令
-				break;
+				return new I32Store(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 			case 0x37:
-				// TODO i64.store命令
-				break;
+				return new I64Store(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 			case 0x38:
-				// TODO f32.store命令
-				break;
+				return new F32Store(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 			case 0x39:
-				// TODO f64.store命令
-				break;
+				return new F64Store(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 			case 0x3a:
-				// TODO i32.store8命令
-				break;
+				return new I32Store8(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 			case 0x3b:
-				// TODO i32.store16命令
-				break;
+				return new I32Store16(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 			case 0x3c:
-				// TODO i64.store8命令
-				break;
+				return new I64Store8(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 			case 0x3d:
-				// TODO i64.store16命令
-				break;
+				return new I64Store16(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 			case 0x3e:
-				// TODO i64.store32命令
-				break;
+				return new I64Store32(byteBuffer.readVaruint32(), byteBuffer.readVaruint32());
 
 			case 0x3f:
-				// TODO memory.size命令
-				break;
+				// 予約済みのメモリインデックス
+				byteBuffer.readByte();
+				return new MemorySize();
 			case 0x40:
-				// TODO memory.grow命令
-				break;
+				byteBuffer.readByte();
+				return new MemoryGrow();
 
 			case 0x41:
 				return new I32Const(byteBuffer.readVarsint32());
@@ -834,7 +1033,7 @@ final class Parser {
 		}
 	} 
 
-	private static ValueType toValueType(byte valueOfVarsin7) {
+	static ValueType toValueType(byte valueOfVarsin7) {
 		switch (valueOfVarsin7) {
 			case 0x40:
 				return VOID;
@@ -0,0 +1,62 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.hisano.wasm.interpreter.Module.BrIf;
+import jp.hisano.wasm.interpreter.Module.I32Add;
+import jp.hisano.wasm.interpreter.Module.I32Const;
+import jp.hisano.wasm.interpreter.Module.I32ConstI32AddMemoryAccess;
+import jp.hisano.wasm.interpreter.Module.I32TwoOperandsOperator;
+import jp.hisano.wasm.interpreter.Module.Instruction;
+import jp.hisano.wasm.interpreter.Module.LocalGet;
+import jp.hisano.wasm.interpreter.Module.LocalGetI32ConstI32Operator;
+import jp.hisano.wasm.interpreter.Module.LocalGetI32ConstI32OperatorBrIf;
+import jp.hisano.wasm.interpreter.Module.LocalGetLocalGetI32Operator;
+import jp.hisano.wasm.interpreter.Module.MemoryAccess;
+
+// Rewrites common instruction sequences of the TREE engine into superinstructions, which save dispatches and stack round trips.
+// The instructions of a block are fused before the FunctionBlock is flattened. Nested blocks are single elements of the list,
+// so no branch target can be inside a fused sequence.
+final class PeepholeOptimizer {
+	private PeepholeOptimizer() {
+	}
+
+	static List<Instruction> fuse(List<Instruction> instructions) {
+		Instruction[] source = instructions.toArray(new Instruction[instructions.size()]);
+		List<Instruction> result = new ArrayList<>(source.length);
+		int index = 0;
+		while (index < source.length) {
+			Instruction first = source[index];
+			Instruction second = get(source, index + 1);
+			Instruction third = get(source, index + 2);
+			if (first instanceof LocalGet && second instanceof I32Const && third instanceof I32TwoOperandsOperator) {
+				int localIndex = ((LocalGet) first).getIndex();
+				int value = ((I32Const) second).getValue();
+				I32TwoOperandsOperator operator = (I32TwoOperandsOperator) third;
+				Instruction fourth = get(source, index + 3);
+				if (fourth instanceof BrIf) {
+					result.add(new LocalGetI32ConstI32OperatorBrIf(localIndex, value, operator, ((BrIf) fourth).getTarget()));
+					index += 4;
+				} else {
+					result.add(new LocalGetI32ConstI32Operator(localIndex, value, operator));
+					index += 3;
+				}
+			} else if (first instanceof LocalGet && second instanceof LocalGet && third instanceof I32TwoOperandsOperator) {
+				result.add(new LocalGetLocalGetI32Operator(((LocalGet) first).getIndex(), ((LocalGet) second).getIndex(), (I32TwoOperandsOperator) third));
+				index += 3;
+			} else if (first instanceof I32Const && second instanceof I32Add && third instanceof MemoryAccess) {
+				result.add(new I32ConstI32AddMemoryAccess(((I32Const) first).getValue(), (MemoryAccess) third));
+				index += 3;
+			} else {
+				result.add(first);
+				index++;
+			}
+		}
+		return result;
+	}
+
+	private static Instruction get(Instruction[] instructions, int index) {
+		return index < instructions.length? instructions[index]: null;
+	}
+}
@@ -0,0 +1,193 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import jp.hisano.wasm.interpreter.Module.GlobalVariableType;
+
+// Runs the initialization function of a module and writes a module which starts in the initialized state.
+// The sections are copied from the original binary except that the data section holds the initialized memory and the global
+// section holds the resulting values, so the initialization does not need to be run again.
+public final class PreInitializer {
+	// Zero bytes shorter than this are kept in a data segment rather than splitting it, because each segment has its own header
+	private static final int MIN_ZERO_GAP_LENGTH = 16;
+
+	private PreInitializer() {
+	}
+
+	public static void main(String[] arguments) throws IOException {
+		if (arguments.length != 3) {
+			System.err.println("Usage: PreInitializer <input wasm file> <initialization function> <output wasm file>");
+			System.exit(1);
+		}
+		byte[] wasmFileContent = Files.readAllBytes(Paths.get(arguments[0]));
+		Files.write(Paths.get(arguments[2]), preInitialize(wasmFileContent, arguments[1]));
+	}
+
+	public static byte[] preInitialize(byte[] wasmFileContent, String initializationFunctionName) {
+		return preInitialize(wasmFileContent, initializationFunctionName, new Configuration());
+	}
+
+	public static byte[] preInitialize(byte[] wasmFileContent, String initializationFunctionName, Configuration configuration) {
+		Module module = new Module(wasmFileContent, configuration);
+		if (1 < module.getMemoryTypes().size()) {
+			throw new UnsupportedOperationException("multiple memories");
+		}
+		Instance instance = new Instance(module);
+		instance.invoke(initializationFunctionName);
+		return write(wasmFileContent, instance);
+	}
+
+	private static byte[] write(byte[] wasmFileContent, Instance instance) {
+		Memory.Snapshot memorySnapshot = instance.getModule().getMemoryTypes().isEmpty()? null: instance.getMemory().snapshot();
+
+		ByteBuffer byteBuffer = new ByteBuffer(wasmFileContent);
+		BinaryWriter writer = new BinaryWriter();
+		// magic and version
+		writer.writeInt8Array(byteBuffer.readInt8Array(8));
+
+		boolean hasDataSection = false;
+		while (byteBuffer.canRead()) {
+			int section = byteBuffer.readVaruint7();
+			byte[] content = byteBuffer.readInt8Array(byteBuffer.readVaruint32());
+			switch (section) {
+				case 0x05:
+					if (memorySnapshot != null) {
+						content = writeMemorySection(content, memorySnapshot);
+					}
+					break;
+				case 0x06:
+					content = writeGlobalSection(content, instance);
+					break;
+				case 0x0B:
+					hasDataSection = true;
+					// Without a memory of the module, the segments are kept for the memory imported on instantiation
+					if (memorySnapshot != null) {
+						content = writeDataSection(memorySnapshot);
+					}
+					break;
+			}
+			writeSection(writer, section, content);
+		}
+		if (!hasDataSection && memorySnapshot != null) {
+			writeSection(writer, 0x0B, writeDataSection(memorySnapshot));
+		}
+		return writer.toByteArray();
+	}
+
+	private static void writeSection(BinaryWriter writer, int section, byte[] content) {
+		writer.writeByte(section);
+		writer.writeVector(content);
+	}
+
+	// The memory may have grown during the initialization
+	private static byte[] writeMemorySection(byte[] content, Memory.Snapshot memorySnapshot) {
+		ByteBuffer byteBuffer = new ByteBuffer(content);
+		BinaryWriter writer = new BinaryWriter();
+		writer.writeVaruint32(byteBuffer.readVaruint32());
+		int flags = byteBuffer.readVaruint32();
+		writer.writeVaruint32(flags);
+		byteBuffer.readVaruint32();
+		writer.writeVaruint32(memorySnapshot.getPageLength());
+		if ((flags & 0x01) != 0) {
+			writer.writeVaruint32(byteBuffer.readVaruint32());
+		}
+		return writer.toByteArray();
+	}
+
+	private static byte[] writeGlobalSection(byte[] content, Instance instance) {
+		List<GlobalVariableType> globalVariableTypes = instance.getModule().getGlobalVariableTypes();
+		ByteBuffer byteBuffer = new ByteBuffer(content);
+		BinaryWriter writer = new BinaryWriter();
+		int length = byteBuffer.readVaruint32();
+		writer.writeVaruint32(length);
+		// Imported globals come first in the index space
+		int baseIndex = globalVariableTypes.size() - length;
+		for (int i = 0; i < length; i++) {
+			writer.writeByte(byteBuffer.readVarsint7());
+			writer.writeByte(byteBuffer.readUint1());
+
+			int instructionsIndex = byteBuffer.getReadIndex();
+			skipInstructions(byteBuffer);
+			long value = instance.getGlobalVariable(baseIndex + i).getValue();
+			switch (globalVariableTypes.get(baseIndex + i).getType()) {
+				case I32:
+					writer.writeByte(0x41);
+					writer.writeVarsint32((int) value);
+					break;
+				case I64:
+					writer.writeByte(0x42);
+					writer.writeVarsint64(value);
+					break;
+				case F32:
+					writer.writeByte(0x43);
+					writer.writeInt32((int) value);
+					break;
+				case F64:
+					writer.writeByte(0x44);
+					writer.writeInt64(value);
+					break;
+				default:
+					// References are not changed by the initialization
+					writer.writeInt8Array(content, instructionsIndex, byteBuffer.getReadIndex() - instructionsIndex);
+					continue;
+			}
+			writer.writeByte(0x0b);
+		}
+		return writer.toByteArray();
+	}
+
+	private static void skipInstructions(ByteBuffer byteBuffer) {
+		while (true) {
+			int opcode = byteBuffer.readUint8AsInt();
+			if (opcode == 0x0b) {
+				return;
+			}
+			Parser.skipImmediates(byteBuffer, opcode);
+		}
+	}
+
+	// Writes the runs of non-zero bytes as active segments, since the rest of a new memory is zero
+	private static byte[] writeDataSection(Memory.Snapshot memorySnapshot) {
+		BinaryWriter segments = new BinaryWriter();
+		int segmentCount = 0;
+		java.nio.ByteBuffer contents = memorySnapshot.getImage();
+		int length = contents.limit();
+		int index = 0;
+		while (true) {
+			while (index < length && contents.get(index) == 0) {
+				index++;
+			}
+			if (index == length) {
+				break;
+			}
+			int start = index;
+			int end = index;
+			while (index < length && index - end < MIN_ZERO_GAP_LENGTH) {
+				if (contents.get(index) != 0) {
+					end = index + 1;
+				}
+				index++;
+			}
+
+			segments.writeVaruint32(0);
+			segments.writeByte(0x41);
+			segments.writeVarsint32(start);
+			segments.writeByte(0x0b);
+			byte[] segment = new byte[end - start];
+			((Buffer) contents).position(start);
+			contents.get(segment);
+			segments.writeVaruint32(segment.length);
+			segments.writeInt8Array(segment);
+			segmentCount++;
+		}
+
+		BinaryWriter writer = new BinaryWriter();
+		writer.writeVaruint32(segmentCount);
+		writer.writeInt8Array(segments.toByteArray());
+		return writer.toByteArray();
+	}
+}
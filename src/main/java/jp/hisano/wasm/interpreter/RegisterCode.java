@@ -0,0 +1,1042 @@
+package jp.hisano.wasm.interpreter;
+
+import jp.hisano.wasm.interpreter.Module.Code;
+import jp.hisano.wasm.interpreter.Module.F32Trunc;
+import jp.hisano.wasm.interpreter.Module.F64ConvertI64U;
+import jp.hisano.wasm.interpreter.Module.F64Trunc;
+import jp.hisano.wasm.interpreter.Module.Function;
+import jp.hisano.wasm.interpreter.Module.I64DivS;
+import jp.hisano.wasm.interpreter.Module.I64DivU;
+import jp.hisano.wasm.interpreter.Module.I64RemS;
+import jp.hisano.wasm.interpreter.Module.I64RemU;
+
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+import static java.lang.Float.floatToRawIntBits;
+import static java.lang.Float.intBitsToFloat;
+import static java.lang.Integer.bitCount;
+import static java.lang.Integer.compareUnsigned;
+import static java.lang.Integer.divideUnsigned;
+import static java.lang.Integer.numberOfLeadingZeros;
+import static java.lang.Integer.numberOfTrailingZeros;
+import static java.lang.Integer.remainderUnsigned;
+import static java.lang.Integer.rotateLeft;
+import static java.lang.Integer.rotateRight;
+import static java.lang.Integer.toHexString;
+import static java.lang.Long.bitCount;
+import static java.lang.Long.compareUnsigned;
+import static java.lang.Long.numberOfLeadingZeros;
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.lang.Long.rotateLeft;
+import static java.lang.Long.rotateRight;
+import static java.lang.Math.*;
+import static jp.hisano.wasm.interpreter.BoundsCheckAnalyzer.getAccessLength;
+import static jp.hisano.wasm.interpreter.FlatCode.IN_BOUNDS;
+import static jp.hisano.wasm.interpreter.FlatCode.store;
+import static jp.hisano.wasm.interpreter.InterpreterException.Type.*;
+
+// Function body lowered by RegisterCodeCompiler. Every instruction names its operand and result registers, which are the slots
+// of the frame from its local base: the locals first, then one slot for each height of the wasm operand stack.
+final class RegisterCode implements Code {
+	// Moves a register into another one: dst, src
+	static final int MOVE = 0x200;
+	// Sets a register to a 64 bit constant: dst, low bits, high bits
+	static final int CONSTANT = 0x201;
+
+	private final int[] code;
+	private final Function[] functions;
+	private final CallIndirectCache[] caches;
+	private final int localVariableLength;
+	private final int resultLength;
+	private final int maxStackHeight;
+
+	RegisterCode(int[] code, Function[] functions, CallIndirectCache[] caches, int localVariableLength, int resultLength, int maxStackHeight) {
+		this.code = code;
+		this.functions = functions;
+		this.caches = caches;
+		this.localVariableLength = localVariableLength;
+		this.resultLength = resultLength;
+		this.maxStackHeight = maxStackHeight;
+	}
+
+	@Override
+	public int getMaxStackHeight() {
+		return maxStackHeight;
+	}
+
+	@Override
+	public void execute(Frame frame) {
+		int[] code = this.code;
+		long[] registers = frame.getStack();
+		int base = frame.getLocalBase();
+		int index = 0;
+		while (index < code.length) {
+			int opcode = code[index++];
+			switch (opcode) {
+				case 0x00: // unreachable
+					throw new InterpreterException(UNREACHABLE);
+
+				case 0x04: // if: condition, else index
+					if ((int) registers[base + code[index]] == 0) {
+						index = code[index + 1];
+					} else {
+						index += 2;
+					}
+					break;
+				case 0x05: // else: end index
+					index = code[index];
+					break;
+
+				case 0x0c: // br: index, source, destination
+					// The source and the destination are the same when no value is kept
+					registers[base + code[index + 2]] = registers[base + code[index + 1]];
+					index = code[index];
+					break;
+				case 0x0d: // br_if: condition, index, source, destination
+					if ((int) registers[base + code[index]] == 0) {
+						index += 4;
+						break;
+					}
+					registers[base + code[index + 3]] = registers[base + code[index + 2]];
+					index = code[index + 1];
+					break;
+				case 0x0e: { // br_table: operand, length, (index, source, destination) * (length + 1)
+					int tableIndex = (int) registers[base + code[index]];
+					int length = code[index + 1];
+					index += 2 + 3 * (compareUnsigned(tableIndex, length) < 0? tableIndex: length);
+					registers[base + code[index + 2]] = registers[base + code[index + 1]];
+					index = code[index];
+					break;
+				}
+
+				case 0x10: // call: stack pointer, function
+					// The arguments are popped from and the result is pushed onto the registers of the current height
+					frame.setStackPointer(base + code[index]);
+					functions[code[index + 1]].executeWithNewFrame(frame);
+					registers = frame.getStack();
+					index += 2;
+					break;
+				case 0x11: { // call_indirect: operand, stack pointer, table, cache
+					int functionIndex = (int) registers[base + code[index]];
+					frame.setStackPointer(base + code[index + 1]);
+					caches[code[index + 3]].getFunction(frame.getInstance().getTable(code[index + 2]), functionIndex).executeWithNewFrame(frame);
+					registers = frame.getStack();
+					index += 4;
+					break;
+				}
+
+				case 0x12: // return_call: stack pointer, function
+					frame.setStackPointer(base + code[index]);
+					frame.returnCall(functions[code[index + 1]]);
+					return;
+				case 0x13: { // return_call_indirect: operand, stack pointer, table, cache
+					int functionIndex = (int) registers[base + code[index]];
+					frame.setStackPointer(base + code[index + 1]);
+					frame.returnCall(caches[code[index + 3]].getFunction(frame.getInstance().getTable(code[index + 2]), functionIndex));
+					return;
+				}
+
+				case 0x1b: // select: dst, first, second, condition
+					registers[base + code[index]] = (int) registers[base + code[index + 3]] != 0? registers[base + code[index + 1]]: registers[base + code[index + 2]];
+					index += 4;
+					break;
+
+				case MOVE:
+					registers[base + code[index]] = registers[base + code[index + 1]];
+					index += 2;
+					break;
+				case CONSTANT:
+					registers[base + code[index]] = (code[index + 1] & 0xffffffffL) | ((long) code[index + 2] << 32);
+					index += 3;
+					break;
+
+				case 0x23: // global.get: dst, global
+					registers[base + code[index]] = frame.getInstance().getGlobalVariable(code[index + 1]).getValue();
+					index += 2;
+					break;
+				case 0x24: // global.set: global, src
+					frame.getInstance().getGlobalVariable(code[index]).setValue(registers[base + code[index + 1]]);
+					index += 2;
+					break;
+
+				case 0x28: { // i32.load: dst, address, offset
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) registers[base + code[index + 1]], code[index + 2], 4);
+					registers[base + code[index]] = memory.readInt32(address);
+					index += 3;
+					break;
+				}
+				case IN_BOUNDS | 0x28: {
+					int address = code[index + 2] + (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = frame.getInstance().getMemory().readInt32(address);
+					index += 3;
+					break;
+				}
+				case 0x2c: { // i32.load8_s: dst, address, offset
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) registers[base + code[index + 1]], code[index + 2], 1);
+					registers[base + code[index]] = memory.readInt8(address);
+					index += 3;
+					break;
+				}
+				case IN_BOUNDS | 0x2c: {
+					int address = code[index + 2] + (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = frame.getInstance().getMemory().readInt8(address);
+					index += 3;
+					break;
+				}
+				case 0x2d: { // i32.load8_u: dst, address, offset
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) registers[base + code[index + 1]], code[index + 2], 1);
+					registers[base + code[index]] = memory.readUint8AsInt(address);
+					index += 3;
+					break;
+				}
+				case IN_BOUNDS | 0x2d: {
+					int address = code[index + 2] + (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = frame.getInstance().getMemory().readUint8AsInt(address);
+					index += 3;
+					break;
+				}
+				case 0x2e: { // i32.load16_s: dst, address, offset
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) registers[base + code[index + 1]], code[index + 2], 2);
+					registers[base + code[index]] = memory.readInt16AsInt(address);
+					index += 3;
+					break;
+				}
+				case IN_BOUNDS | 0x2e: {
+					int address = code[index + 2] + (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = frame.getInstance().getMemory().readInt16AsInt(address);
+					index += 3;
+					break;
+				}
+				case 0x2f: { // i32.load16_u: dst, address, offset
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) registers[base + code[index + 1]], code[index + 2], 2);
+					registers[base + code[index]] = memory.readUint16AsInt(address);
+					index += 3;
+					break;
+				}
+				case IN_BOUNDS | 0x2f: {
+					int address = code[index + 2] + (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = frame.getInstance().getMemory().readUint16AsInt(address);
+					index += 3;
+					break;
+				}
+
+				case 0x36: // i32.store: address, src, offset
+				case 0x37: // i64.store
+				case 0x38: // f32.store
+				case 0x39: // f64.store
+				case 0x3a: // i32.store8
+				case 0x3b: // i32.store16
+				case 0x3c: // i64.store8
+				case 0x3d: // i64.store16
+				case 0x3e: { // i64.store32
+					Memory memory = frame.getInstance().getMemory();
+					int address = memory.toEffectiveAddress((int) registers[base + code[index]], code[index + 2], getAccessLength(opcode));
+					store(memory, opcode, address, registers[base + code[index + 1]]);
+					index += 3;
+					break;
+				}
+				case IN_BOUNDS | 0x36:
+				case IN_BOUNDS | 0x37:
+				case IN_BOUNDS | 0x38:
+				case IN_BOUNDS | 0x39:
+				case IN_BOUNDS | 0x3a:
+				case IN_BOUNDS | 0x3b:
+				case IN_BOUNDS | 0x3c:
+				case IN_BOUNDS | 0x3d:
+				case IN_BOUNDS | 0x3e: {
+					int address = code[index + 2] + (int) registers[base + code[index]];
+					store(frame.getInstance().getMemory(), opcode & ~IN_BOUNDS, address, registers[base + code[index + 1]]);
+					index += 3;
+					break;
+				}
+
+				case 0x3f: // memory.size: dst
+					registers[base + code[index]] = frame.getInstance().getMemory().getPageLength();
+					index += 1;
+					break;
+				case 0x40: // memory.grow: dst, delta
+					registers[base + code[index]] = frame.getInstance().getMemory().grow((int) registers[base + code[index + 1]]);
+					index += 2;
+					break;
+
+				// numeric instructions: dst, operands
+				case 0x45: { // i32.eqz
+					int a = (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = a == 0? 1: 0;
+					index += 2;
+					break;
+				}
+				case 0x46: { // i32.eq
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a == b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x47: { // i32.ne
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a != b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x48: { // i32.lt_s
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a < b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x49: { // i32.lt_u
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = compareUnsigned(a, b) < 0? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x4a: { // i32.gt_s
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a > b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x4b: { // i32.gt_u
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = compareUnsigned(a, b) > 0? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x4c: { // i32.le_s
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a <= b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x4d: { // i32.le_u
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = compareUnsigned(a, b) <= 0? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x4e: { // i32.ge_s
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a >= b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x4f: { // i32.ge_u
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = compareUnsigned(a, b) >= 0? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x50: { // i64.eqz
+					long a = registers[base + code[index + 1]];
+					registers[base + code[index]] = a == 0? 1: 0;
+					index += 2;
+					break;
+				}
+				case 0x51: { // i64.eq
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a == b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x52: { // i64.ne
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a != b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x53: { // i64.lt_s
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a < b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x54: { // i64.lt_u
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = compareUnsigned(a, b) < 0? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x55: { // i64.gt_s
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a > b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x56: { // i64.gt_u
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = compareUnsigned(a, b) > 0? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x57: { // i64.le_s
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a <= b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x58: { // i64.le_u
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = compareUnsigned(a, b) <= 0? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x59: { // i64.ge_s
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a >= b? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x5a: { // i64.ge_u
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = compareUnsigned(a, b) >= 0? 1: 0;
+					index += 3;
+					break;
+				}
+				case 0x67: { // i32.clz
+					int a = (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = numberOfLeadingZeros(a);
+					index += 2;
+					break;
+				}
+				case 0x68: { // i32.ctz
+					int a = (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = numberOfTrailingZeros(a);
+					index += 2;
+					break;
+				}
+				case 0x69: { // i32.popcnt
+					int a = (int) registers[base + code[index + 1]];
+					registers[base + code[index]] = bitCount(a);
+					index += 2;
+					break;
+				}
+				case 0x6a: { // i32.add
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a + b;
+					index += 3;
+					break;
+				}
+				case 0x6b: { // i32.sub
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a - b;
+					index += 3;
+					break;
+				}
+				case 0x6c: { // i32.mul
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a * b;
+					index += 3;
+					break;
+				}
+				case 0x6d: { // i32.div_s
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a / b;
+					index += 3;
+					break;
+				}
+				case 0x6e: { // i32.div_u
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = divideUnsigned(a, b);
+					index += 3;
+					break;
+				}
+				case 0x6f: { // i32.rem_s
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a % b;
+					index += 3;
+					break;
+				}
+				case 0x70: { // i32.rem_u
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = remainderUnsigned(a, b);
+					index += 3;
+					break;
+				}
+				case 0x71: { // i32.and
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a & b;
+					index += 3;
+					break;
+				}
+				case 0x72: { // i32.or
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a | b;
+					index += 3;
+					break;
+				}
+				case 0x73: { // i32.xor
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a ^ b;
+					index += 3;
+					break;
+				}
+				case 0x74: { // i32.shl
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a << b;
+					index += 3;
+					break;
+				}
+				case 0x75: { // i32.shr_s
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a >> b;
+					index += 3;
+					break;
+				}
+				case 0x76: { // i32.shr_u
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = a >>> b;
+					index += 3;
+					break;
+				}
+				case 0x77: { // i32.rotl
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = rotateLeft(a, b);
+					index += 3;
+					break;
+				}
+				case 0x78: { // i32.rotr
+					int a = (int) registers[base + code[index + 1]];
+					int b = (int) registers[base + code[index + 2]];
+					registers[base + code[index]] = rotateRight(a, b);
+					index += 3;
+					break;
+				}
+				case 0x79: { // i64.clz
+					long a = registers[base + code[index + 1]];
+					registers[base + code[index]] = numberOfLeadingZeros(a);
+					index += 2;
+					break;
+				}
+				case 0x7a: { // i64.ctz
+					long a = registers[base + code[index + 1]];
+					registers[base + code[index]] = numberOfTrailingZeros(a);
+					index += 2;
+					break;
+				}
+				case 0x7b: { // i64.popcnt
+					long a = registers[base + code[index + 1]];
+					registers[base + code[index]] = bitCount(a);
+					index += 2;
+					break;
+				}
+				case 0x7c: { // i64.add
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a + b;
+					index += 3;
+					break;
+				}
+				case 0x7d: { // i64.sub
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a - b;
+					index += 3;
+					break;
+				}
+				case 0x7e: { // i64.mul
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a * b;
+					index += 3;
+					break;
+				}
+				case 0x7f: { // i64.div_s
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = I64DivS.divide(a, b);
+					index += 3;
+					break;
+				}
+				case 0x80: { // i64.div_u
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = I64DivU.divide(a, b);
+					index += 3;
+					break;
+				}
+				case 0x81: { // i64.rem_s
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = I64RemS.remainder(a, b);
+					index += 3;
+					break;
+				}
+				case 0x82: { // i64.rem_u
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = I64RemU.remainder(a, b);
+					index += 3;
+					break;
+				}
+				case 0x83: { // i64.and
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a & b;
+					index += 3;
+					break;
+				}
+				case 0x84: { // i64.or
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a | b;
+					index += 3;
+					break;
+				}
+				case 0x85: { // i64.xor
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a ^ b;
+					index += 3;
+					break;
+				}
+				case 0x86: { // i64.shl
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a << b;
+					index += 3;
+					break;
+				}
+				case 0x87: { // i64.shr_s
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a >> b;
+					index += 3;
+					break;
+				}
+				case 0x88: { // i64.shr_u
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = a >>> b;
+					index += 3;
+					break;
+				}
+				case 0x89: { // i64.rotl
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = rotateLeft(a, (int) b);
+					index += 3;
+					break;
+				}
+				case 0x8a: { // i64.rotr
+					long a = registers[base + code[index + 1]];
+					long b = registers[base + code[index + 2]];
+					registers[base + code[index]] = rotateRight(a, (int) b);
+					index += 3;
+					break;
+				}
+
+				default:
+					index = executeFloatAndConversionInstruction(opcode, code, index, registers, base);
+					break;
+			}
+		}
+		// The result is left in the register of height 0
+		frame.setStackPointer(base + localVariableLength + resultLength);
+	}
+
+	// The floating point instructions and the conversions are executed separately, so that execute stays small enough to be
+	// compiled by the JIT compiler
+	private static int executeFloatAndConversionInstruction(int opcode, int[] code, int index, long[] registers, int base) {
+		switch (opcode) {
+			case 0x5b: { // f32.eq
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = a == b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x5c: { // f32.ne
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = a != b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x5d: { // f32.lt
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = a < b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x5e: { // f32.gt
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = a > b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x5f: { // f32.le
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = a <= b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x60: { // f32.ge
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = a >= b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x61: { // f64.eq
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = a == b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x62: { // f64.ne
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = a != b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x63: { // f64.lt
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = a < b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x64: { // f64.gt
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = a > b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x65: { // f64.le
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = a <= b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x66: { // f64.ge
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = a >= b? 1: 0;
+				index += 3;
+				break;
+			}
+			case 0x8b: { // f32.abs
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = floatToRawIntBits(abs(a));
+				index += 2;
+				break;
+			}
+			case 0x8c: { // f32.neg
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = floatToRawIntBits(-a);
+				index += 2;
+				break;
+			}
+			case 0x8d: { // f32.ceil
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = floatToRawIntBits((float) ceil(a));
+				index += 2;
+				break;
+			}
+			case 0x8e: { // f32.floor
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = floatToRawIntBits((float) floor(a));
+				index += 2;
+				break;
+			}
+			case 0x8f: { // f32.trunc
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = floatToRawIntBits(F32Trunc.truncate(a));
+				index += 2;
+				break;
+			}
+			case 0x90: { // f32.nearest
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = floatToRawIntBits((float) rint(a));
+				index += 2;
+				break;
+			}
+			case 0x91: { // f32.sqrt
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = floatToRawIntBits((float) sqrt(a));
+				index += 2;
+				break;
+			}
+			case 0x92: { // f32.add
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = floatToRawIntBits(a + b);
+				index += 3;
+				break;
+			}
+			case 0x93: { // f32.sub
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = floatToRawIntBits(a - b);
+				index += 3;
+				break;
+			}
+			case 0x94: { // f32.mul
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = floatToRawIntBits(a * b);
+				index += 3;
+				break;
+			}
+			case 0x95: { // f32.div
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = floatToRawIntBits(a / b);
+				index += 3;
+				break;
+			}
+			case 0x96: { // f32.min
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = floatToRawIntBits(Math.min(a, b));
+				index += 3;
+				break;
+			}
+			case 0x97: { // f32.max
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = floatToRawIntBits(Math.max(a, b));
+				index += 3;
+				break;
+			}
+			case 0x98: { // f32.copysign
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				float b = intBitsToFloat((int) registers[base + code[index + 2]]);
+				registers[base + code[index]] = floatToRawIntBits(copySign(a, b));
+				index += 3;
+				break;
+			}
+			case 0x99: { // f64.abs
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				registers[base + code[index]] = doubleToRawLongBits(abs(a));
+				index += 2;
+				break;
+			}
+			case 0x9a: { // f64.neg
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				registers[base + code[index]] = doubleToRawLongBits(-a);
+				index += 2;
+				break;
+			}
+			case 0x9b: { // f64.ceil
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				registers[base + code[index]] = doubleToRawLongBits(ceil(a));
+				index += 2;
+				break;
+			}
+			case 0x9c: { // f64.floor
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				registers[base + code[index]] = doubleToRawLongBits(floor(a));
+				index += 2;
+				break;
+			}
+			case 0x9d: { // f64.trunc
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				registers[base + code[index]] = doubleToRawLongBits(F64Trunc.truncate(a));
+				index += 2;
+				break;
+			}
+			case 0x9e: { // f64.nearest
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				registers[base + code[index]] = doubleToRawLongBits(rint(a));
+				index += 2;
+				break;
+			}
+			case 0x9f: { // f64.sqrt
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				registers[base + code[index]] = doubleToRawLongBits(sqrt(a));
+				index += 2;
+				break;
+			}
+			case 0xa0: { // f64.add
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = doubleToRawLongBits(a + b);
+				index += 3;
+				break;
+			}
+			case 0xa1: { // f64.sub
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = doubleToRawLongBits(a - b);
+				index += 3;
+				break;
+			}
+			case 0xa2: { // f64.mul
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = doubleToRawLongBits(a * b);
+				index += 3;
+				break;
+			}
+			case 0xa3: { // f64.div
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = doubleToRawLongBits(a / b);
+				index += 3;
+				break;
+			}
+			case 0xa4: { // f64.min
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = doubleToRawLongBits(Math.min(a, b));
+				index += 3;
+				break;
+			}
+			case 0xa5: { // f64.max
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = doubleToRawLongBits(Math.max(a, b));
+				index += 3;
+				break;
+			}
+			case 0xa6: { // f64.copysign
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				double b = longBitsToDouble(registers[base + code[index + 2]]);
+				registers[base + code[index]] = doubleToRawLongBits(copySign(a, b));
+				index += 3;
+				break;
+			}
+			case 0xa7: { // i32.wrap_i64
+				long a = registers[base + code[index + 1]];
+				registers[base + code[index]] = (int) a;
+				index += 2;
+				break;
+			}
+			case 0xa8: { // i32.trunc_f32_s
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = (int) a;
+				index += 2;
+				break;
+			}
+			case 0xa9: { // i32.trunc_f32_u
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = (int) a;
+				index += 2;
+				break;
+			}
+			case 0xaa: { // i32.trunc_f64_s
+				double a = longBitsToDouble(registers[base + code[index + 1]]);
+				registers[base + code[index]] = (int) a;
+				index += 2;
+				break;
+			}
+			case 0xac: { // i64.extend_i32_s
+				int a = (int) registers[base + code[index + 1]];
+				registers[base + code[index]] = (long) a;
+				index += 2;
+				break;
+			}
+			case 0xad: { // i64.extend_i32_u
+				int a = (int) registers[base + code[index + 1]];
+				registers[base + code[index]] = a & 0xffffffffL;
+				index += 2;
+				break;
+			}
+			case 0xb7: { // f64.convert_i32_s
+				int a = (int) registers[base + code[index + 1]];
+				registers[base + code[index]] = doubleToRawLongBits((double) a);
+				index += 2;
+				break;
+			}
+			case 0xb8: { // f64.convert_i32_u
+				int a = (int) registers[base + code[index + 1]];
+				registers[base + code[index]] = doubleToRawLongBits((double) (a & 0xffffffffL));
+				index += 2;
+				break;
+			}
+			case 0xba: { // f64.convert_i64_u
+				long a = registers[base + code[index + 1]];
+				registers[base + code[index]] = doubleToRawLongBits(F64ConvertI64U.fromUint64ToF64(a));
+				index += 2;
+				break;
+			}
+			case 0xbb: { // f64.promote_f32
+				float a = intBitsToFloat((int) registers[base + code[index + 1]]);
+				registers[base + code[index]] = doubleToRawLongBits((double) a);
+				index += 2;
+				break;
+			}
+			case 0xc0: { // i32.extend8_s
+				int a = (int) registers[base + code[index + 1]];
+				registers[base + code[index]] = (byte) a;
+				index += 2;
+				break;
+			}
+			case 0xc1: { // i32.extend16_s
+				int a = (int) registers[base + code[index + 1]];
+				registers[base + code[index]] = (short) a;
+				index += 2;
+				break;
+			}
+			case 0xc2: { // i64.extend8_s
+				long a = registers[base + code[index + 1]];
+				registers[base + code[index]] = (byte) a;
+				index += 2;
+				break;
+			}
+			case 0xc3: { // i64.extend16_s
+				long a = registers[base + code[index + 1]];
+				registers[base + code[index]] = (short) a;
+				index += 2;
+				break;
+			}
+			case 0xc4: { // i64.extend32_s
+				long a = registers[base + code[index + 1]];
+				registers[base + code[index]] = (int) a;
+				index += 2;
+				break;
+			}
+
+			default:
+				throw new UnsupportedOperationException("not implemented instruction: instruction = 0x" + toHexString(opcode));
+		}
+		return index;
+	}
+}
@@ -0,0 +1,556 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import jp.hisano.wasm.interpreter.Module.Function;
+
+import static jp.hisano.wasm.interpreter.FlatCode.IN_BOUNDS;
+import static jp.hisano.wasm.interpreter.Module.toResultLength;
+import static jp.hisano.wasm.interpreter.Parser.skipImmediates;
+import static jp.hisano.wasm.interpreter.Parser.toValueType;
+import static jp.hisano.wasm.interpreter.RegisterCode.CONSTANT;
+import static jp.hisano.wasm.interpreter.RegisterCode.MOVE;
+
+// Lowers a function body into the register code of RegisterCode.
+// The value at each height of the operand stack has a register of its own after the locals. local.get and constants are not
+// copied into the register of their height until it is needed, so that the instructions read the locals and write the
+// results into them directly. Every value is copied into its own register at the boundaries of the blocks and at calls.
+final class RegisterCodeCompiler {
+	private static final int NO_REGISTER = -1;
+
+	private final Module module;
+	private final Function function;
+	private final ByteBuffer byteBuffer;
+	private final BitSet inBoundsAccesses;
+	private final int base;
+
+	private int[] code = new int[64];
+	private int codeLength;
+	private final List<Function> functions = new ArrayList<>();
+	private final List<CallIndirectCache> caches = new ArrayList<>();
+
+	private final LinkedList<Label> labels = new LinkedList<>();
+	private boolean isReachable = true;
+
+	// The register of the value at each height, or NO_REGISTER for a constant which has not been set to a register yet
+	private int[] operandRegisters = new int[16];
+	private long[] operandConstants = new long[16];
+	private int stackHeight;
+	private int maxStackHeight;
+
+	// The position of the result register of the last instruction, which local.set can rewrite to the local
+	private int lastResultIndex = -1;
+	private int lastResultEnd;
+
+	private RegisterCodeCompiler(Module module, Function function) {
+		this.module = module;
+		this.function = function;
+		byteBuffer = function.readInstructions();
+		inBoundsAccesses = BoundsCheckAnalyzer.analyze(module, function.readInstructions());
+		base = function.getLocalVariableLength();
+	}
+
+	// Returns null when the function cannot be compiled, so that it is executed by FLAT instead
+	static RegisterCode compile(Module module, Function function) {
+		try {
+			return new RegisterCodeCompiler(module, function).compile();
+		} catch (UnsupportedOperationException e) {
+			return null;
+		} catch (IllegalStateException | IndexOutOfBoundsException e) {
+			// Function bodies are not validated when parsed, so the ones which are not well typed are left to the interpreters
+			return null;
+		}
+	}
+
+	private RegisterCode compile() {
+		labels.push(new Label(false, 0, function.returnTypes.length, true));
+		while (!labels.isEmpty()) {
+			int index = byteBuffer.getReadIndex();
+			int opcode = byteBuffer.readUint8AsInt();
+			if (isReachable) {
+				compileInstruction(opcode, inBoundsAccesses.get(index));
+			} else {
+				skipInstruction(opcode);
+			}
+		}
+		return new RegisterCode(Arrays.copyOf(code, codeLength), functions.toArray(new Function[functions.size()]), caches.toArray(new CallIndirectCache[caches.size()]), base, function.returnTypes.length, Math.max(maxStackHeight, 1));
+	}
+
+	private void skipInstruction(int opcode) {
+		switch (opcode) {
+			case 0x02:
+			case 0x03:
+			case 0x04:
+				byteBuffer.readVarsint7();
+				labels.push(new Label(false, 0, 0, false));
+				return;
+			case 0x05:
+				if (labels.peek().isReachable) {
+					compileElse();
+				}
+				return;
+			case 0x0b:
+				if (labels.peek().isReachable) {
+					compileEnd();
+				} else {
+					labels.pop();
+				}
+				return;
+		}
+		if (0xfc <= opcode) {
+			throw new UnsupportedOperationException("not implemented instruction: instruction = 0x" + Integer.toHexString(opcode));
+		}
+		skipImmediates(byteBuffer, opcode);
+	}
+
+	private void compileInstruction(int opcode, boolean isInBounds) {
+		switch (opcode) {
+			case 0x00:
+				emit(0x00);
+				isReachable = false;
+				return;
+			case 0x01:
+				return;
+
+			case 0x02:
+			case 0x03: {
+				int resultLength = toResultLength(toValueType(byteBuffer.readVarsint7()));
+				setAllToRegisters();
+				Label label = new Label(opcode == 0x03, stackHeight, resultLength, true);
+				label.startIndex = codeLength;
+				labels.push(label);
+				lastResultIndex = -1;
+				return;
+			}
+			case 0x04: {
+				int resultLength = toResultLength(toValueType(byteBuffer.readVarsint7()));
+				int condition = pop();
+				setAllToRegisters();
+				Label label = new Label(false, stackHeight, resultLength, true);
+				emit(0x04);
+				emit(condition);
+				label.elseIndex = codeLength;
+				emit(0);
+				labels.push(label);
+				return;
+			}
+			case 0x05:
+				compileElse();
+				return;
+			case 0x0b:
+				compileEnd();
+				return;
+
+			case 0x0c:
+				setAllToRegisters();
+				emit(0x0c);
+				emitBranchTarget(byteBuffer.readVaruint32());
+				isReachable = false;
+				return;
+			case 0x0d: {
+				int condition = pop();
+				setAllToRegisters();
+				emit(0x0d);
+				emit(condition);
+				emitBranchTarget(byteBuffer.readVaruint32());
+				return;
+			}
+			case 0x0e: {
+				int[] depths = byteBuffer.readVaruint32Array();
+				int defaultDepth = byteBuffer.readVaruint32();
+				int operand = pop();
+				setAllToRegisters();
+				emit(0x0e);
+				emit(operand);
+				emit(depths.length);
+				for (int depth : depths) {
+					emitBranchTarget(depth);
+				}
+				emitBranchTarget(defaultDepth);
+				isReachable = false;
+				return;
+			}
+			case 0x0f:
+				// return is a branch to the label of the function
+				setAllToRegisters();
+				emit(0x0c);
+				emitBranchTarget(labels.size() - 1);
+				isReachable = false;
+				return;
+
+			case 0x10: {
+				Function function = module.getFunction(byteBuffer.readVaruint32());
+				setAllToRegisters();
+				emit(0x10);
+				emit(base + stackHeight);
+				emit(functions.size());
+				functions.add(function);
+				popAndPushResults(function.parameterTypes.length, function.returnTypes.length);
+				return;
+			}
+			case 0x11: {
+				int typeIndex = byteBuffer.readVaruint32();
+				Module.FunctionType functionType = module.getFunctionType(typeIndex);
+				int tableIndex = byteBuffer.readVaruint32();
+				int operand = pop();
+				setAllToRegisters();
+				emit(0x11);
+				emit(operand);
+				emit(base + stackHeight);
+				emit(tableIndex);
+				emit(caches.size());
+				caches.add(new CallIndirectCache(module, typeIndex));
+				popAndPushResults(functionType.parameterTypes.length, functionType.returnTypes.length);
+				return;
+			}
+
+			case 0x12: {
+				Function function = module.getFunction(byteBuffer.readVaruint32());
+				setAllToRegisters();
+				emit(0x12);
+				emit(base + stackHeight);
+				emit(functions.size());
+				functions.add(function);
+				isReachable = false;
+				return;
+			}
+			case 0x13: {
+				int typeIndex = byteBuffer.readVaruint32();
+				int tableIndex = byteBuffer.readVaruint32();
+				int operand = pop();
+				setAllToRegisters();
+				emit(0x13);
+				emit(operand);
+				emit(base + stackHeight);
+				emit(tableIndex);
+				emit(caches.size());
+				caches.add(new CallIndirectCache(module, typeIndex));
+				isReachable = false;
+				return;
+			}
+
+			case 0x1a:
+				// a dropped constant is never set to a register
+				stackHeight--;
+				return;
+			case 0x1b: {
+				int condition = pop();
+				int second = pop();
+				int first = pop();
+				emitResult(0x1b, first, second, condition);
+				return;
+			}
+
+			case 0x20:
+				pushRegister(byteBuffer.readVaruint32());
+				return;
+			case 0x21:
+			case 0x22: {
+				int localIndex = byteBuffer.readVaruint32();
+				setLocal(localIndex);
+				if (opcode == 0x21) {
+					stackHeight--;
+				}
+				return;
+			}
+			case 0x23:
+				emitResult(0x23, byteBuffer.readVaruint32());
+				return;
+			case 0x24: {
+				int globalIndex = byteBuffer.readVaruint32();
+				int operand = pop();
+				emit(0x24);
+				emit(globalIndex);
+				emit(operand);
+				lastResultIndex = -1;
+				return;
+			}
+
+			case 0x28:
+			case 0x2c:
+			case 0x2d:
+			case 0x2e:
+			case 0x2f: {
+				// the alignment hint is not needed for execution
+				byteBuffer.readVaruint32();
+				int offset = byteBuffer.readVaruint32();
+				int address = pop();
+				emitResult(isInBounds? IN_BOUNDS | opcode: opcode, address, offset);
+				return;
+			}
+
+			case 0x36:
+			case 0x37:
+			case 0x38:
+			case 0x39:
+			case 0x3a:
+			case 0x3b:
+			case 0x3c:
+			case 0x3d:
+			case 0x3e: {
+				byteBuffer.readVaruint32();
+				int offset = byteBuffer.readVaruint32();
+				int value = pop();
+				int address = pop();
+				emit(isInBounds? IN_BOUNDS | opcode: opcode);
+				emit(address);
+				emit(value);
+				emit(offset);
+				lastResultIndex = -1;
+				return;
+			}
+
+			case 0x3f:
+				byteBuffer.readByte();
+				emitResult(0x3f);
+				return;
+			case 0x40:
+				byteBuffer.readByte();
+				emitResult(0x40, pop());
+				return;
+
+			case 0x41:
+				pushConstant(byteBuffer.readVarsint32());
+				return;
+			case 0x42:
+				pushConstant(byteBuffer.readVarsint64());
+				return;
+			case 0x43:
+				pushConstant(byteBuffer.readInt32());
+				return;
+			case 0x44:
+				pushConstant(byteBuffer.readInt64());
+				return;
+		}
+
+		if (isUnaryOperator(opcode)) {
+			emitResult(opcode, pop());
+		} else if (isBinaryOperator(opcode)) {
+			int second = pop();
+			int first = pop();
+			emitResult(opcode, first, second);
+		} else {
+			throw new UnsupportedOperationException("not implemented instruction: instruction = 0x" + Integer.toHexString(opcode));
+		}
+	}
+
+	private void compileElse() {
+		Label label = labels.peek();
+		if (isReachable) {
+			setAllToRegisters();
+			emit(0x05);
+			label.endIndices.add(codeLength);
+			emit(0);
+		}
+		code[label.elseIndex] = codeLength;
+		label.elseIndex = -1;
+		stackHeight = label.entryStackHeight;
+		isReachable = true;
+		lastResultIndex = -1;
+	}
+
+	private void compileEnd() {
+		if (isReachable) {
+			setAllToRegisters();
+		}
+		Label label = labels.pop();
+		if (label.elseIndex != -1) {
+			code[label.elseIndex] = codeLength;
+		}
+		for (int index : label.endIndices) {
+			code[index] = codeLength;
+		}
+		stackHeight = label.entryStackHeight;
+		for (int i = 0; i < label.resultLength; i++) {
+			pushRegister(base + stackHeight);
+		}
+		isReachable = true;
+		lastResultIndex = -1;
+	}
+
+	private void emitBranchTarget(int depth) {
+		Label label = labels.get(depth);
+		if (label.isLoop) {
+			emit(label.startIndex);
+		} else {
+			label.endIndices.add(codeLength);
+			emit(0);
+		}
+		if (label.isLoop || label.resultLength == 0) {
+			// a move of the register of height 0 to itself, which always exists
+			emit(base);
+			emit(base);
+		} else {
+			emit(base + stackHeight - 1);
+			emit(base + label.entryStackHeight);
+		}
+		lastResultIndex = -1;
+	}
+
+	private void setLocal(int localIndex) {
+		// The pending reads of the local must see the value before the write
+		for (int height = 0; height < stackHeight - 1; height++) {
+			if (operandRegisters[height] == localIndex) {
+				setToRegister(height);
+			}
+		}
+
+		int height = stackHeight - 1;
+		int register = operandRegisters[height];
+		if (register == NO_REGISTER) {
+			emitConstant(localIndex, operandConstants[height]);
+			lastResultIndex = -1;
+		} else if (lastResultIndex != -1 && lastResultEnd == codeLength && code[lastResultIndex] == register) {
+			// The result of the last instruction is written into the local directly
+			code[lastResultIndex] = localIndex;
+			lastResultIndex = -1;
+		} else if (register != localIndex) {
+			emit(MOVE);
+			emit(localIndex);
+			emit(register);
+			lastResultIndex = -1;
+		}
+		operandRegisters[height] = localIndex;
+	}
+
+	private void popAndPushResults(int parameterLength, int resultLength) {
+		stackHeight -= parameterLength;
+		for (int i = 0; i < resultLength; i++) {
+			pushRegister(base + stackHeight);
+		}
+		lastResultIndex = -1;
+	}
+
+	// Emits an instruction which writes the value of the new top of the stack
+	private void emitResult(int opcode, int... operands) {
+		int result = base + stackHeight;
+		emit(opcode);
+		lastResultIndex = codeLength;
+		emit(result);
+		for (int operand : operands) {
+			emit(operand);
+		}
+		lastResultEnd = codeLength;
+		pushRegister(result);
+	}
+
+	private void pushRegister(int register) {
+		ensureOperandCapacity();
+		operandRegisters[stackHeight] = register;
+		stackHeight++;
+		if (maxStackHeight < stackHeight) {
+			maxStackHeight = stackHeight;
+		}
+	}
+
+	private void pushConstant(long value) {
+		ensureOperandCapacity();
+		operandRegisters[stackHeight] = NO_REGISTER;
+		operandConstants[stackHeight] = value;
+		stackHeight++;
+		if (maxStackHeight < stackHeight) {
+			maxStackHeight = stackHeight;
+		}
+	}
+
+	// Returns the register of the top value
+	private int pop() {
+		if (stackHeight == 0) {
+			throw new IllegalStateException("stack underflow");
+		}
+		int height = --stackHeight;
+		if (operandRegisters[height] == NO_REGISTER) {
+			setToRegister(height);
+		}
+		return operandRegisters[height];
+	}
+
+	private void setAllToRegisters() {
+		for (int height = 0; height < stackHeight; height++) {
+			setToRegister(height);
+		}
+	}
+
+	private void setToRegister(int height) {
+		int register = base + height;
+		if (operandRegisters[height] == register) {
+			return;
+		}
+		if (operandRegisters[height] == NO_REGISTER) {
+			emitConstant(register, operandConstants[height]);
+		} else {
+			emit(MOVE);
+			emit(register);
+			emit(operandRegisters[height]);
+		}
+		operandRegisters[height] = register;
+		lastResultIndex = -1;
+	}
+
+	private void emitConstant(int register, long value) {
+		emit(CONSTANT);
+		emit(register);
+		emit((int) value);
+		emit((int) (value >>> 32));
+	}
+
+	private void ensureOperandCapacity() {
+		if (stackHeight == operandRegisters.length) {
+			operandRegisters = Arrays.copyOf(operandRegisters, stackHeight * 2);
+			operandConstants = Arrays.copyOf(operandConstants, stackHeight * 2);
+		}
+	}
+
+	private void emit(int value) {
+		if (codeLength == code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[codeLength++] = value;
+	}
+
+	private static boolean isUnaryOperator(int opcode) {
+		switch (opcode) {
+			case 0x45: // i32.eqz
+			case 0x50: // i64.eqz
+			case 0xa7: // i32.wrap_i64
+			case 0xa8: // i32.trunc_f32_s
+			case 0xa9: // i32.trunc_f32_u
+			case 0xaa: // i32.trunc_f64_s
+			case 0xac: // i64.extend_i32_s
+			case 0xad: // i64.extend_i32_u
+			case 0xb7: // f64.convert_i32_s
+			case 0xb8: // f64.convert_i32_u
+			case 0xba: // f64.convert_i64_u
+			case 0xbb: // f64.promote_f32
+				return true;
+		}
+		return (0x67 <= opcode && opcode <= 0x69) || (0x79 <= opcode && opcode <= 0x7b) || (0x8b <= opcode && opcode <= 0x91) || (0x99 <= opcode && opcode <= 0x9f) || (0xc0 <= opcode && opcode <= 0xc4);
+	}
+
+	private static boolean isBinaryOperator(int opcode) {
+		return (0x46 <= opcode && opcode <= 0x4f) || (0x51 <= opcode && opcode <= 0x66) || (0x6a <= opcode && opcode <= 0x78) || (0x7c <= opcode && opcode <= 0x8a) || (0x92 <= opcode && opcode <= 0x98) || (0xa0 <= opcode && opcode <= 0xa6);
+	}
+
+	private static final class Label {
+		private final boolean isLoop;
+		private final int entryStackHeight;
+		private final int resultLength;
+		// Whether the block is entered. The instructions of the blocks in unreachable code are skipped.
+		private final boolean isReachable;
+
+		private int startIndex;
+		private final List<Integer> endIndices = new ArrayList<>();
+		private int elseIndex = -1;
+
+		Label(boolean isLoop, int entryStackHeight, int resultLength, boolean isReachable) {
+			this.isLoop = isLoop;
+			this.entryStackHeight = entryStackHeight;
+			this.resultLength = resultLength;
+			this.isReachable = isReachable;
+		}
+	}
+}
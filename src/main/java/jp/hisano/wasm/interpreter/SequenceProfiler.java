@@ -0,0 +1,191 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jp.hisano.wasm.interpreter.Module.Instruction;
+
+// Counts the instruction sequences executed by the TREE engine, so that the superinstructions of PeepholeOptimizer can be
+// tuned to real workloads. Only the sequences executed in straight-line order are counted. Instructions are not fused while
+// a profiler is set, so the counts are of the original instructions.
+public final class SequenceProfiler {
+	// Each instruction class is given a 16 bit id, so a sequence of up to 4 instructions is packed into one long key and
+	// the class names are only looked up when the counts are reported
+	private static final int ID_BITS = 16;
+	private static final int MAX_SEQUENCE_LENGTH = Long.SIZE / ID_BITS;
+
+	private static final List<String> NAMES = new CopyOnWriteArrayList<>();
+	private static final ClassValue<Integer> IDS = new ClassValue<Integer>() {
+		@Override
+		protected Integer computeValue(Class<?> type) {
+			synchronized (NAMES) {
+				NAMES.add(type.getSimpleName());
+				if (NAMES.size() >= 1 << ID_BITS) {
+					throw new IllegalStateException("too many instruction classes");
+				}
+				// 0 is left for the empty slots of the keys
+				return NAMES.size();
+			}
+		}
+	};
+
+	private final int maxSequenceLength;
+	// Every thread counts into its own table, so the counting needs neither locks nor allocations
+	private final List<Counts> allCounts = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<Counts> threadCounts = ThreadLocal.withInitial(() -> {
+		Counts counts = new Counts();
+		allCounts.add(counts);
+		return counts;
+	});
+	private volatile int generation;
+
+	public SequenceProfiler() {
+		this(MAX_SEQUENCE_LENGTH);
+	}
+
+	public SequenceProfiler(int maxSequenceLength) {
+		if (maxSequenceLength < 2 || MAX_SEQUENCE_LENGTH < maxSequenceLength) {
+			throw new IllegalArgumentException("max sequence length must be between 2 and " + MAX_SEQUENCE_LENGTH + ": " + maxSequenceLength);
+		}
+		this.maxSequenceLength = maxSequenceLength;
+	}
+
+	void execute(Instruction[] code, Frame frame) {
+		Counts counts = threadCounts.get();
+		counts.clearIfReset(generation);
+		long sequence = 0;
+		int runLength = 0;
+		int previousIndex = -1;
+		for (int index = frame.fetchInstructionIndex(); index < code.length; index = frame.fetchInstructionIndex()) {
+			if (index != previousIndex + 1) {
+				runLength = 0;
+			}
+			sequence = (sequence << ID_BITS) | IDS.get(code[index].getClass());
+			runLength = Math.min(runLength + 1, maxSequenceLength);
+			for (int length = 2; length <= runLength; length++) {
+				counts.increment(sequence & (-1L >>> (Long.SIZE - length * ID_BITS)));
+			}
+			previousIndex = index;
+			code[index].execute(frame);
+		}
+	}
+
+	// Returns the counts keyed by the instruction class names joined with spaces, such as "LocalGet LocalGet I32Add"
+	public Map<String, Long> getCounts() {
+		Map<String, Long> result = new TreeMap<>();
+		int generation = this.generation;
+		for (Counts counts : allCounts) {
+			if (counts.generation != generation) {
+				continue;
+			}
+			Table table = counts.table;
+			for (int i = 0; i < table.keys.length; i++) {
+				if (table.keys[i] != 0) {
+					result.merge(toNames(table.keys[i]), table.values[i], Long::sum);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static String toNames(long sequence) {
+		StringBuilder names = new StringBuilder();
+		for (int shift = Long.SIZE - ID_BITS; 0 <= shift; shift -= ID_BITS) {
+			int id = (int) (sequence >>> shift) & ((1 << ID_BITS) - 1);
+			if (id != 0) {
+				if (names.length() != 0) {
+					names.append(' ');
+				}
+				names.append(NAMES.get(id - 1));
+			}
+		}
+		return names.toString();
+	}
+
+	// Each thread clears its own table before it counts again, and the tables not cleared yet are skipped by getCounts
+	public void reset() {
+		generation++;
+	}
+
+	// Prints the most frequent sequences in descending order of their counts
+	public void dump(PrintStream output, int limit) {
+		List<Map.Entry<String, Long>> entries = new ArrayList<>(getCounts().entrySet());
+		entries.sort((first, second) -> Long.compare(second.getValue(), first.getValue()));
+		for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+			output.println(entry.getValue() + "\t" + entry.getKey());
+		}
+	}
+
+	// An open addressing table written only by its own thread. The table is replaced as a whole when it grows, so that
+	// getCounts always reads a consistent table, though the counts of running functions may lag.
+	private static final class Counts {
+		volatile Table table = new Table(64);
+		volatile int generation;
+
+		void clearIfReset(int generation) {
+			if (this.generation != generation) {
+				table = new Table(64);
+				this.generation = generation;
+			}
+		}
+
+		void increment(long key) {
+			Table table = this.table;
+			int mask = table.keys.length - 1;
+			for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+				if (table.keys[i] == key) {
+					table.values[i]++;
+					return;
+				}
+				if (table.keys[i] == 0) {
+					if (table.keys.length <= (table.size + 1) * 2) {
+						grow(table);
+						increment(key);
+						return;
+					}
+					table.values[i] = 1;
+					table.keys[i] = key;
+					table.size++;
+					return;
+				}
+			}
+		}
+
+		private void grow(Table table) {
+			Table grown = new Table(table.keys.length * 2);
+			int mask = grown.keys.length - 1;
+			for (int j = 0; j < table.keys.length; j++) {
+				if (table.keys[j] != 0) {
+					int i = hash(table.keys[j]) & mask;
+					while (grown.keys[i] != 0) {
+						i = (i + 1) & mask;
+					}
+					grown.keys[i] = table.keys[j];
+					grown.values[i] = table.values[j];
+				}
+			}
+			grown.size = table.size;
+			this.table = grown;
+		}
+
+		private static int hash(long key) {
+			long hash = key * 0x9E3779B97F4A7C15L;
+			return (int) (hash ^ (hash >>> 32));
+		}
+	}
+
+	private static final class Table {
+		final long[] keys;
+		final long[] values;
+		int size;
+
+		Table(int capacity) {
+			keys = new long[capacity];
+			values = new long[capacity];
+		}
+	}
+}
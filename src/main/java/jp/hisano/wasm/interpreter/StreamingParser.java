@@ -0,0 +1,139 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+import jp.hisano.wasm.interpreter.Module.Function;
+
+import static jp.hisano.wasm.interpreter.InterpreterException.Type.*;
+
+// Parses a module while it is read from a channel, so the whole binary is never held in an array.
+// Each section is read into its own array and parsed by Parser. When parallel decoding is enabled, each function body is
+// decoded on the common ForkJoinPool as soon as it is read, overlapping the decoding with reading the rest of the code section.
+final class StreamingParser {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ReadableByteChannel channel;
+	// Starts empty and is filled from the channel on demand
+	private final java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(BUFFER_SIZE);
+
+	// A channel in non-blocking mode could return no bytes until they arrive, so it is rejected instead of being polled
+	StreamingParser(ReadableByteChannel channel) {
+		if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+			throw new IllegalArgumentException("channel must be in blocking mode");
+		}
+		this.channel = channel;
+		// Buffer methods are called through Buffer because ByteBuffer overrides them only since Java 9
+		((Buffer) buffer).limit(0);
+	}
+
+	void parseModule(Module module) throws IOException {
+		new Parser(readBytes(8)).checkHeader();
+
+		List<ForkJoinTask<?>> decodingTasks = new ArrayList<>();
+		while (fill()) {
+			int section = readUint8AsInt();
+			int size = readVaruint32();
+			switch (section) {
+				case 0x00:
+					// ignore custom section
+					skipBytes(size);
+					break;
+				case 0x0A:
+					parseCodeSection(module, decodingTasks);
+					break;
+				default:
+					new Parser(readBytes(size)).parseSection(module, section, size);
+					break;
+			}
+		}
+
+		for (ForkJoinTask<?> decodingTask : decodingTasks) {
+			decodingTask.join();
+		}
+	}
+
+	private void parseCodeSection(Module module, List<ForkJoinTask<?>> decodingTasks) throws IOException {
+		// JVM compiles the functions together after all of them are read
+		boolean isParallelDecoding = module.getConfiguration().isParallelDecoding() && module.getConfiguration().getEngine() != Engine.JVM;
+		for (int i = 0, length = readVaruint32(); i < length; i++) {
+			int size = readVaruint32();
+			new Parser(readBytes(size)).parseFunctionBody(module, i, size);
+			if (isParallelDecoding) {
+				Function function = module.getFunction(i);
+				decodingTasks.add(ForkJoinPool.commonPool().submit(function::decode));
+			}
+		}
+	}
+
+	// Returns false at the end of the channel
+	private boolean fill() throws IOException {
+		if (buffer.hasRemaining()) {
+			return true;
+		}
+		((Buffer) buffer).clear();
+		int readLength = read(buffer);
+		((Buffer) buffer).flip();
+		return 0 < readLength;
+	}
+
+	// A blocking channel reads at least one byte unless it is at the end
+	private int read(java.nio.ByteBuffer target) throws IOException {
+		int readLength = channel.read(target);
+		if (readLength == 0) {
+			throw new IOException("no bytes are read from the channel in blocking mode");
+		}
+		return readLength;
+	}
+
+	private int readUint8AsInt() throws IOException {
+		if (!fill()) {
+			throw new InterpreterException(ILLEGAL_BINARY);
+		}
+		return buffer.get() & 0xff;
+	}
+
+	private int readVaruint32() throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int value = readUint8AsInt();
+			result |= (value & 0x7f) << shift;
+			if ((value & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new InterpreterException(ILLEGAL_BINARY);
+	}
+
+	// Large sections are read from the channel directly into the result without going through the buffer
+	private byte[] readBytes(int length) throws IOException {
+		byte[] result = new byte[length];
+		int bufferedLength = Math.min(length, buffer.remaining());
+		buffer.get(result, 0, bufferedLength);
+		java.nio.ByteBuffer target = java.nio.ByteBuffer.wrap(result, bufferedLength, length - bufferedLength);
+		while (target.hasRemaining()) {
+			if (read(target) < 0) {
+				throw new InterpreterException(ILLEGAL_BINARY);
+			}
+		}
+		return result;
+	}
+
+	private void skipBytes(int length) throws IOException {
+		for (int remaining = length; 0 < remaining; ) {
+			if (!fill()) {
+				throw new InterpreterException(ILLEGAL_BINARY);
+			}
+			int skipLength = Math.min(remaining, buffer.remaining());
+			((Buffer) buffer).position(buffer.position() + skipLength);
+			remaining -= skipLength;
+		}
+	}
+}
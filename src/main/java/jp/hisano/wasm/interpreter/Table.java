@@ -22,7 +22,23 @@ final class Table {
 		}
 	}
 
-	Function getFunction(int index) {
-		return functions[index];
+	// The signature is checked by CallIndirectCache
+	Function getElement(int index) {
+		if (index < 0 || functions.length <= index) {
+			throw new TrapException("undefined element");
+		}
+		Function function = functions[index];
+		if (function == null) {
+			throw new TrapException("uninitialized element");
+		}
+		return function;
+	}
+
+	Function[] snapshot() {
+		return functions.clone();
+	}
+
+	void restore(Function[] snapshot) {
+		System.arraycopy(snapshot, 0, functions, 0, functions.length);
 	}
 }
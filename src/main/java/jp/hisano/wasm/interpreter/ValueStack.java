@@ -0,0 +1,49 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.Arrays;
+
+// Slots of the frames of a thread. Each frame has its locals followed by its operand stack, and the arguments of a call stay
+// in place as the first locals of the callee. The slots are reallocated when a frame does not fit, so the engines read them
+// from the frame again after calls.
+final class ValueStack {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private static final ThreadLocal<ValueStack> CURRENT = ThreadLocal.withInitial(() -> new ValueStack(INITIAL_CAPACITY));
+
+	private long[] slots;
+	// End of the slots used by the frames
+	private int top;
+	// Frames which are executed
+	private int callDepth;
+
+	ValueStack(int capacity) {
+		slots = new long[capacity];
+	}
+
+	static ValueStack current() {
+		return CURRENT.get();
+	}
+
+	long[] getSlots() {
+		return slots;
+	}
+
+	int getTop() {
+		return top;
+	}
+
+	int getCallDepth() {
+		return callDepth;
+	}
+
+	void setCallDepth(int callDepth) {
+		this.callDepth = callDepth;
+	}
+
+	void setTop(int top) {
+		if (slots.length < top) {
+			slots = Arrays.copyOf(slots, Math.max(top, slots.length * 2));
+		}
+		this.top = top;
+	}
+}
@@ -6,6 +6,8 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+
 import static jp.hisano.wasm.interpreter.TestUtils.*;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -93,4 +95,32 @@ class AddressTest {
 		int resultValue = createInterpreter("spec/address/address.0.wasm").invoke(functionName, address);
 		assertEquals(expectedValue, resultValue);
 	}
+
+	@DisplayName("i32.load* traps")
+	@ParameterizedTest(name = "{0}({1}) traps")
+	@CsvSource({
+		"32_good5,65508",
+		"8u_good3,-1",
+		"8s_good3,-1",
+		"16u_good3,-1",
+		"16s_good3,-1",
+		"32_good3,-1",
+		"8u_bad,0",
+		"8s_bad,0",
+		"16u_bad,0",
+		"16s_bad,0",
+		"32_bad,0",
+		"8u_bad,1",
+		"8s_bad,1",
+		"16u_bad,1",
+		"16s_bad,1",
+		"32_bad,1",
+	})
+	void load_out_of_bounds(String functionName, int address) throws IOException {
+		for (Engine engine : Engine.values()) {
+			Interpreter interpreter = createInterpreter("spec/address/address.0.wasm", new Configuration().setEngine(engine));
+			TrapException trapException = assertThrows(TrapException.class, () -> interpreter.invoke(functionName, address));
+			assertEquals("out of bounds memory access", trapException.getMessage());
+		}
+	}
 }
@@ -0,0 +1,31 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundsCheckAnalyzerTest {
+	@Test
+	void constant_and_masked_addresses() {
+		Module module = new Module(new byte[] {0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00});
+		module.addMemoryType(1, 1);
+
+		BitSet inBoundsAccesses = BoundsCheckAnalyzer.analyze(module, new ByteBuffer(new byte[] {
+			// 0: i32.const 65532, 4: i32.load offset=0 (in bounds)
+			0x41, (byte) 0xfc, (byte) 0xff, 0x03, 0x28, 0x02, 0x00,
+			// 7: i32.const 65532, 11: i32.load offset=1 (out of bounds)
+			0x41, (byte) 0xfc, (byte) 0xff, 0x03, 0x28, 0x02, 0x01,
+			// 14: local.get 0, 16: i32.const 255, 19: i32.and, 20: i32.load8_u offset=16 (in bounds)
+			0x20, 0x00, 0x41, (byte) 0xff, 0x01, 0x71, 0x2d, 0x00, 0x10,
+			// 23: i32.const 0, 25: block, 27: end, 28: i32.load (unknown after control flow)
+			0x41, 0x00, 0x02, 0x40, 0x0b, 0x28, 0x02, 0x00,
+			// 31: local.get 0, 33: i32.load (unknown)
+			0x20, 0x00, 0x28, 0x02, 0x00,
+			0x0b,
+		}));
+
+		assertEquals("{4, 20}", inBoundsAccesses.toString());
+	}
+}
@@ -0,0 +1,51 @@
+package jp.hisano.wasm.interpreter;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteBufferTest {
+	private static final int[] INTS = {0, 1, -1, 63, 64, -64, -65, 127, 128, 8191, 8192, -8192, -8193, 1 << 20, Integer.MAX_VALUE, Integer.MIN_VALUE};
+	private static final long[] LONGS = {0, 1, -1, 63, -64, 1L << 31, -(1L << 31) - 1, 1L << 32, 0x123456789abcdefL, 1L << 62, -(1L << 62), Long.MAX_VALUE, Long.MIN_VALUE};
+
+	@Test
+	void read_varint32() {
+		BinaryWriter writer = new BinaryWriter();
+		for (int value : INTS) {
+			writer.writeVarsint32(value);
+			writer.writeVaruint32(value);
+		}
+
+		// The last values are read near the end, where the fast paths are not used
+		ByteBuffer byteBuffer = new ByteBuffer(writer.toByteArray());
+		for (int value : INTS) {
+			assertEquals(value, byteBuffer.readVarsint32());
+			assertEquals(value, byteBuffer.readVaruint32());
+		}
+		assertFalse(byteBuffer.canRead());
+	}
+
+	@Test
+	void read_varint64() {
+		BinaryWriter writer = new BinaryWriter();
+		for (long value : LONGS) {
+			writer.writeVarsint64(value);
+		}
+
+		ByteBuffer byteBuffer = new ByteBuffer(writer.toByteArray());
+		for (long value : LONGS) {
+			assertEquals(value, byteBuffer.readVarsint64());
+		}
+		assertFalse(byteBuffer.canRead());
+	}
+
+	@Test
+	void read_too_long_varint() {
+		byte[] bytes = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0};
+		assertEquals(InterpreterException.Type.ILLEGAL_BINARY, assertThrows(InterpreterException.class, () -> new ByteBuffer(bytes).readVaruint32()).getType());
+		assertEquals(InterpreterException.Type.ILLEGAL_BINARY, assertThrows(InterpreterException.class, () -> new ByteBuffer(bytes).readVarsint32()).getType());
+		assertEquals(InterpreterException.Type.ILLEGAL_BINARY, assertThrows(InterpreterException.class, () -> new ByteBuffer(bytes).readVarsint64()).getType());
+		assertEquals(InterpreterException.Type.ILLEGAL_BINARY, assertThrows(InterpreterException.class, () -> new ByteBuffer(bytes, 5, 5).readVaruint32()).getType());
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> new ByteBuffer(bytes, 0, 4).readVaruint32());
+	}
+}
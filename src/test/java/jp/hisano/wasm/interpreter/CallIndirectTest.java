@@ -0,0 +1,80 @@
+package jp.hisano.wasm.interpreter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CallIndirectTest {
+	private static final byte[] MODULE = {
+		0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00,
+		// type section: () -> i32 and (i32) -> i32
+		0x01, 0x0a, 0x02, 0x60, 0x00, 0x01, 0x7f, 0x60, 0x01, 0x7f, 0x01, 0x7f,
+		// function section
+		0x03, 0x05, 0x04, 0x00, 0x00, 0x01, 0x01,
+		// table section: 4 elements
+		0x04, 0x04, 0x01, 0x70, 0x00, 0x04,
+		// export section: "call"
+		0x07, 0x08, 0x01, 0x04, 0x63, 0x61, 0x6c, 0x6c, 0x00, 0x03,
+		// element section: the first 3 functions at 0
+		0x09, 0x09, 0x01, 0x00, 0x41, 0x00, 0x0b, 0x03, 0x00, 0x01, 0x02,
+		// code section
+		0x0a, 0x18, 0x04,
+		// () -> 1
+		0x04, 0x00, 0x41, 0x01, 0x0b,
+		// () -> 2
+		0x04, 0x00, 0x41, 0x02, 0x0b,
+		// (n) -> n
+		0x04, 0x00, 0x20, 0x00, 0x0b,
+		// call: call_indirect (type 0) n
+		0x07, 0x00, 0x20, 0x00, 0x11, 0x00, 0x00, 0x0b,
+	};
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void call_cached_targets(Engine engine) {
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setEngine(engine));
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1, (int) interpreter.invoke("call", 0));
+			assertEquals(2, (int) interpreter.invoke("call", 1));
+		}
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void trap_on_invalid_element(Engine engine) {
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setEngine(engine));
+		assertEquals(1, (int) interpreter.invoke("call", 0));
+		// A mismatch is never cached as a target
+		for (int i = 0; i < 2; i++) {
+			TrapException trapException = assertThrows(TrapException.class, () -> interpreter.invoke("call", 2));
+			assertEquals("indirect call type mismatch", trapException.getMessage());
+		}
+		assertEquals("uninitialized element", assertThrows(TrapException.class, () -> interpreter.invoke("call", 3)).getMessage());
+		assertEquals("undefined element", assertThrows(TrapException.class, () -> interpreter.invoke("call", 4)).getMessage());
+		assertEquals("undefined element", assertThrows(TrapException.class, () -> interpreter.invoke("call", -1)).getMessage());
+	}
+
+	@Test
+	void invalidate_on_table_write() {
+		Module module = new Module(MODULE);
+		Table table = new Instance(module).getTable(0);
+		CallIndirectCache cache = new CallIndirectCache(module, 0);
+		assertSame(module.getFunction(0), cache.getFunction(table, 0));
+		table.setElements(0, new int[] {1});
+		assertSame(module.getFunction(1), cache.getFunction(table, 0));
+	}
+
+	@Test
+	void share_targets_between_instances() {
+		Module module = new Module(MODULE, new Configuration().setEngine(Engine.FLAT));
+		assertEquals(1, (int) new Interpreter(module).invoke("call", 0));
+		assertEquals(1, (int) new Interpreter(module).invoke("call", 0));
+
+		CallIndirectCache cache = ((FlatCode) module.getExportedFunction("call").getFunction().code).getCaches()[0];
+		assertEquals(1, cache.getMissCount());
+	}
+}
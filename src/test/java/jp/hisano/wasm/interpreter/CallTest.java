@@ -3,6 +3,10 @@ package jp.hisano.wasm.interpreter;
 import java.io.IOException;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
 
 import static jp.hisano.wasm.interpreter.TestUtils.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -20,6 +24,59 @@ class CallTest {
 		assertEquals(2, resultValue);
 	}
 
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void runaway(Engine engine) throws IOException {
+		Interpreter interpreter = createInterpreter("spec/call/call.0.wasm", new Configuration().setEngine(engine).setMaxCallDepth(200));
+		for (String name : new String[] {"runaway", "mutual-runaway"}) {
+			TrapException trapException = assertThrows(TrapException.class, () -> interpreter.invoke(name));
+			assertEquals("call stack exhausted", trapException.getMessage());
+			assertNull(trapException.getCause());
+			assertEquals(0, ValueStack.current().getTop());
+			assertEquals(0, ValueStack.current().getCallDepth());
+		}
+
+		// The calls within the limit are not affected by the trap
+		long resultValue = interpreter.invoke("fac", 20L);
+		assertEquals(2432902008176640000L, resultValue);
+		assertThrows(TrapException.class, () -> interpreter.invoke("even", 300L));
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void runaway_with_default_limits(Engine engine) throws IOException {
+		Interpreter interpreter = createInterpreter("spec/call/call.0.wasm", new Configuration().setEngine(engine));
+		for (String name : new String[] {"runaway", "mutual-runaway"}) {
+			// The default thread stack fits the default max call depth, so the call depth is exhausted first
+			TrapException trapException = assertThrows(TrapException.class, () -> interpreter.invoke(name));
+			assertEquals("call stack exhausted", trapException.getMessage());
+			assertNull(trapException.getCause());
+		}
+
+		int resultValue = interpreter.invoke("even", 5000L);
+		assertEquals(44, resultValue);
+	}
+
+	@Test
+	void exhaust_value_stack() throws IOException {
+		Interpreter interpreter = createInterpreter("spec/call/call.0.wasm", new Configuration().setMaxValueStackSize(100));
+		TrapException trapException = assertThrows(TrapException.class, () -> interpreter.invoke("runaway"));
+		assertEquals("call stack exhausted", trapException.getMessage());
+		int resultValue = interpreter.invoke("even", 10L);
+		assertEquals(44, resultValue);
+	}
+
+	@Test
+	void call_on_thread_with_large_stack() throws IOException {
+		Interpreter interpreter = createInterpreter("spec/call/call.0.wasm", new Configuration().setMaxCallDepth(20000).setThreadStackSize(256L * 1024 * 1024));
+		int resultValue = interpreter.invoke("even", 10000L);
+		assertEquals(44, resultValue);
+
+		TrapException trapException = assertThrows(TrapException.class, () -> interpreter.invoke("runaway"));
+		assertEquals("call stack exhausted", trapException.getMessage());
+		assertNull(trapException.getCause());
+	}
+
 	private static Interpreter getInterpreter() throws IOException {
 		return createInterpreter("spec/call/call.0.wasm");
 	}
@@ -0,0 +1,103 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+import jp.hisano.wasm.interpreter.Module.Function;
+
+import static jp.hisano.wasm.interpreter.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+class CodeCacheTest {
+	@ParameterizedTest
+	@EnumSource(value = Engine.class, names = {"FLAT", "JVM"})
+	void load_stored_code(Engine engine, @TempDir Path directory) throws IOException {
+		Configuration configuration = new Configuration().setEngine(engine).setCacheDirectory(directory);
+		Module storingModule = new Module(readWasmBinary("spec/call/call.0.wasm"), configuration);
+		List<Path> files = listFiles(directory);
+		assertEquals(1, files.size());
+		assertTrue(files.get(0).getFileName().toString().endsWith("-" + engine.name().toLowerCase() + "-6.cache"));
+
+		Module loadingModule = new Module(readWasmBinary("spec/call/call.0.wasm"), configuration);
+		Function function = loadingModule.getExportedFunction("fib").getFunction();
+		assertNotNull(function.code);
+		assertNotSame(storingModule.getExportedFunction("fib").getFunction().code, function.code);
+		if (engine == Engine.FLAT) {
+			assertArrayEquals(((FlatCode) storingModule.getExportedFunction("fib").getFunction().code).getCode(), ((FlatCode) function.code).getCode());
+		} else {
+			assertFalse(function.code instanceof FlatCode);
+		}
+
+		long resultValue = new Instance(loadingModule).invoke("fib", 20L);
+		assertEquals(10946L, resultValue);
+		assertEquals(files, listFiles(directory));
+	}
+
+	@Test
+	void replace_broken_file(@TempDir Path directory) throws IOException {
+		Configuration configuration = new Configuration().setEngine(Engine.FLAT).setCacheDirectory(directory);
+		new Module(readWasmBinary("spec/call/call.0.wasm"), configuration);
+		Path file = listFiles(directory).get(0);
+		Files.write(file, new byte[] {0x77, 0x61, 0x63, 0x6d, 0, 0, 0, 1, 0x7f});
+
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"), configuration);
+		long resultValue = new Instance(module).invoke("fac", 25L);
+		assertEquals(7034535277573963776L, resultValue);
+		assertTrue(1000 < Files.size(file));
+	}
+
+	@Test
+	void reject_file_with_wrong_mac(@TempDir Path directory) throws IOException {
+		Configuration configuration = new Configuration().setEngine(Engine.JVM).setCacheDirectory(directory);
+		new Module(readWasmBinary("spec/call/call.0.wasm"), configuration);
+		Path file = listFiles(directory).get(0);
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[bytes.length - 1] ^= 1;
+		Files.write(file, bytes);
+
+		// The file is replaced because it is not loaded
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"), configuration);
+		long resultValue = new Instance(module).invoke("fac", 25L);
+		assertEquals(7034535277573963776L, resultValue);
+		assertFalse(Arrays.equals(bytes, Files.readAllBytes(file)));
+	}
+
+	@Test
+	void do_not_use_directory_writable_by_others(@TempDir Path directory) throws IOException {
+		assumeTrue(Files.getFileStore(directory).supportsFileAttributeView(PosixFileAttributeView.class));
+		Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxrwxrwx"));
+
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"), new Configuration().setEngine(Engine.FLAT).setCacheDirectory(directory));
+		long resultValue = new Instance(module).invoke("fac", 25L);
+		assertEquals(7034535277573963776L, resultValue);
+		try (Stream<Path> files = Files.list(directory)) {
+			assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	void tree_is_not_cached(@TempDir Path directory) throws IOException {
+		new Module(readWasmBinary("spec/call/call.0.wasm"), new Configuration().setCacheDirectory(directory));
+		assertTrue(listFiles(directory).isEmpty());
+	}
+
+	private static List<Path> listFiles(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".cache")).collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+import jp.hisano.wasm.interpreter.JvmCompiler.GeneratedClass;
+import jp.hisano.wasm.interpreter.Module.Function;
+
+import static jp.hisano.wasm.interpreter.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class EngineTest {
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void fac(Engine engine) throws IOException {
+		long resultValue = getCallInterpreter(engine).invoke("fac", 25L);
+		assertEquals(7034535277573963776L, resultValue);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void fib(Engine engine) throws IOException {
+		long resultValue = getCallInterpreter(engine).invoke("fib", 20L);
+		assertEquals(10946L, resultValue);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void even(Engine engine) throws IOException {
+		int resultValue = getCallInterpreter(engine).invoke("even", 77L);
+		assertEquals(99, resultValue);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void grow_value_stack(Engine engine) throws IOException {
+		int resultValue = getCallInterpreter(engine).invoke("even", 600L);
+		assertEquals(44, resultValue);
+		assertEquals(0, ValueStack.current().getTop());
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void as_loop_mid(Engine engine) throws IOException {
+		int resultValue = getBrIfInterpreter(engine).invoke("as-loop-mid", 1);
+		assertEquals(4, resultValue);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void as_br_table_value_index(Engine engine) throws IOException {
+		int resultValue = getBrIfInterpreter(engine).invoke("as-br_table-value-index");
+		assertEquals(1, resultValue);
+	}
+
+	@Test
+	void compile_into_jvm_bytecode() throws IOException {
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"));
+		for (String name : new String[] {"fac", "fib", "even", "as-select-first"}) {
+			assertNotNull(JvmCompiler.compile(module, module.getExportedFunction(name).getFunction()), name);
+		}
+	}
+
+	@Test
+	void compile_module_into_one_jvm_class() throws IOException {
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"));
+		List<Function> functions = module.getFunctions();
+		List<GeneratedClass> generatedClasses = JvmCompiler.generate(module, functions);
+		assertEquals(1, generatedClasses.size());
+		List<Integer> functionIndices = new ArrayList<>();
+		for (int functionIndex : generatedClasses.get(0).getFunctionIndices()) {
+			functionIndices.add(functionIndex);
+		}
+		for (String name : new String[] {"fac", "fib", "even"}) {
+			assertTrue(functionIndices.contains(functions.indexOf(module.getExportedFunction(name).getFunction())), name);
+		}
+	}
+
+	@Test
+	void lower_into_register_code() throws IOException {
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"));
+		for (String name : new String[] {"fac", "fib", "even", "as-select-first"}) {
+			assertNotNull(RegisterCodeCompiler.compile(module, module.getExportedFunction(name).getFunction()), name);
+		}
+	}
+
+	@Test
+	void tier_up() throws IOException {
+		List<String> tierUps = new ArrayList<>();
+		Configuration configuration = new Configuration().setEngine(Engine.TIERED).setTieredEngine(Engine.JVM).setTierUpThreshold(10).setTierListener((functionIndex, fromEngine, toEngine) -> {
+			tierUps.add(fromEngine + "->" + toEngine);
+		});
+		Interpreter interpreter = createInterpreter("spec/call/call.0.wasm", configuration);
+
+		long resultValue = interpreter.invoke("fib", 20L);
+		assertEquals(10946L, resultValue);
+		assertEquals(1, tierUps.size());
+		assertEquals("TREE->JVM", tierUps.get(0));
+
+		resultValue = interpreter.invoke("fib", 20L);
+		assertEquals(10946L, resultValue);
+		assertEquals(1, tierUps.size());
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void parallel_decoding(Engine engine) throws IOException {
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"), new Configuration().setEngine(engine).setParallelDecoding(true));
+		for (String name : new String[] {"fac", "fib", "even"}) {
+			assertNotNull(module.getExportedFunction(name).getFunction().code, name);
+		}
+
+		long resultValue = new Instance(module).invoke("fib", 20L);
+		assertEquals(10946L, resultValue);
+	}
+
+	@Test
+	void decode_when_module_is_built() throws IOException {
+		Configuration configuration = new Configuration().setEngine(Engine.FLAT);
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"), configuration);
+		configuration.setEngine(Engine.TREE);
+
+		// The module keeps a copy of the configuration
+		assertEquals(Engine.FLAT, module.getConfiguration().getEngine());
+		for (String name : new String[] {"fac", "fib", "even"}) {
+			assertTrue(module.getExportedFunction(name).getFunction().code instanceof FlatCode, name);
+		}
+	}
+
+	@Test
+	void slice_module_binary() throws IOException {
+		byte[] wasmFileContent = readWasmBinary("spec/address/address.0.wasm");
+		Module module = new Module(wasmFileContent);
+
+		// Both are views of the copy of the binary
+		byte[] copiedContent = module.getExportedFunction("32_good1").getFunction().readInstructions().getBytes();
+		assertNotSame(wasmFileContent, copiedContent);
+		assertArrayEquals(wasmFileContent, copiedContent);
+		assertSame(copiedContent, module.getMemoryTypes().get(0).getData().get(0).getData().getBytes());
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void share_module_between_threads(Engine engine) throws Exception {
+		Module module = new Module(readWasmBinary("spec/call/call.0.wasm"), new Configuration().setEngine(engine).setTierUpThreshold(10));
+
+		ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Long>> results = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				results.add(executorService.submit(() -> new Interpreter(module).invoke("fib", 15L)));
+			}
+			for (Future<Long> result : results) {
+				assertEquals(987L, result.get());
+			}
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	private static Interpreter getCallInterpreter(Engine engine) throws IOException {
+		return createInterpreter("spec/call/call.0.wasm", new Configuration().setEngine(engine));
+	}
+
+	private static Interpreter getBrIfInterpreter(Engine engine) throws IOException {
+		return createInterpreter("spec/br_if/br_if.0.wasm", new Configuration().setEngine(engine));
+	}
+}
@@ -0,0 +1,68 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import static jp.hisano.wasm.interpreter.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstancePoolTest {
+	@Test
+	void reset_memory() {
+		InstancePool instancePool = new InstancePool(new Module(STORING_MODULE));
+
+		Instance instance = instancePool.acquire();
+		instance.invoke("store_i32", 0, 0x12345678);
+		instance.invoke("store_i32_16", 4095, -1);
+		instance.invoke("store_i32", 256, 0);
+		// grows the memory by a page and writes both pages
+		instance.invoke("init");
+		instance.invoke("store_i32", 64 * 1024, 1);
+		instancePool.release(instance);
+
+		assertSame(instance, instancePool.acquire());
+		assertEquals(0, (int) instance.invoke("load", 0));
+		assertEquals(0, (int) instance.invoke("load", 4092));
+		assertEquals(0, (int) instance.invoke("load", 4096));
+		assertEquals(0, (int) instance.invoke("load", 16));
+		// written by the data segment
+		assertEquals(0x64636261, (int) instance.invoke("load", 256));
+		assertEquals(1, instance.getMemory().getPageLength());
+		assertThrows(TrapException.class, () -> instance.invoke("load", 64 * 1024));
+
+		// The grown page is cleared for the next growth
+		instance.invoke("init");
+		assertEquals(0, (int) instance.invoke("load", 64 * 1024));
+	}
+
+	@Test
+	void reset_global_variables() throws IOException {
+		InstancePool instancePool = new InstancePool(getGlobalModule());
+
+		Instance instance = instancePool.acquire();
+		instance.invoke("set-x", 6);
+		assertEquals(6, (int) instance.invoke("get-x"));
+		instancePool.release(instance);
+
+		assertSame(instance, instancePool.acquire());
+		assertEquals(-12, (int) instance.invoke("get-x"));
+	}
+
+	@Test
+	void create_instances_when_no_instance_is_idle() throws IOException {
+		InstancePool instancePool = new InstancePool(getGlobalModule());
+
+		Instance instance1 = instancePool.acquire();
+		Instance instance2 = instancePool.acquire();
+		assertNotSame(instance1, instance2);
+		instance2.invoke("set-x", 6);
+		assertEquals(-12, (int) instance1.invoke("get-x"));
+
+		assertThrows(IllegalArgumentException.class, () -> instancePool.release(new Instance(getGlobalModule())));
+	}
+
+	private static Module getGlobalModule() throws IOException {
+		return new Module(readWasmBinary("spec/global/global.0.wasm"));
+	}
+}
@@ -0,0 +1,166 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryTest {
+	@ParameterizedTest
+	@ValueSource(booleans = {false, true})
+	void little_endian(boolean isDirect) {
+		Memory memory = new Memory(1, 1, isDirect);
+		assertEquals(isDirect, memory.isDirect());
+
+		memory.setData(0, new byte[] {0x61, 0x62, 0x63, 0x64, (byte) 0x80, (byte) 0xff});
+		assertEquals(0x64636261, memory.readInt32(0));
+		assertEquals(0x6261, memory.readUint16AsInt(0));
+		assertEquals(-128, memory.readInt8(4));
+		assertEquals(0xff80, memory.readUint16AsInt(4));
+		assertEquals(-128, memory.readInt16AsInt(4));
+
+		memory.writeInt64(8, 0x0102030405060708L);
+		assertEquals(0x08, memory.readUint8AsInt(8));
+		assertEquals(0x05060708, memory.readInt32(8));
+		assertEquals(0x0102030405060708L, memory.readInt64(8));
+
+		memory.writeFloat64(16, -1.5);
+		assertEquals(-1.5, memory.readFloat64(16));
+		memory.writeFloat32(24, 2.5f);
+		assertEquals(Float.floatToRawIntBits(2.5f), memory.readInt32(24));
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = {false, true})
+	void engines_read_memory(boolean isDirect) throws Exception {
+		Interpreter interpreter = TestUtils.createInterpreter("spec/address/address.0.wasm", new Configuration().setDirectMemory(isDirect));
+		int resultValue = interpreter.invoke("32_good1", 0);
+		assertEquals(1684234849, resultValue);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void engines_write_memory(Engine engine) {
+		Instance instance = new Instance(new Module(TestUtils.STORING_MODULE, new Configuration().setEngine(engine)));
+		Memory memory = instance.getMemory();
+
+		instance.invoke("store_i32", 0, 0x12345678);
+		assertEquals(0x12345678, (int) instance.invoke("load", 0));
+		instance.invoke("store_i64", 8, 0x0102030405060708L);
+		assertEquals(0x0102030405060708L, memory.readInt64(8));
+		instance.invoke("store_f32", 16, 2.5f);
+		assertEquals(2.5f, memory.readFloat32(16));
+		instance.invoke("store_f64", 24, -1.5);
+		assertEquals(-1.5, memory.readFloat64(24));
+
+		instance.invoke("store_i32_8", 32, 0x1ff);
+		instance.invoke("store_i32_16", 34, 0x12345);
+		assertEquals(0x234500ff, memory.readInt32(32));
+		instance.invoke("store_i64_8", 36, 0x1ffL);
+		instance.invoke("store_i64_16", 38, 0x12345L);
+		assertEquals(0x234500ff, memory.readInt32(36));
+		instance.invoke("store_i64_32", 40, 0x123456789L);
+		assertEquals(0x23456789, memory.readInt32(44));
+		assertEquals(0, memory.readInt32(40));
+
+		TrapException trapException = assertThrows(TrapException.class, () -> instance.invoke("store_i32", 64 * 1024 - 2, 1));
+		assertEquals("out of bounds memory access", trapException.getMessage());
+		assertThrows(TrapException.class, () -> instance.invoke("store_i64_32", -4, 1L));
+	}
+
+	@Test
+	void memory_image(@TempDir Path directory) throws IOException {
+		Path image = directory.resolve("memory.bin");
+		byte[] bytes = new byte[64 * 1024];
+		bytes[0] = 'x';
+		bytes[1] = 'y';
+		bytes[2] = 'z';
+		bytes[3] = 'w';
+		Files.write(image, bytes);
+
+		Interpreter interpreter = TestUtils.createInterpreter("spec/address/address.0.wasm", new Configuration().setMemoryImage(image, MapMode.READ_ONLY));
+		int resultValue = interpreter.invoke("32_good1", 0);
+		assertEquals(0x777a7978, resultValue);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void store_into_read_only_memory_image(Engine engine, @TempDir Path directory) throws IOException {
+		Path image = directory.resolve("memory.bin");
+		byte[] bytes = new byte[64 * 1024];
+		bytes[0] = 'x';
+		Files.write(image, bytes);
+
+		Instance instance = new Instance(new Module(TestUtils.STORING_MODULE, new Configuration().setEngine(engine).setMemoryImage(image, MapMode.READ_ONLY)));
+		assertEquals('x', (int) instance.invoke("load", 0));
+		instance.invoke("store_i32", 0, 0x12345678);
+		assertEquals(0x12345678, (int) instance.invoke("load", 0));
+		assertArrayEquals(bytes, Files.readAllBytes(image));
+	}
+
+	@Test
+	void copy_on_write(@TempDir Path directory) throws IOException {
+		Path image = directory.resolve("memory.bin");
+		Files.write(image, new byte[64 * 1024]);
+
+		Memory memory = Memory.map(image, MapMode.PRIVATE, 1, 1);
+		memory.writeInt32(0, 0x12345678);
+		assertEquals(0x12345678, memory.readInt32(0));
+		assertEquals(0, Files.readAllBytes(image)[0]);
+
+		memory = Memory.map(image, MapMode.READ_WRITE, 2, 2);
+		memory.writeInt32(0, 0x12345678);
+		assertEquals(2 * 64 * 1024, Files.size(image));
+		assertEquals(0x78, Files.readAllBytes(image)[0]);
+	}
+
+	@Test
+	void too_small_memory_image(@TempDir Path directory) throws IOException {
+		Path image = directory.resolve("memory.bin");
+		Files.write(image, new byte[16]);
+
+		assertThrows(IOException.class, () -> Memory.map(image, MapMode.PRIVATE, 1, 1));
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = {false, true})
+	void grow(boolean isDirect) {
+		Memory memory = new Memory(1, 10, isDirect);
+		memory.writeInt32(0, 42);
+		assertThrows(IndexOutOfBoundsException.class, () -> memory.readInt32(64 * 1024));
+
+		assertEquals(1, memory.grow(1));
+		assertEquals(2, memory.getPageLength());
+		assertEquals(42, memory.readInt32(0));
+		assertEquals(0, memory.readInt32(64 * 1024));
+		assertThrows(IndexOutOfBoundsException.class, () -> memory.readInt32(2 * 64 * 1024));
+
+		for (int i = 2; i < 10; i++) {
+			assertEquals(i, memory.grow(1));
+		}
+		assertEquals(42, memory.readInt32(0));
+		assertEquals(-1, memory.grow(1));
+		assertEquals(-1, memory.grow(-1));
+		assertEquals(10, memory.grow(0));
+	}
+
+	@Test
+	void mapped_memory_cannot_grow(@TempDir Path directory) throws IOException {
+		Path image = directory.resolve("memory.bin");
+		Files.write(image, new byte[64 * 1024]);
+
+		Memory memory = Memory.map(image, MapMode.PRIVATE, 1, 2);
+		assertEquals(-1, memory.grow(1));
+		assertEquals(1, memory.getPageLength());
+	}
+}
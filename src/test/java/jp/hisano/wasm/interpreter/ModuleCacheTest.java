@@ -0,0 +1,84 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static jp.hisano.wasm.interpreter.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ModuleCacheTest {
+	@Test
+	void share_modules_of_same_binary() throws IOException {
+		ModuleCache moduleCache = new ModuleCache(Long.MAX_VALUE);
+
+		Module module = moduleCache.get(readWasmBinary("spec/call/call.0.wasm"));
+		assertSame(module, moduleCache.get(readWasmBinary("spec/call/call.0.wasm")));
+		assertNotSame(module, moduleCache.get(readWasmBinary("spec/address/address.0.wasm")));
+
+		assertEquals(1, moduleCache.getHitCount());
+		assertEquals(2, moduleCache.getMissCount());
+		assertEquals(0, moduleCache.getEvictionCount());
+		assertEquals(2, moduleCache.size());
+	}
+
+	@Test
+	void keep_module_after_binary_is_changed() throws IOException {
+		ModuleCache moduleCache = new ModuleCache(Long.MAX_VALUE);
+
+		byte[] call = readWasmBinary("spec/call/call.0.wasm");
+		Module module = moduleCache.get(call);
+		Arrays.fill(call, (byte) 0);
+
+		long resultValue = new Interpreter(module).invoke("fib", 20L);
+		assertEquals(10946L, resultValue);
+		assertSame(module, moduleCache.get(readWasmBinary("spec/call/call.0.wasm")));
+	}
+
+	@Test
+	void evict_least_recently_used_modules_by_weight() throws IOException {
+		byte[] call = readWasmBinary("spec/call/call.0.wasm");
+		byte[] address = readWasmBinary("spec/address/address.0.wasm");
+		byte[] global = readWasmBinary("spec/global/global.0.wasm");
+		long callWeight = ModuleCache.estimateWeight(new Module(call), call);
+		long addressWeight = ModuleCache.estimateWeight(new Module(address), address);
+		long globalWeight = ModuleCache.estimateWeight(new Module(global), global);
+		ModuleCache moduleCache = new ModuleCache(callWeight + Math.max(addressWeight, globalWeight));
+
+		Module callModule = moduleCache.get(call);
+		moduleCache.get(address);
+		// call is used more recently than address
+		moduleCache.get(call);
+		moduleCache.get(global);
+
+		assertEquals(1, moduleCache.getEvictionCount());
+		assertEquals(callWeight + globalWeight, moduleCache.getWeight());
+		assertSame(callModule, moduleCache.get(call));
+		moduleCache.get(address);
+		assertEquals(2, moduleCache.getEvictionCount());
+	}
+
+	@Test
+	void weigh_retained_binary() {
+		// a module with only a custom section of 1 MiB
+		int customLength = 1 << 20;
+		byte[] binary = new byte[8 + 1 + 3 + 1 + 1 + customLength];
+		byte[] header = {0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00, 0x00, (byte) 0x82, (byte) 0x80, 0x40, 0x01, 0x78};
+		System.arraycopy(header, 0, binary, 0, header.length);
+
+		ModuleCache moduleCache = new ModuleCache(Long.MAX_VALUE);
+		moduleCache.get(binary);
+		assertTrue(binary.length <= moduleCache.getWeight());
+	}
+
+	@Test
+	void do_not_keep_too_heavy_module() throws IOException {
+		ModuleCache moduleCache = new ModuleCache(1);
+
+		Module module = moduleCache.get(readWasmBinary("spec/call/call.0.wasm"));
+		assertNotSame(module, moduleCache.get(readWasmBinary("spec/call/call.0.wasm")));
+		assertEquals(0, moduleCache.size());
+		assertEquals(0, moduleCache.getWeight());
+	}
+}
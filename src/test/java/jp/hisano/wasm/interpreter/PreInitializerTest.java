@@ -0,0 +1,63 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+
+import static jp.hisano.wasm.interpreter.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreInitializerTest {
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void start_in_initialized_state(Engine engine) {
+		Configuration configuration = new Configuration().setEngine(engine);
+		byte[] wasmFileContent = PreInitializer.preInitialize(STORING_MODULE, "init", configuration);
+
+		// The initializer is not run on the instantiation of the original module
+		Instance original = new Instance(new Module(STORING_MODULE, configuration));
+		assertEquals(0, (int) original.invoke("get"));
+		assertEquals(1, original.getMemory().getPageLength());
+
+		Instance instance = new Instance(new Module(wasmFileContent, configuration));
+		assertEquals(7, (int) instance.invoke("get"));
+		assertEquals(2, instance.getMemory().getPageLength());
+		assertEquals(0x12345678, (int) instance.invoke("load", 16));
+		assertEquals(0x55, (int) instance.invoke("load", 64 * 1024 + 4));
+		// written by the original data segment
+		assertEquals(0x64636261, (int) instance.invoke("load", 256));
+		assertEquals(0, (int) instance.invoke("load", 64));
+	}
+
+	@Test
+	void write_global_variables() throws IOException {
+		byte[] original = readWasmBinary("spec/global/global.0.wasm");
+		byte[] wasmFileContent = PreInitializer.preInitialize(original, "set-x", new Configuration());
+
+		// set-x is called without the parameter, which changes x from -12 to zero
+		Interpreter interpreter = new Interpreter(wasmFileContent);
+		assertEquals(0, (int) interpreter.invoke("get-x"));
+		assertEquals(-15L, (long) interpreter.invoke("get-y"));
+	}
+
+	@Test
+	void write_leb128() {
+		BinaryWriter writer = new BinaryWriter();
+		int[] ints = {0, 1, -1, 63, 64, -64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE};
+		for (int value : ints) {
+			writer.writeVarsint32(value);
+			writer.writeVaruint32(value);
+		}
+
+		ByteBuffer byteBuffer = new ByteBuffer(writer.toByteArray());
+		for (int value : ints) {
+			assertEquals(value, byteBuffer.readVarsint32());
+			assertEquals(value, byteBuffer.readVaruint32());
+		}
+		assertFalse(byteBuffer.canRead());
+	}
+}
@@ -0,0 +1,160 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+
+import static jp.hisano.wasm.interpreter.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void fork_memory(Engine engine) {
+		Instance parent = new Instance(new Module(STORING_MODULE, new Configuration().setEngine(engine)));
+		parent.invoke("store_i32", 16, 1);
+
+		Instance.Snapshot snapshot = parent.snapshot();
+		Instance fork1 = snapshot.fork();
+		Instance fork2 = snapshot.fork();
+		assertEquals(0x64636261, (int) fork1.invoke("load", 256));
+		assertEquals(1, (int) fork1.invoke("load", 16));
+
+		fork1.invoke("store_i32", 16, 2);
+		parent.invoke("store_i32", 16, 3);
+		assertEquals(2, (int) fork1.invoke("load", 16));
+		assertEquals(1, (int) fork2.invoke("load", 16));
+		assertEquals(3, (int) parent.invoke("load", 16));
+	}
+
+	@Test
+	void do_not_leave_snapshot_files() throws IOException {
+		Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+		Set<Path> files = listSnapshotFiles(directory);
+
+		Instance parent = new Instance(new Module(STORING_MODULE));
+		Instance.Snapshot snapshot = parent.snapshot();
+		Instance fork = snapshot.fork();
+		assertEquals(files, listSnapshotFiles(directory));
+
+		Memory.Snapshot memorySnapshot = parent.getMemory().snapshot();
+		snapshot.close();
+		assertThrows(IllegalStateException.class, snapshot::fork);
+		// The parent and the fork are still in the state of the snapshot
+		assertTrue(memorySnapshot.isOpen());
+
+		parent.invoke("store_i32", 0, 1);
+		parent.fork();
+		assertTrue(memorySnapshot.isOpen());
+		fork.invoke("store_i32", 0, 2);
+		fork.fork();
+		assertFalse(memorySnapshot.isOpen());
+		assertEquals(0x64636261, (int) fork.invoke("load", 256));
+		assertEquals(2, (int) fork.invoke("load", 0));
+	}
+
+	private static Set<Path> listSnapshotFiles(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".snapshot")).collect(Collectors.toSet());
+		}
+	}
+
+	@Test
+	void reuse_snapshot_of_unwritten_memory() {
+		Instance parent = new Instance(new Module(STORING_MODULE));
+
+		Memory memory = parent.getMemory();
+		Memory.Snapshot snapshot = memory.snapshot();
+		assertSame(snapshot, memory.snapshot());
+		assertSame(snapshot, Memory.fork(snapshot, 1).snapshot());
+
+		parent.invoke("store_i32_8", 0, 1);
+		assertNotSame(snapshot, memory.snapshot());
+	}
+
+	@Test
+	void restore_untracked_memory() {
+		Module module = new Module(STORING_MODULE);
+		Instance parent = new Instance(module);
+		parent.invoke("store_i32", 16, 1);
+		Memory.Snapshot snapshot = parent.getMemory().snapshot();
+
+		// The pages written before the first snapshot or fork are not tracked, so all of them are restored
+		Instance other = new Instance(module);
+		other.invoke("store_i32", 16, 2);
+		other.invoke("store_i32", 60000, 3);
+		other.getMemory().restore(snapshot);
+		assertEquals(1, (int) other.invoke("load", 16));
+		assertEquals(0, (int) other.invoke("load", 60000));
+	}
+
+	@Test
+	void share_snapshot_between_forks() {
+		Instance parent = new Instance(new Module(STORING_MODULE));
+		parent.invoke("store_i32", 16, 1);
+
+		Instance fork1 = parent.fork();
+		Memory.Snapshot snapshot = parent.getMemory().snapshot();
+		Instance fork2 = parent.fork();
+		Instance fork3 = fork1.fork();
+		// The unwritten instances are all forked from the file of the first snapshot
+		assertSame(snapshot, parent.getMemory().snapshot());
+		assertSame(snapshot, fork1.getMemory().snapshot());
+		assertSame(snapshot, fork2.getMemory().snapshot());
+		assertSame(snapshot, fork3.getMemory().snapshot());
+		assertTrue(snapshot.isOpen());
+		assertEquals(1, (int) fork3.invoke("load", 16));
+
+		parent.invoke("store_i32", 16, 2);
+		Instance fork4 = parent.fork();
+		assertNotSame(snapshot, fork4.getMemory().snapshot());
+		assertEquals(2, (int) fork4.invoke("load", 16));
+		assertEquals(1, (int) fork2.invoke("load", 16));
+	}
+
+	@Test
+	void grow_fork() {
+		Instance fork = new Instance(new Module(STORING_MODULE)).fork();
+
+		// grows the memory by a page and writes both pages
+		fork.invoke("init");
+		assertEquals(2, fork.getMemory().getPageLength());
+		assertEquals(0x64636261, (int) fork.invoke("load", 256));
+		assertEquals(0x12345678, (int) fork.invoke("load", 16));
+		assertEquals(0x55, (int) fork.invoke("load", 64 * 1024 + 4));
+	}
+
+	@Test
+	void fork_global_variables() {
+		Instance parent = new Instance(new Module(STORING_MODULE));
+		parent.invoke("init");
+
+		Instance fork = parent.fork();
+		assertEquals(7, (int) fork.invoke("get"));
+		assertEquals(0x12345678, (int) fork.invoke("load", 16));
+		fork.invoke("store_i32", 16, 0);
+		assertEquals(0x12345678, (int) parent.invoke("load", 16));
+	}
+
+	@Test
+	void fork_exported_global_variables() throws IOException {
+		Instance parent = new Instance(new Module(readWasmBinary("spec/global/global.0.wasm")));
+		parent.invoke("set-x", 6);
+
+		Instance fork = parent.fork();
+		assertEquals(6, (int) fork.invoke("get-x"));
+		fork.invoke("set-x", 7);
+		assertEquals(6, (int) parent.invoke("get-x"));
+		assertEquals(7, (int) fork.invoke("get-x"));
+	}
+}
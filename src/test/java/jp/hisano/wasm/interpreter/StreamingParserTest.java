@@ -0,0 +1,80 @@
+package jp.hisano.wasm.interpreter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static jp.hisano.wasm.interpreter.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingParserTest {
+	@ParameterizedTest
+	@ValueSource(booleans = {false, true})
+	void parse_stream(boolean isParallelDecoding) throws IOException {
+		Configuration configuration = new Configuration().setParallelDecoding(isParallelDecoding);
+		Module module = new Module(new ChunkedInputStream(readWasmBinary("spec/call/call.0.wasm")), configuration);
+
+		long resultValue = new Instance(module).invoke("fac", 25L);
+		assertEquals(7034535277573963776L, resultValue);
+		assertNotNull(module.getExportedFunction("fib").getFunction().code);
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = {false, true})
+	void parse_data_section(boolean isParallelDecoding) throws IOException {
+		Configuration configuration = new Configuration().setParallelDecoding(isParallelDecoding);
+		Module module = new Module(new ChunkedInputStream(readWasmBinary("spec/address/address.0.wasm")), configuration);
+
+		int resultValue = new Instance(module).invoke("32_good1", 0);
+		assertEquals(1684234849, resultValue);
+	}
+
+	@Test
+	void reject_non_blocking_channel() throws IOException {
+		Pipe pipe = Pipe.open();
+		try (Pipe.SinkChannel sink = pipe.sink(); Pipe.SourceChannel source = pipe.source()) {
+			source.configureBlocking(false);
+			assertThrows(IllegalArgumentException.class, () -> new Module(source, new Configuration()));
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {4, 9, 100})
+	void truncated_stream(int length) throws IOException {
+		byte[] wasmFileContent = Arrays.copyOf(readWasmBinary("spec/call/call.0.wasm"), length);
+		InterpreterException exception = assertThrows(InterpreterException.class, () -> new Module(new ByteArrayInputStream(wasmFileContent), new Configuration()));
+		assertEquals(InterpreterException.Type.ILLEGAL_BINARY, exception.getType());
+	}
+
+	// Returns a few bytes at a time like a network stream
+	private static final class ChunkedInputStream extends InputStream {
+		private final byte[] bytes;
+		private int index;
+
+		ChunkedInputStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+			return index < bytes.length? bytes[index++] & 0xff: -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (bytes.length <= index) {
+				return -1;
+			}
+			int readLength = Math.min(Math.min(length, 7), bytes.length - index);
+			System.arraycopy(bytes, index, buffer, offset, readLength);
+			index += readLength;
+			return readLength;
+		}
+	}
+}
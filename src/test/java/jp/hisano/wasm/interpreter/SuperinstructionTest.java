@@ -0,0 +1,120 @@
+package jp.hisano.wasm.interpreter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+import jp.hisano.wasm.interpreter.Module.BrIf;
+import jp.hisano.wasm.interpreter.Module.BranchTarget;
+import jp.hisano.wasm.interpreter.Module.I32Add;
+import jp.hisano.wasm.interpreter.Module.I32Const;
+import jp.hisano.wasm.interpreter.Module.I32LtS;
+import jp.hisano.wasm.interpreter.Module.Instruction;
+import jp.hisano.wasm.interpreter.Module.LocalGet;
+import jp.hisano.wasm.interpreter.Module.LocalSet;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SuperinstructionTest {
+	private static final byte[] MODULE = {
+		0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00,
+		// type section: (i32) -> i32
+		0x01, 0x06, 0x01, 0x60, 0x01, 0x7f, 0x01, 0x7f,
+		// function section
+		0x03, 0x03, 0x02, 0x00, 0x00,
+		// memory section: 1 page
+		0x05, 0x03, 0x01, 0x00, 0x01,
+		// export section: "sum" and "load"
+		0x07, 0x0e, 0x02, 0x03, 0x73, 0x75, 0x6d, 0x00, 0x00, 0x04, 0x6c, 0x6f, 0x61, 0x64, 0x00, 0x01,
+		// code section
+		0x0a, 0x2e, 0x02,
+		// sum: loop { s = s + n; n = n - 1; br_if 0 (n > 0) } s
+		0x1e, 0x01, 0x01, 0x7f,
+		0x03, 0x40,
+		0x20, 0x01, 0x20, 0x00, 0x6a, 0x21, 0x01,
+		0x20, 0x00, 0x41, 0x01, 0x6b, 0x21, 0x00,
+		0x20, 0x00, 0x41, 0x00, 0x4a, 0x0d, 0x00,
+		0x0b,
+		0x20, 0x01,
+		0x0b,
+		// load: i32.load (a * 2 + 4)
+		0x0d, 0x00,
+		0x20, 0x00, 0x41, 0x02, 0x6c, 0x41, 0x04, 0x6a, 0x28, 0x02, 0x00,
+		0x0b,
+		// data section: 1 2 3 4 5 6 7 8 at 0
+		0x0b, 0x0e, 0x01, 0x00, 0x41, 0x00, 0x0b, 0x08, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+	};
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void fused_loop(Engine engine) {
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setEngine(engine));
+		int resultValue = interpreter.invoke("sum", 100);
+		assertEquals(5050, resultValue);
+	}
+
+	@Test
+	void unfused_loop() {
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setFusingInstructions(false));
+		int resultValue = interpreter.invoke("sum", 100);
+		assertEquals(5050, resultValue);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void fused_load(Engine engine) {
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setEngine(engine));
+		assertEquals(0x08070605, (int) interpreter.invoke("load", 0));
+		// -2 * 2 + 4 and 0x7fffffff * 2 + 4 wrap around before the offset is added
+		assertEquals(0x04030201, (int) interpreter.invoke("load", -2));
+		assertEquals(0x06050403, (int) interpreter.invoke("load", 0x7fffffff));
+		assertThrows(TrapException.class, () -> interpreter.invoke("load", 32766));
+	}
+
+	@Test
+	void fuse_instructions() {
+		BranchTarget target = new BranchTarget(null, 0, 0);
+		List<Instruction> instructions = PeepholeOptimizer.fuse(Arrays.asList(
+			new LocalGet(0), new LocalGet(1), new I32Add(), new LocalSet(0),
+			new LocalGet(0), new I32Const(10), new I32LtS(), new BrIf(target),
+			new LocalGet(0), new I32Const(10), new I32LtS(),
+			new LocalGet(0)
+		));
+
+		assertEquals(Arrays.asList("LocalGetLocalGetI32Operator", "LocalSet", "LocalGetI32ConstI32OperatorBrIf", "LocalGetI32ConstI32Operator", "LocalGet"), instructions.stream().map(instruction -> instruction.getClass().getSimpleName()).collect(toList()));
+	}
+
+	@Test
+	void count_sequences() {
+		SequenceProfiler profiler = new SequenceProfiler();
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setSequenceProfiler(profiler));
+		int resultValue = interpreter.invoke("sum", 10);
+		assertEquals(55, resultValue);
+
+		Map<String, Long> counts = profiler.getCounts();
+		assertEquals(10L, counts.get("LocalGet LocalGet I32Add LocalSet"));
+		assertEquals(10L, counts.get("LocalGet I32Const I32GtS BrIf"));
+		assertEquals(20L, counts.get("LocalGet I32Const"));
+		assertFalse(counts.containsKey("LocalGet"));
+	}
+
+	@Test
+	void reset_counts() {
+		SequenceProfiler profiler = new SequenceProfiler(2);
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setSequenceProfiler(profiler));
+		interpreter.invoke("sum", 10);
+		profiler.reset();
+		assertTrue(profiler.getCounts().isEmpty());
+
+		interpreter.invoke("sum", 5);
+		Map<String, Long> counts = profiler.getCounts();
+		assertEquals(10L, counts.get("LocalGet I32Const"));
+		assertFalse(counts.containsKey("LocalGet I32Const I32GtS"));
+	}
+}
@@ -0,0 +1,69 @@
+package jp.hisano.wasm.interpreter;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import jp.hisano.wasm.interpreter.Configuration.Engine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TailCallTest {
+	private static final byte[] MODULE = {
+		0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00,
+		// type section: (i64, i64) -> i64 and (i32) -> i32
+		0x01, 0x0c, 0x02, 0x60, 0x02, 0x7e, 0x7e, 0x01, 0x7e, 0x60, 0x01, 0x7f, 0x01, 0x7f,
+		// function section
+		0x03, 0x04, 0x03, 0x00, 0x01, 0x01,
+		// table section: 2 elements
+		0x04, 0x04, 0x01, 0x70, 0x00, 0x02,
+		// export section: "fac" and "even"
+		0x07, 0x0e, 0x02, 0x03, 0x66, 0x61, 0x63, 0x00, 0x00, 0x04, 0x65, 0x76, 0x65, 0x6e, 0x00, 0x01,
+		// element section: even and odd at 0
+		0x09, 0x08, 0x01, 0x00, 0x41, 0x00, 0x0b, 0x02, 0x01, 0x02,
+		// code section
+		0x0a, 0x45, 0x03,
+		// fac: if (n == 0) acc else return_call fac (n - 1, acc * n)
+		0x17, 0x00,
+		0x20, 0x00, 0x50, 0x04, 0x7e,
+		0x20, 0x01,
+		0x05,
+		0x20, 0x00, 0x42, 0x01, 0x7d, 0x20, 0x01, 0x20, 0x00, 0x7e, 0x12, 0x00,
+		0x0b,
+		0x0b,
+		// even: if (n == 0) 1 else return_call_indirect odd (n - 1)
+		0x15, 0x00,
+		0x20, 0x00, 0x45, 0x04, 0x7f,
+		0x41, 0x01,
+		0x05,
+		0x20, 0x00, 0x41, 0x01, 0x6b, 0x41, 0x01, 0x13, 0x01, 0x00,
+		0x0b,
+		0x0b,
+		// odd: if (n == 0) 0 else return_call_indirect even (n - 1)
+		0x15, 0x00,
+		0x20, 0x00, 0x45, 0x04, 0x7f,
+		0x41, 0x00,
+		0x05,
+		0x20, 0x00, 0x41, 0x01, 0x6b, 0x41, 0x00, 0x13, 0x01, 0x00,
+		0x0b,
+		0x0b,
+	};
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void return_call(Engine engine) {
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setEngine(engine));
+		long resultValue = interpreter.invoke("fac", 20L, 1L);
+		assertEquals(2432902008176640000L, resultValue);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void return_call_indirect_without_growing_stack(Engine engine) {
+		Interpreter interpreter = new Interpreter(MODULE, new Configuration().setEngine(engine).setMaxCallDepth(10));
+		int resultValue = interpreter.invoke("even", 1000001);
+		assertEquals(0, resultValue);
+		resultValue = interpreter.invoke("even", 1000000);
+		assertEquals(1, resultValue);
+		assertEquals(0, ValueStack.current().getTop());
+	}
+}
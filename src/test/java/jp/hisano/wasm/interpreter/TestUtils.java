@@ -5,9 +5,71 @@ import java.io.IOException;
 import static com.google.common.io.Resources.*;
 
 final class TestUtils {
+	// A module which writes its memory and its global variable by the store instructions and global.set
+	static final byte[] STORING_MODULE = {
+		0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00,
+		// type section
+		0x01, 0x21, 0x07, 0x60, 0x02, 0x7f, 0x7f, 0x00, 0x60, 0x02, 0x7f, 0x7e, 0x00, 0x60, 0x02, 0x7f, 0x7d, 0x00, 0x60, 0x02, 0x7f, 0x7c, 0x00, 0x60, 0x01, 0x7f, 0x01, 0x7f, 0x60, 0x00, 0x00, 0x60, 0x00, 0x01, 0x7f,
+		// function section
+		0x03, 0x0d, 0x0c, 0x00, 0x01, 0x02, 0x03, 0x00, 0x00, 0x01, 0x01, 0x01, 0x04, 0x05, 0x06,
+		// memory section: 1 page
+		0x05, 0x03, 0x01, 0x00, 0x01,
+		// global section: mutable i32 of 0
+		0x06, 0x06, 0x01, 0x7f, 0x01, 0x41, 0x00, 0x0b,
+		// export section
+		0x07, (byte) 0x8e, 0x01, 0x0c,
+		0x09, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x69, 0x33, 0x32, 0x00, 0x00,
+		0x09, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x69, 0x36, 0x34, 0x00, 0x01,
+		0x09, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x66, 0x33, 0x32, 0x00, 0x02,
+		0x09, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x66, 0x36, 0x34, 0x00, 0x03,
+		0x0b, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x69, 0x33, 0x32, 0x5f, 0x38, 0x00, 0x04,
+		0x0c, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x69, 0x33, 0x32, 0x5f, 0x31, 0x36, 0x00, 0x05,
+		0x0b, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x69, 0x36, 0x34, 0x5f, 0x38, 0x00, 0x06,
+		0x0c, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x69, 0x36, 0x34, 0x5f, 0x31, 0x36, 0x00, 0x07,
+		0x0c, 0x73, 0x74, 0x6f, 0x72, 0x65, 0x5f, 0x69, 0x36, 0x34, 0x5f, 0x33, 0x32, 0x00, 0x08,
+		0x04, 0x6c, 0x6f, 0x61, 0x64, 0x00, 0x09,
+		0x04, 0x69, 0x6e, 0x69, 0x74, 0x00, 0x0a,
+		0x03, 0x67, 0x65, 0x74, 0x00, 0x0b,
+		// code section
+		0x0a, (byte) 0x89, 0x01, 0x0c,
+		// store_i32: i32.store
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x36, 0x02, 0x00, 0x0b,
+		// store_i64: i64.store
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x37, 0x03, 0x00, 0x0b,
+		// store_f32: f32.store
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x38, 0x02, 0x00, 0x0b,
+		// store_f64: f64.store
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x39, 0x03, 0x00, 0x0b,
+		// store_i32_8: i32.store8
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x3a, 0x00, 0x00, 0x0b,
+		// store_i32_16: i32.store16
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x3b, 0x01, 0x00, 0x0b,
+		// store_i64_8: i64.store8
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x3c, 0x00, 0x00, 0x0b,
+		// store_i64_16: i64.store16
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x3d, 0x01, 0x00, 0x0b,
+		// store_i64_32: i64.store32 with offset 4
+		0x09, 0x00, 0x20, 0x00, 0x20, 0x01, 0x3e, 0x02, 0x04, 0x0b,
+		// load: i32.load
+		0x07, 0x00, 0x20, 0x00, 0x28, 0x02, 0x00, 0x0b,
+		// init: global.set 0 (7), memory.grow 1, i32.store 16 (0x12345678) and i32.store 65540 (0x55)
+		0x20, 0x00, 0x41, 0x07, 0x24, 0x00, 0x41, 0x01, 0x40, 0x00, 0x1a, 0x41, 0x10, 0x41, (byte) 0xf8, (byte) 0xac, (byte) 0xd1, (byte) 0x91, 0x01, 0x36, 0x02, 0x00, 0x41, (byte) 0x84, (byte) 0x80, 0x04, 0x41, (byte) 0xd5, 0x00, 0x36, 0x02, 0x00, 0x0b,
+		// get: global.get 0
+		0x04, 0x00, 0x23, 0x00, 0x0b,
+		// data section: "abcd" at 256
+		0x0b, 0x0b, 0x01, 0x00, 0x41, (byte) 0x80, 0x02, 0x0b, 0x04, 0x61, 0x62, 0x63, 0x64,
+	};
+
 	static Interpreter createInterpreter(String wasmFilePath) throws IOException {
-		byte[] wasmBinary = toByteArray(getResource(TestUtils.class, wasmFilePath));
-		return new Interpreter(wasmBinary);
+		return new Interpreter(readWasmBinary(wasmFilePath));
+	}
+
+	static Interpreter createInterpreter(String wasmFilePath, Configuration configuration) throws IOException {
+		return new Interpreter(readWasmBinary(wasmFilePath), configuration);
+	}
+
+	static byte[] readWasmBinary(String wasmFilePath) throws IOException {
+		return toByteArray(getResource(TestUtils.class, wasmFilePath));
 	}
 
 	private TestUtils() {